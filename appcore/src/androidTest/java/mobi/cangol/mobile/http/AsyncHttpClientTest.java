@@ -18,14 +18,26 @@
 package mobi.cangol.mobile.http;
 
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by xuewu.wei on 2016/6/8.
  */
 public class AsyncHttpClientTest extends AndroidTestCase {
+    private static final String TAG = "AsyncHttpClientTest";
+    private static final int LOAD_REQUESTS = 200;
+    private static final long SLOW_RESPONSE_MILLIS = 500;
     private String url = "http://www.cangol.mobi/cmweb/api/station/sync.do";
+    private final AtomicInteger slowRequests = new AtomicInteger();
 
     public void testGet() {
         AsyncHttpClient httpClient = AsyncHttpClient.build("test");
@@ -48,4 +60,126 @@ public class AsyncHttpClientTest extends AndroidTestCase {
             }
         });
     }
-}
\ No newline at end of file
+
+    /**
+     * 对慢速服务发起大量请求，比较线程池模式与enqueue模式的总耗时
+     */
+    public void testEnqueueLoad() throws Exception {
+        final LocalHttpServer server = startSlowServer();
+        try {
+            final String slowUrl = server.url();
+            long pool = load(slowUrl, false);
+            long enqueue = load(slowUrl, true);
+            Log.d(TAG, "requests=" + LOAD_REQUESTS + ",pool=" + pool + "ms,enqueue=" + enqueue + "ms");
+            assertTrue(enqueue < pool);
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testEnqueueCancel() throws Exception {
+        final LocalHttpServer server = startSlowServer();
+        try {
+            AsyncHttpClient httpClient = AsyncHttpClient.build("enqueueCancel");
+            httpClient.setEnqueueMode(true);
+            final AtomicInteger callbacks = new AtomicInteger();
+            httpClient.get(this, server.url(), new AsyncHttpResponseHandler() {
+                @Override
+                public void onSuccess(String content) {
+                    callbacks.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable error, String content) {
+                    callbacks.incrementAndGet();
+                }
+            });
+            httpClient.cancelRequests(this, true);
+            Thread.sleep(SLOW_RESPONSE_MILLIS * 2);
+            assertEquals(0, callbacks.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testCoalesce() throws Exception {
+        final LocalHttpServer server = startSlowServer();
+        try {
+            AsyncHttpClient httpClient = AsyncHttpClient.build("coalesce");
+            httpClient.setCoalesceEnabled(true);
+            final String slowUrl = server.url();
+            final int count = 10;
+            final Object[] contexts = new Object[count];
+            final CountDownLatch latch = new CountDownLatch(count - 1);
+            final AtomicInteger success = new AtomicInteger();
+            slowRequests.set(0);
+            for (int i = 0; i < count; i++) {
+                contexts[i] = new Object();
+                httpClient.get(contexts[i], slowUrl, new AsyncHttpResponseHandler() {
+                    @Override
+                    public void onSuccess(String content) {
+                        if ("ok".equals(content)) {
+                            success.incrementAndGet();
+                        }
+                    }
+
+                    @Override
+                    public void onFinish() {
+                        latch.countDown();
+                    }
+                });
+            }
+            // 取消一个订阅者不影响共享的请求
+            httpClient.cancelRequests(contexts[0], true);
+            assertTrue(latch.await(SLOW_RESPONSE_MILLIS * 4, TimeUnit.MILLISECONDS));
+            assertEquals(count - 1, success.get());
+            assertEquals(1, slowRequests.get());
+        } finally {
+            server.close();
+        }
+    }
+
+    private long load(String slowUrl, boolean enqueueMode) throws InterruptedException {
+        AsyncHttpClient httpClient = AsyncHttpClient.build("load" + enqueueMode);
+        httpClient.setEnqueueMode(enqueueMode);
+        httpClient.setMaxRequests(LOAD_REQUESTS, LOAD_REQUESTS);
+        final CountDownLatch latch = new CountDownLatch(LOAD_REQUESTS);
+        final AtomicInteger success = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < LOAD_REQUESTS; i++) {
+            // 测试线程没有Looper，回调直接在请求线程执行
+            httpClient.get(this, slowUrl, new AsyncHttpResponseHandler() {
+                @Override
+                public void onSuccess(String content) {
+                    success.incrementAndGet();
+                }
+
+                @Override
+                public void onFinish() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(LOAD_REQUESTS * SLOW_RESPONSE_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(LOAD_REQUESTS, success.get());
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * keep-alive服务，每个响应延迟SLOW_RESPONSE_MILLIS
+     */
+    private LocalHttpServer startSlowServer() throws IOException {
+        return LocalHttpServer.start("127.0.0.1", LOAD_REQUESTS, new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                OutputStream out = socket.getOutputStream();
+                while (LocalHttpServer.readRequest(socket.getInputStream()) != null) {
+                    slowRequests.incrementAndGet();
+                    Thread.sleep(SLOW_RESPONSE_MILLIS);
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("UTF-8"));
+                    out.flush();
+                }
+            }
+        });
+    }
+}
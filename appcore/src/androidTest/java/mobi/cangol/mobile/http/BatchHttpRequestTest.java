@@ -0,0 +1,186 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchHttpRequestTest extends AndroidTestCase {
+    private static final String TAG = "BatchHttpRequestTest";
+    private static final long LATENCY_MILLIS = 100;
+    private static final int LOAD_REQUESTS = 100;
+    private final AtomicInteger httpRequests = new AtomicInteger();
+    private volatile int batchCode = 200;
+    private LocalHttpServer server;
+    private String url;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // 高延迟服务，/batch为JSON批量接口，其他请求返回"method url body"
+        server = LocalHttpServer.start("127.0.0.1", 200, new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.Request request = LocalHttpServer.readRequest(socket.getInputStream());
+                String body = new String(request.getBody(), "UTF-8");
+                httpRequests.incrementAndGet();
+                Thread.sleep(LATENCY_MILLIS);
+                int code = 200;
+                String content;
+                if ("/batch".equals(request.getPath())) {
+                    code = batchCode;
+                    content = code == 200 ? batch(body) : "";
+                } else {
+                    content = request.getMethod() + " " + request.getPath() + " " + body;
+                    content = "GET".equals(request.getMethod()) ? content.trim() : content;
+                }
+                LocalHttpServer.respond(socket, code + " OK", "", content.getBytes("UTF-8"));
+            }
+        });
+        url = "http://127.0.0.1:" + server.getPort();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testBatch() throws Exception {
+        AsyncHttpClient httpClient = build("batch", 20);
+        final int count = 10;
+        final CountDownLatch latch = new CountDownLatch(count + 1);
+        final Map<String, String> results = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            httpClient.get(this, url + "/item?id=" + i, collect(results, "GET " + i, latch));
+        }
+        Map<String, String> params = new HashMap<>();
+        params.put("name", "Jick");
+        httpClient.post(this, url + "/item", null, params, collect(results, "POST", latch));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Log.d(TAG, "" + results);
+
+        assertEquals(1, httpRequests.get());
+        for (int i = 0; i < count; i++) {
+            assertEquals("GET /item?id=" + i, results.get("GET " + i));
+        }
+        assertEquals("POST /item name=Jick", results.get("POST"));
+    }
+
+    public void testFallback() throws Exception {
+        // 批量接口不存在，全部单独发送
+        batchCode = 404;
+        AsyncHttpClient httpClient = build("fallback", 20);
+        final CountDownLatch latch = new CountDownLatch(3);
+        final Map<String, String> results = new HashMap<>();
+        httpClient.get(this, url + "/item?id=1", collect(results, "GET", latch));
+        httpClient.post(this, url + "/item", null, new HashMap<String, String>(), collect(results, "POST", latch));
+        httpClient.put(this, url + "/item", null, new HashMap<String, String>(), collect(results, "PUT", latch));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(4, httpRequests.get());
+        assertEquals("GET /item?id=1", results.get("GET"));
+        assertEquals("POST /item ", results.get("POST"));
+        assertEquals("PUT /item ", results.get("PUT"));
+    }
+
+    public void testFallbackNonIdempotent() throws Exception {
+        // 批量接口5xx，服务端可能已执行，POST不单独重发
+        batchCode = 500;
+        AsyncHttpClient httpClient = build("nonIdempotent", 20);
+        httpClient.getRetryHandler().setBackoff(10, 100);
+        final CountDownLatch latch = new CountDownLatch(2);
+        final Map<String, String> results = new HashMap<>();
+        httpClient.get(this, url + "/item?id=1", collect(results, "GET", latch));
+        httpClient.post(this, url + "/item", null, new HashMap<String, String>(), collect(results, "POST", latch));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals("GET /item?id=1", results.get("GET"));
+        assertTrue(results.get("POST").startsWith("failure"));
+    }
+
+    /**
+     * 高延迟服务下单独请求与批量请求的吞吐量对比
+     */
+    public void testBenchmark() throws Exception {
+        double single = load(build("single", 0), LOAD_REQUESTS);
+        double batch = load(build("load", 20), LOAD_REQUESTS);
+        Log.d(TAG, "requests=" + LOAD_REQUESTS + ",single=" + single + "rps,batch=" + batch + "rps");
+        assertTrue(batch > single);
+    }
+
+    private AsyncHttpClient build(String group, int maxSize) {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG + group);
+        if (maxSize > 0) {
+            httpClient.setBatch(url + "/batch", 20, maxSize);
+        }
+        return httpClient;
+    }
+
+    private double load(AsyncHttpClient httpClient, int count) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger success = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            httpClient.get(this, url + "/item?id=" + i, new AsyncHttpResponseHandler() {
+                @Override
+                public void onSuccess(String content) {
+                    success.incrementAndGet();
+                }
+
+                @Override
+                public void onFinish() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long time = System.currentTimeMillis() - start;
+        assertEquals(count, success.get());
+        return count * 1000.0 / time;
+    }
+
+    private AsyncHttpResponseHandler collect(final Map<String, String> results, final String key, final CountDownLatch latch) {
+        // 测试线程没有Looper，回调直接在请求线程执行
+        return new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(String content) {
+                synchronized (results) {
+                    results.put(key, content);
+                }
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error, String content) {
+                synchronized (results) {
+                    results.put(key, "failure " + error);
+                }
+                latch.countDown();
+            }
+        };
+    }
+
+    private String batch(String body) throws JSONException {
+        JSONArray requests = new JSONArray(body);
+        JSONArray responses = new JSONArray();
+        for (int i = 0; i < requests.length(); i++) {
+            JSONObject request = requests.getJSONObject(i);
+            String content = request.getString("method") + " " + request.getString("url");
+            if (request.has("body")) {
+                content += " " + request.getString("body");
+            }
+            JSONObject response = new JSONObject();
+            response.put("code", 200);
+            response.put("body", content);
+            responses.put(response);
+        }
+        return responses.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+public class GzipRequestInterceptorTest extends AndroidTestCase {
+    private static final String TAG = "GzipRequestInterceptorTest";
+    private LocalHttpServer server;
+    private String url;
+    private volatile String contentEncoding;
+    private volatile int receivedLength;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // 解压请求体后原样返回
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.Request request = LocalHttpServer.readRequest(socket.getInputStream());
+                byte[] body = request.getBody();
+                contentEncoding = request.header("content-encoding");
+                receivedLength = body.length;
+                if ("gzip".equals(contentEncoding)) {
+                    GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(body));
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int count;
+                    while ((count = gzip.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                    body = out.toByteArray();
+                }
+                LocalHttpServer.respond(socket, "200 OK", "", body);
+            }
+        });
+        url = server.url();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testForm() throws Exception {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.setRequestCompression(true);
+        Map<String, String> params = new HashMap<>();
+        params.put("content", repeat("form data ", 500));
+        String result = post(httpClient, params, null);
+        assertEquals("gzip", contentEncoding);
+        assertEquals("content=" + repeat("form%20data%20", 500), result);
+        Log.d(TAG, "form length=" + result.length() + ",compressed=" + receivedLength);
+        assertTrue(receivedLength < result.length());
+    }
+
+    public void testJson() throws Exception {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.setRequestCompression(true);
+        JSONObject json = new JSONObject();
+        json.put("content", repeat("json data ", 500));
+        String result = post(httpClient, null, json);
+        assertEquals("gzip", contentEncoding);
+        assertEquals(json.toString(), result);
+        assertTrue(receivedLength < result.length());
+    }
+
+    public void testSmallBody() throws Exception {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.setRequestCompression(true);
+        Map<String, String> params = new HashMap<>();
+        params.put("name", "Jick");
+        assertEquals("name=Jick", post(httpClient, params, null));
+        assertNull(contentEncoding);
+    }
+
+    public void testDisabled() throws Exception {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.setRequestCompression(true);
+        httpClient.setRequestCompression(false);
+        Map<String, String> params = new HashMap<>();
+        params.put("content", repeat("form data ", 500));
+        post(httpClient, params, null);
+        assertNull(contentEncoding);
+    }
+
+    private String post(AsyncHttpClient httpClient, Map<String, String> params, JSONObject json) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] result = new String[1];
+        AsyncHttpResponseHandler responseHandler = new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(String content) {
+                result[0] = content;
+            }
+
+            @Override
+            public void onFinish() {
+                latch.countDown();
+            }
+        };
+        if (json != null) {
+            httpClient.post(this, url, json, responseHandler);
+        } else {
+            httpClient.post(this, url, null, params, responseHandler);
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
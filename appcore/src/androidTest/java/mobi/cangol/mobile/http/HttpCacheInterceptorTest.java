@@ -0,0 +1,93 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpCacheInterceptorTest extends AndroidTestCase {
+    private static final String TAG = "HttpCacheInterceptorTest";
+    private static final int MODE_FRESH = 0;
+    private static final int MODE_REVALIDATE = 1;
+    private static final int MODE_ERROR = 2;
+    private final AtomicInteger mode = new AtomicInteger();
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private LocalHttpServer server;
+    private File cacheDir;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.Request request = LocalHttpServer.readRequest(socket.getInputStream());
+                if (mode.get() == MODE_ERROR) {
+                    LocalHttpServer.respond(socket, "503 Service Unavailable", "", new byte[0]);
+                } else if (request.header("if-none-match") != null) {
+                    LocalHttpServer.respond(socket, "304 Not Modified", "ETag: \"v1\"\r\nCache-Control: max-age=0\r\n", new byte[0]);
+                } else {
+                    fullResponses.incrementAndGet();
+                    LocalHttpServer.respond(socket, "200 OK", "ETag: \"v1\"\r\nCache-Control: "
+                            + (mode.get() == MODE_FRESH ? "max-age=60" : "max-age=0") + "\r\n", "hello".getBytes("UTF-8"));
+                }
+            }
+        });
+        cacheDir = new File(getContext().getCacheDir(), TAG);
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        HttpClientFactory.getCache(cacheDir, 0).evictAll();
+        super.tearDown();
+    }
+
+    public void testCache() throws InterruptedException {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.setCache(cacheDir, 1024 * 1024);
+        httpClient.setStaleIfError(3600);
+        String url = server.url();
+
+        mode.set(MODE_FRESH);
+        assertEquals("hello", get(httpClient, url + "fresh"));
+        assertEquals("hello", get(httpClient, url + "fresh"));
+
+        mode.set(MODE_REVALIDATE);
+        assertEquals("hello", get(httpClient, url + "revalidate"));
+        assertEquals("hello", get(httpClient, url + "revalidate"));
+
+        mode.set(MODE_ERROR);
+        assertEquals("hello", get(httpClient, url + "revalidate"));
+
+        HttpCacheStats stats = httpClient.getCacheStats();
+        Log.d(TAG, "" + stats);
+        assertEquals(2, fullResponses.get());
+        assertEquals(5, stats.getRequestCount());
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getRevalidatedCount());
+        assertEquals(2, stats.getNetworkCount());
+        assertEquals(1, stats.getStaleIfErrorCount());
+    }
+
+    private String get(AsyncHttpClient httpClient, String url) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] result = new String[1];
+        // 测试线程没有Looper，回调直接在请求线程执行
+        httpClient.get(this, url, new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(String content) {
+                result[0] = content;
+            }
+
+            @Override
+            public void onFinish() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+}
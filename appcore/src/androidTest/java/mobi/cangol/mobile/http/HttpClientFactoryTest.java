@@ -0,0 +1,111 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class HttpClientFactoryTest extends AndroidTestCase {
+    private static final String TAG = "HttpClientFactoryTest";
+    private static final int TIMES = 100;
+    private LocalHttpServer server;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // keep-alive服务
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                OutputStream out = socket.getOutputStream();
+                while (LocalHttpServer.readRequest(socket.getInputStream()) != null) {
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("UTF-8"));
+                    out.flush();
+                }
+            }
+        });
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testSharedConnectionPool() throws IOException {
+        OkHttpClient client1 = HttpClientFactory.createDefaultHttpClient();
+        OkHttpClient client2 = HttpClientFactory.createDefaultHttpClient();
+        assertSame(client1.connectionPool(), client2.connectionPool());
+        assertSame(client1.dns(), client2.dns());
+        assertNotSame(client1.dispatcher(), client2.dispatcher());
+        assertSame(client1.dispatcher().executorService(), client2.dispatcher().executorService());
+
+        execute(client1);
+        execute(client2);
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    public void testCachingDns() throws Exception {
+        HttpClientFactory.CachingDns dns = new HttpClientFactory.CachingDns(200);
+        InetAddress address = dns.lookup("127.0.0.1").get(0);
+        assertSame(address, dns.lookup("127.0.0.1").get(0));
+        assertEquals(1, dns.size());
+
+        // 未命中时清理过期的项
+        Thread.sleep(300);
+        dns.lookup("127.0.0.2");
+        assertEquals(1, dns.size());
+
+        // 连接失败的地址失效
+        dns.lookup("127.0.0.1");
+        assertEquals(2, dns.size());
+        dns.invalidate(address);
+        assertEquals(1, dns.size());
+        assertNotSame(address, dns.lookup("127.0.0.1").get(0));
+
+        dns.clear();
+        assertEquals(0, dns.size());
+    }
+
+    /**
+     * 比较每次新建HttpClient与共享连接池的建连次数和延迟
+     */
+    public void testBenchmark() throws IOException {
+        long[] times = new long[TIMES];
+        int connections = server.getConnectionCount();
+        for (int i = 0; i < TIMES; i++) {
+            OkHttpClient client = new OkHttpClient.Builder().build();
+            long start = System.nanoTime();
+            execute(client);
+            times[i] = System.nanoTime() - start;
+        }
+        report("separate", times, server.getConnectionCount() - connections);
+        connections = server.getConnectionCount();
+
+        for (int i = 0; i < TIMES; i++) {
+            OkHttpClient client = HttpClientFactory.createDefaultHttpClient();
+            long start = System.nanoTime();
+            execute(client);
+            times[i] = System.nanoTime() - start;
+        }
+        report("shared", times, server.getConnectionCount() - connections);
+    }
+
+    private void report(String name, long[] times, int connections) {
+        Arrays.sort(times);
+        Log.d(TAG, name + " connections=" + connections
+                + ",p50=" + times[times.length / 2] / 1000 + "us"
+                + ",p99=" + times[times.length * 99 / 100] / 1000 + "us");
+    }
+
+    private void execute(OkHttpClient client) throws IOException {
+        Response response = client.newCall(new Request.Builder().url(server.url()).build()).execute();
+        assertEquals("ok", response.body().string());
+    }
+}
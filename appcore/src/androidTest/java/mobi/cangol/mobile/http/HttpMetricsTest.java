@@ -0,0 +1,134 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HttpMetricsTest extends AndroidTestCase {
+    private static final String TAG = "HttpMetricsTest";
+    private static final String HOST = "127.0.0.1";
+    private static final String BODY = "hello metrics";
+    private volatile boolean faulty;
+    private LocalHttpServer server;
+    private String url;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // keep-alive服务，faulty时读完请求直接断开连接
+        server = LocalHttpServer.start(HOST, 50, new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                OutputStream out = socket.getOutputStream();
+                while (LocalHttpServer.readRequest(socket.getInputStream()) != null && !faulty) {
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + BODY.length() + "\r\n\r\n" + BODY).getBytes("UTF-8"));
+                    out.flush();
+                }
+            }
+        });
+        url = server.url();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testPhases() throws InterruptedException {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        HttpMetrics metrics = new HttpMetrics(TAG);
+        final List<HttpMetrics.CallMetrics> calls = Collections.synchronizedList(new ArrayList<HttpMetrics.CallMetrics>());
+        metrics.setOnCallListener(new HttpMetrics.OnCallListener() {
+            @Override
+            public void onCall(HttpMetrics.CallMetrics call) {
+                calls.add(call);
+            }
+        });
+        httpClient.setMetrics(metrics);
+        assertEquals(BODY, get(httpClient));
+        assertEquals(BODY, get(httpClient));
+        Log.d(TAG, "" + calls);
+
+        assertEquals(2, calls.size());
+        HttpMetrics.CallMetrics first = calls.get(0);
+        assertFalse(first.isConnectionReused());
+        assertTrue(first.getPhaseTime(HttpMetrics.PHASE_DNS) >= 0);
+        assertTrue(first.getPhaseTime(HttpMetrics.PHASE_CONNECT) >= 0);
+        // http没有TLS握手
+        assertEquals(-1, first.getPhaseTime(HttpMetrics.PHASE_TLS));
+        assertTrue(first.getPhaseTime(HttpMetrics.PHASE_TTFB) >= 0);
+        assertTrue(first.getPhaseTime(HttpMetrics.PHASE_TRANSFER) >= 0);
+        assertEquals(BODY.length(), first.getBytesIn());
+        assertTrue(first.getBytesOut() > 0);
+        HttpMetrics.CallMetrics second = calls.get(1);
+        assertTrue(second.isConnectionReused());
+        assertEquals(-1, second.getPhaseTime(HttpMetrics.PHASE_CONNECT));
+
+        HttpMetrics.HostMetrics hostMetrics = metrics.getSnapshot(HOST);
+        Log.d(TAG, "" + hostMetrics);
+        assertEquals(2, hostMetrics.getCallCount());
+        assertEquals(0, hostMetrics.getFailureCount());
+        assertEquals(1, hostMetrics.getReusedCount());
+        assertEquals(2 * BODY.length(), hostMetrics.getBytesIn());
+        assertEquals(2, hostMetrics.getHistogram(HttpMetrics.PHASE_TOTAL).getCount());
+        assertEquals(1, hostMetrics.getHistogram(HttpMetrics.PHASE_CONNECT).getCount());
+
+        assertEquals(1, metrics.getSnapshot(true).size());
+        assertTrue(metrics.getSnapshot().isEmpty());
+    }
+
+    public void testRetry() throws InterruptedException {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.getRetryHandler().setBackoff(10, 100);
+        HttpMetrics metrics = new HttpMetrics(TAG);
+        httpClient.setMetrics(metrics);
+        faulty = true;
+        assertNull(get(httpClient));
+
+        HttpMetrics.HostMetrics hostMetrics = metrics.getSnapshot(HOST);
+        Log.d(TAG, "" + hostMetrics);
+        assertEquals(4, hostMetrics.getCallCount());
+        assertEquals(4, hostMetrics.getFailureCount());
+        assertEquals(3, hostMetrics.getRetryCount());
+    }
+
+    public void testHistogram() {
+        HttpMetrics.Histogram histogram = new HttpMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, histogram.getMean());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.9));
+        assertEquals(0, new HttpMetrics.Histogram().getPercentile(0.5));
+    }
+
+    private String get(AsyncHttpClient httpClient) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] result = new String[1];
+        // 测试线程没有Looper，回调直接在请求线程执行
+        httpClient.get(this, url, new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(String content) {
+                result[0] = content;
+            }
+
+            @Override
+            public void onFinish() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        // onFinish先于onFailure回调
+        Thread.sleep(50);
+        return result[0];
+    }
+}
@@ -0,0 +1,247 @@
+package mobi.cangol.mobile.http;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的本地HTTP服务，每个连接在单独的守护线程中交给Handler处理，处理完后关闭连接
+ */
+public class LocalHttpServer {
+    private static final String TAG = "LocalHttpServer";
+    private final ServerSocket serverSocket;
+    private final String host;
+    private final Handler handler;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private LocalHttpServer(String host, int backlog, Handler handler) throws IOException {
+        this.serverSocket = new ServerSocket(0, backlog, InetAddress.getByName(host));
+        this.host = host;
+        this.handler = handler;
+    }
+
+    /**
+     * 在127.0.0.1的随机端口上启动
+     *
+     * @param handler 连接处理
+     * @return
+     * @throws IOException
+     */
+    public static LocalHttpServer start(Handler handler) throws IOException {
+        return start("127.0.0.1", 50, handler);
+    }
+
+    /**
+     * @param host    监听的地址
+     * @param backlog 等待accept的连接数上限
+     * @param handler 连接处理
+     * @return
+     * @throws IOException
+     */
+    public static LocalHttpServer start(String host, int backlog, Handler handler) throws IOException {
+        final LocalHttpServer server = new LocalHttpServer(host, backlog, handler);
+        final Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                server.accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        handler.serve(socket);
+                    } catch (Exception e) {
+                        Log.d(TAG, "serve " + e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return http://host:port/
+     */
+    public String url() {
+        return "http://" + host + ":" + getPort() + "/";
+    }
+
+    /**
+     * @return 已接受的连接数
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * 读取一个请求，包括Content-Length或chunked编码的请求体
+     *
+     * @param in
+     * @return 连接已关闭时返回null
+     * @throws IOException
+     */
+    public static Request readRequest(InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        final String[] parts = requestLine.split(" ");
+        final Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "");
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        final String transferEncoding = request.header("transfer-encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            request.chunked = true;
+            request.body = readChunked(in);
+        } else {
+            final String length = request.header("content-length");
+            request.body = readFully(in, length == null ? 0 : Integer.parseInt(length));
+        }
+        return request;
+    }
+
+    /**
+     * 写入响应并声明Connection: close
+     *
+     * @param socket
+     * @param status  如"200 OK"
+     * @param headers 额外的响应头，每行以\r\n结尾
+     * @param body
+     * @throws IOException
+     */
+    public static void respond(Socket socket, String status, String headers, byte[] body) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + body.length
+                + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        out.write(body);
+        out.flush();
+    }
+
+    public static void respond(Socket socket, String body) throws IOException {
+        respond(socket, "200 OK", "", body.getBytes("UTF-8"));
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                builder.append((char) c);
+            }
+        }
+        return c == -1 && builder.length() == 0 ? null : builder.toString();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(bytes, read, length - read);
+            if (count == -1) {
+                throw new IOException("unexpected end of stream");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            final int size = Integer.parseInt(readLine(in).trim(), 16);
+            if (size == 0) {
+                readLine(in);
+                return out.toByteArray();
+            }
+            out.write(readFully(in, size));
+            readLine(in);
+        }
+    }
+
+    /**
+     * 连接处理，返回或抛出异常后连接被关闭
+     */
+    public interface Handler {
+        void serve(Socket socket) throws Exception;
+    }
+
+    /**
+     * 解析后的请求，请求头名称为小写
+     */
+    public static class Request {
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers = new HashMap<>();
+        private boolean chunked;
+        private byte[] body;
+
+        Request(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public boolean isChunked() {
+            return chunked;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
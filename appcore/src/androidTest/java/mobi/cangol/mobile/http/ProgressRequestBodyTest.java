@@ -0,0 +1,135 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ProgressRequestBodyTest extends AndroidTestCase {
+    private static final String TAG = "ProgressRequestBodyTest";
+    private static final int FILE_SIZE = 1024 * 1024 + 123;
+    private LocalHttpServer server;
+    private File file;
+    private String fileMd5;
+    private volatile boolean chunkedRequest;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // 解析multipart请求，返回文件部分的md5
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.Request request = LocalHttpServer.readRequest(socket.getInputStream());
+                chunkedRequest = request.isChunked();
+                String contentType = request.header("content-type");
+                String boundary = contentType.substring(contentType.toLowerCase().indexOf("boundary=") + 9).trim();
+                LocalHttpServer.respond(socket, md5OfFilePart(request.getBody(), boundary));
+            }
+        });
+        byte[] bytes = new byte[FILE_SIZE];
+        new Random(1).nextBytes(bytes);
+        file = new File(getContext().getCacheDir(), TAG + ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        fileMd5 = md5(bytes, 0, bytes.length);
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testUpload() throws Exception {
+        final List<long[]> progress = upload(false);
+        assertFalse(chunkedRequest);
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(last[1], last[0]);
+        assertTrue(last[0] > FILE_SIZE);
+    }
+
+    public void testChunkedUpload() throws Exception {
+        final List<long[]> progress = upload(true);
+        assertTrue(chunkedRequest);
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(-1, last[1]);
+        assertTrue(last[0] > FILE_SIZE);
+    }
+
+    private List<long[]> upload(boolean chunked) throws Exception {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        RequestParams params = new RequestParams();
+        params.put("name", "Jick");
+        params.put("file", file);
+        params.setChunked(chunked);
+        final List<long[]> progress = Collections.synchronizedList(new ArrayList<long[]>());
+        final String[] result = new String[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        httpClient.post(this, server.url() + "upload", params, new AsyncHttpResponseHandler() {
+            @Override
+            public void onProgress(long bytesWritten, long totalSize) {
+                progress.add(new long[]{bytesWritten, totalSize});
+            }
+
+            @Override
+            public void onSuccess(String content) {
+                result[0] = content;
+            }
+
+            @Override
+            public void onFinish() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Log.d(TAG, "chunked=" + chunked + ",progress callbacks=" + progress.size());
+        // 服务端还原的文件与原文件逐字节一致
+        assertEquals(fileMd5, result[0]);
+        for (int i = 1; i < progress.size(); i++) {
+            assertTrue(progress.get(i)[0] > progress.get(i - 1)[0]);
+        }
+        return progress;
+    }
+
+    private String md5OfFilePart(byte[] body, String boundary) throws Exception {
+        byte[] headerEnd = "\r\n\r\n".getBytes("UTF-8");
+        byte[] delimiter = ("\r\n--" + boundary).getBytes("UTF-8");
+        int filename = indexOf(body, "filename=".getBytes("UTF-8"), 0);
+        int start = indexOf(body, headerEnd, filename) + headerEnd.length;
+        int end = indexOf(body, delimiter, start);
+        return md5(body, start, end - start);
+    }
+
+    private static int indexOf(byte[] data, byte[] target, int from) {
+        outer:
+        for (int i = from; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static String md5(byte[] bytes, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(bytes, offset, length);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+public class RetryHandlerTest extends AndroidTestCase {
+    private static final String TAG = "RetryHandlerTest";
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean faulty;
+    private LocalHttpServer server;
+    private String url;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // 故障注入服务，faulty时读完请求直接断开连接
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.readRequest(socket.getInputStream());
+                requests.incrementAndGet();
+                if (!faulty) {
+                    LocalHttpServer.respond(socket, "ok");
+                }
+            }
+        });
+        url = server.url();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testBackoff() {
+        RetryHandler retryHandler = new RetryHandler(5);
+        retryHandler.setBackoff(100, 1000);
+        for (int i = 1; i <= 6; i++) {
+            long delay = Math.min(1000, 100L << (i - 1));
+            long sleepTime = retryHandler.getRetrySleepTime(i);
+            Log.d(TAG, "executionCount=" + i + ",sleepTime=" + sleepTime);
+            assertTrue(sleepTime >= delay / 2);
+            assertTrue(sleepTime <= delay);
+        }
+    }
+
+    public void testIdempotent() {
+        RetryHandler retryHandler = new RetryHandler(3);
+        IOException exception = new IOException("test");
+        RequestBody body = RequestBody.create(null, new byte[0]);
+        assertTrue(retryHandler.shouldRetry(new Request.Builder().url(url).get().build(), exception, 1));
+        assertTrue(retryHandler.shouldRetry(new Request.Builder().url(url).put(body).build(), exception, 1));
+        assertFalse(retryHandler.shouldRetry(new Request.Builder().url(url).post(body).build(), exception, 1));
+        assertFalse(retryHandler.shouldRetry(new Request.Builder().url(url).patch(body).build(), exception, 1));
+        assertTrue(retryHandler.shouldRetry(new Request.Builder().url(url).post(body)
+                .header(RetryHandler.HEADER_IDEMPOTENCY_KEY, "1").build(), exception, 1));
+    }
+
+    public void testCircuitBreaker() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setThreshold(4, 0.5f, 10000, 100);
+        String host = "127.0.0.1";
+        circuitBreaker.recordSuccess(host);
+        circuitBreaker.recordFailure(host);
+        circuitBreaker.recordSuccess(host);
+        assertEquals(CircuitBreaker.STATE_CLOSED, circuitBreaker.getState(host));
+        circuitBreaker.recordFailure(host);
+        assertEquals(CircuitBreaker.STATE_OPEN, circuitBreaker.getState(host));
+        assertFalse(circuitBreaker.allowRequest(host));
+
+        Thread.sleep(150);
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, circuitBreaker.getState(host));
+        // 只放行一个探测请求
+        assertTrue(circuitBreaker.allowRequest(host));
+        assertFalse(circuitBreaker.allowRequest(host));
+        circuitBreaker.recordSuccess(host);
+        assertEquals(CircuitBreaker.STATE_CLOSED, circuitBreaker.getState(host));
+    }
+
+    public void testRetryBudget() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setRetryBudget(2, 0.1f);
+        String host = "127.0.0.1";
+        assertTrue(circuitBreaker.acquireRetry(host));
+        assertTrue(circuitBreaker.acquireRetry(host));
+        assertFalse(circuitBreaker.acquireRetry(host));
+        for (int i = 0; i < 30; i++) {
+            circuitBreaker.recordSuccess(host);
+        }
+        assertTrue(circuitBreaker.acquireRetry(host));
+    }
+
+    public void testFaultInjection() throws InterruptedException {
+        AsyncHttpClient httpClient = AsyncHttpClient.build(TAG);
+        httpClient.getRetryHandler().setBackoff(10, 100);
+        httpClient.getRetryHandler().getCircuitBreaker().setThreshold(6, 0.5f, 60 * 1000, 60 * 1000);
+        faulty = true;
+
+        // GET重试3次
+        requests.set(0);
+        assertTrue(execute(httpClient, "GET", null) instanceof IOException);
+        assertEquals(4, requests.get());
+
+        // POST不重试
+        requests.set(0);
+        assertTrue(execute(httpClient, "POST", null) instanceof IOException);
+        assertEquals(1, requests.get());
+
+        // 失败率超过阈值后熔断，不再访问服务
+        execute(httpClient, "GET", null);
+        requests.set(0);
+        faulty = false;
+        assertTrue(execute(httpClient, "GET", null) instanceof CircuitOpenException);
+        assertEquals(0, requests.get());
+    }
+
+    private Throwable execute(AsyncHttpClient httpClient, String method, String idempotencyKey) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        Map<String, String> headers = new HashMap<>();
+        if (idempotencyKey != null) {
+            headers.put(RetryHandler.HEADER_IDEMPOTENCY_KEY, idempotencyKey);
+        }
+        httpClient.execMethod(method, this, url, headers, (Map<String, String>) null, new AsyncHttpResponseHandler() {
+            @Override
+            public void onFailure(Throwable e, String content) {
+                error[0] = e instanceof CircuitOpenException || e.getCause() == null ? e : e.getCause();
+            }
+
+            @Override
+            public void onFinish() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        // onFinish先于onFailure回调
+        Thread.sleep(50);
+        return error[0];
+    }
+}
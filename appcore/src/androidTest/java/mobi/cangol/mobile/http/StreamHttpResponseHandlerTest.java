@@ -0,0 +1,192 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.JsonReader;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class StreamHttpResponseHandlerTest extends AndroidTestCase {
+    private static final String TAG = "StreamHttpResponseHandlerTest";
+    private static final int ITEMS = 20000;
+    private LocalHttpServer server;
+    private byte[] body;
+    private OkHttpClient client;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        StringBuilder json = new StringBuilder("{\"list\":[");
+        for (int i = 0; i < ITEMS; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i).append(",\"name\":\"Jick\",\"desc\":\"streaming response item\"}");
+        }
+        json.append("]}");
+        body = json.toString().getBytes("UTF-8");
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.readRequest(socket.getInputStream());
+                LocalHttpServer.respond(socket, "200 OK", "Content-Type: application/json; charset=utf-8\r\n", body);
+            }
+        });
+        client = HttpClientFactory.createDefaultHttpClient();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testJsonStream() throws IOException {
+        final List<Integer> result = new ArrayList<>();
+        JsonStreamHttpResponseHandler<List<Integer>> handler = new JsonStreamHttpResponseHandler<List<Integer>>() {
+            @Override
+            protected List<Integer> readJson(JsonReader reader) throws IOException {
+                List<Integer> ids = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("list".equals(reader.nextName())) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                if ("id".equals(reader.nextName())) {
+                                    ids.add(reader.nextInt());
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return ids;
+            }
+
+            @Override
+            public void onStreamSuccess(int statusCode, List<Integer> ids) {
+                result.addAll(ids);
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(ITEMS, result.size());
+        assertEquals(ITEMS - 1, result.get(ITEMS - 1).intValue());
+    }
+
+    public void testMalformedJson() throws IOException {
+        final Throwable[] error = new Throwable[1];
+        JsonStreamHttpResponseHandler<String> handler = new JsonStreamHttpResponseHandler<String>() {
+            @Override
+            protected String readJson(JsonReader reader) throws IOException {
+                reader.beginArray();
+                return null;
+            }
+
+            @Override
+            public void onFailure(Throwable e, String content) {
+                error[0] = e;
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertTrue(error[0] instanceof IOException);
+    }
+
+    public void testChunked() throws IOException {
+        final long[] chunks = new long[2];
+        ChunkedHttpResponseHandler handler = new ChunkedHttpResponseHandler() {
+            @Override
+            protected void onChunk(byte[] buffer, int count) {
+                chunks[0] += count;
+            }
+
+            @Override
+            public void onStreamSuccess(int statusCode, Long total) {
+                chunks[1] = total;
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(body.length, chunks[0]);
+        assertEquals(body.length, chunks[1]);
+    }
+
+    public void testFile() throws IOException {
+        final File file = new File(getContext().getCacheDir(), TAG + ".json");
+        final File[] result = new File[1];
+        FileHttpResponseHandler handler = new FileHttpResponseHandler(file) {
+            @Override
+            public void onStreamSuccess(int statusCode, File file) {
+                result[0] = file;
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(file, result[0]);
+        assertEquals(body.length, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        file.delete();
+    }
+
+    /**
+     * 比较字符串+JSONObject解析与流式解析的耗时和内存增长
+     */
+    public void testBenchmark() throws Exception {
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long memory = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        JsonHttpResponseHandler jsonHandler = new JsonHttpResponseHandler() {
+            @Override
+            public void onSuccess(int statusCode, JSONObject response) {
+                assertEquals(ITEMS, response.optJSONArray("list").length());
+            }
+        };
+        jsonHandler.sendResponseMessage(execute());
+        Log.d(TAG, "string time=" + (System.nanoTime() - start) / 1000 + "us,memory="
+                + (runtime.totalMemory() - runtime.freeMemory() - memory) / 1024 + "KB");
+
+        System.gc();
+        memory = runtime.totalMemory() - runtime.freeMemory();
+        start = System.nanoTime();
+        JsonStreamHttpResponseHandler<Integer> streamHandler = new JsonStreamHttpResponseHandler<Integer>() {
+            @Override
+            protected Integer readJson(JsonReader reader) throws IOException {
+                int count = 0;
+                reader.beginObject();
+                reader.nextName();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                    count++;
+                }
+                return count;
+            }
+
+            @Override
+            public void onStreamSuccess(int statusCode, Integer count) {
+                assertEquals(ITEMS, count.intValue());
+            }
+        };
+        streamHandler.sendResponseMessage(execute());
+        Log.d(TAG, "stream time=" + (System.nanoTime() - start) / 1000 + "us,memory="
+                + (runtime.totalMemory() - runtime.freeMemory() - memory) / 1024 + "KB");
+    }
+
+    private Response execute() throws IOException {
+        return client.newCall(new Request.Builder().url(server.url()).build()).execute();
+    }
+}
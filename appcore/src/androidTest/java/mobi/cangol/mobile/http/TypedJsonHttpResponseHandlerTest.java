@@ -0,0 +1,91 @@
+package mobi.cangol.mobile.http;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class TypedJsonHttpResponseHandlerTest extends AndroidTestCase {
+    private static final String TAG = "TypedJsonHttpResponseHandlerTest";
+    private LocalHttpServer server;
+    private volatile String body;
+    private OkHttpClient client;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        server = LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.readRequest(socket.getInputStream());
+                LocalHttpServer.respond(socket, body);
+            }
+        });
+        client = HttpClientFactory.createDefaultHttpClient();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testObject() throws IOException {
+        body = "{\"id\":1,\"name\":\"Jick\"}";
+        final Item[] result = new Item[1];
+        TypedJsonHttpResponseHandler<Item> handler = new TypedJsonHttpResponseHandler<Item>(Item.class) {
+            @Override
+            public void onSuccess(Item item) {
+                result[0] = item;
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(1, result[0].id);
+        assertEquals("Jick", result[0].name);
+        assertTrue(handler.getNetworkTime() >= 0);
+        assertTrue(handler.getParseTime() >= 0);
+        Log.d(TAG, "network=" + handler.getNetworkTime() + "ms,parse=" + handler.getParseTime() + "ms");
+    }
+
+    public void testList() throws IOException {
+        body = "[{\"id\":1,\"name\":\"Jick\"},{\"id\":2,\"name\":\"Tom\"}]";
+        final int[] size = new int[1];
+        TypedJsonHttpResponseHandler<Item> handler = new TypedJsonHttpResponseHandler<Item>(Item.class) {
+            @Override
+            public void onSuccess(List<Item> items) {
+                size[0] = items.size();
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(2, size[0]);
+    }
+
+    public void testInvalid() throws IOException {
+        body = "error";
+        final String[] content = new String[1];
+        TypedJsonHttpResponseHandler<Item> handler = new TypedJsonHttpResponseHandler<Item>(Item.class) {
+            @Override
+            public void onFailure(Throwable error, String responseBody) {
+                content[0] = responseBody;
+            }
+        };
+        handler.sendResponseMessage(execute());
+        assertEquals(body, content[0]);
+    }
+
+    private Response execute() throws IOException {
+        return client.newCall(new Request.Builder().url(server.url()).build()).execute();
+    }
+
+    public static class Item {
+        private int id;
+        private String name;
+
+        public Item() {
+        }
+    }
+}
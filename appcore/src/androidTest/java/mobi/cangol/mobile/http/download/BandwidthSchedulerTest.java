@@ -0,0 +1,255 @@
+package mobi.cangol.mobile.http.download;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mobi.cangol.mobile.http.LocalHttpServer;
+import mobi.cangol.mobile.service.PoolManager;
+
+public class BandwidthSchedulerTest extends AndroidTestCase {
+    private static final String TAG = "BandwidthSchedulerTest";
+    private static final int KB = 1024;
+    private static final int CHUNK = 8 * KB;
+    private static final long WARMUP = 600L;
+    private static final long WINDOW = 2000L;
+    private BandwidthScheduler scheduler;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        scheduler = new BandwidthScheduler();
+    }
+
+    public void testWeights() throws Exception {
+        scheduler.setRate(1024 * KB);
+        BandwidthScheduler.Group upgrade = scheduler.getGroup("upgrade");
+        upgrade.setWeight(3);
+        BandwidthScheduler.Group media = scheduler.getGroup("media");
+        Flow[] flows = start(new Flow(upgrade.newTask("a"), 0), new Flow(media.newTask("b"), 0));
+        long[] rates = measure(flows);
+        stop(flows);
+        Log.d(TAG, "weights upgrade=" + rates[0] / KB + "KB/s,media=" + rates[1] / KB + "KB/s");
+        assertRate(768 * KB, rates[0]);
+        assertRate(256 * KB, rates[1]);
+    }
+
+    public void testLimits() throws Exception {
+        scheduler.setRate(1024 * KB);
+        BandwidthScheduler.Group upgrade = scheduler.getGroup("upgrade");
+        upgrade.setRate(200 * KB);
+        BandwidthScheduler.Group media = scheduler.getGroup("media");
+        media.setTaskRate("x", 100 * KB);
+        Flow[] flows = start(new Flow(upgrade.newTask("a"), 0), new Flow(media.newTask("x"), 0), new Flow(media.newTask("y"), 0));
+        long[] rates = measure(flows);
+        stop(flows);
+        Log.d(TAG, "limits upgrade=" + rates[0] / KB + "KB/s,x=" + rates[1] / KB + "KB/s,y=" + rates[2] / KB + "KB/s");
+        assertRate(200 * KB, rates[0]);
+        assertRate(100 * KB, rates[1]);
+        // 限速剩余的带宽分给其他任务
+        assertRate(724 * KB, rates[2]);
+    }
+
+    /**
+     * 受网络限制达不到分配速率的任务，剩余带宽分给其他任务
+     */
+    public void testDemand() throws Exception {
+        scheduler.setRate(1024 * KB);
+        BandwidthScheduler.Group upgrade = scheduler.getGroup("upgrade");
+        BandwidthScheduler.Group media = scheduler.getGroup("media");
+        Flow[] flows = start(new Flow(upgrade.newTask("a"), 200 * KB), new Flow(media.newTask("b"), 0));
+        long[] rates = measure(flows);
+        stop(flows);
+        Log.d(TAG, "demand upgrade=" + rates[0] / KB + "KB/s,media=" + rates[1] / KB + "KB/s");
+        assertRate(200 * KB, rates[0]);
+        // 为受限任务保留1.25倍实测速度的增长空间
+        assertRate(774 * KB, rates[1]);
+    }
+
+    public void testReconfigure() throws Exception {
+        scheduler.setRate(1024 * KB);
+        BandwidthScheduler.Group upgrade = scheduler.getGroup("upgrade");
+        BandwidthScheduler.Group media = scheduler.getGroup("media");
+        Flow[] flows = start(new Flow(upgrade.newTask("a"), 0), new Flow(media.newTask("b"), 0));
+        Thread.sleep(WARMUP);
+        long[] before = snapshot(flows);
+        Thread.sleep(WINDOW);
+        long[] rates = rates(before, snapshot(flows));
+        Log.d(TAG, "reconfigure before upgrade=" + rates[0] / KB + "KB/s,media=" + rates[1] / KB + "KB/s");
+        assertRate(512 * KB, rates[0]);
+        assertRate(512 * KB, rates[1]);
+
+        // 运行中修改总带宽和权重
+        scheduler.setRate(400 * KB);
+        upgrade.setWeight(3);
+        long[] rates2 = measure(flows);
+        Log.d(TAG, "reconfigure after upgrade=" + rates2[0] / KB + "KB/s,media=" + rates2[1] / KB + "KB/s");
+        assertRate(300 * KB, rates2[0]);
+        assertRate(100 * KB, rates2[1]);
+
+        // 取消限速
+        scheduler.setRate(0);
+        long[] rates3 = measure(flows);
+        stop(flows);
+        Log.d(TAG, "reconfigure unlimited upgrade=" + rates3[0] / KB + "KB/s,media=" + rates3[1] / KB + "KB/s");
+        assertTrue(rates3[0] > 4 * 1024 * KB);
+        assertTrue(rates3[1] > 4 * 1024 * KB);
+    }
+
+    /**
+     * 两个执行器同时从本地服务下载，总带宽按权重分配，高权重的先完成
+     */
+    public void testDownload() throws Exception {
+        final byte[] content = new byte[1536 * KB];
+        new Random(1).nextBytes(content);
+        LocalHttpServer server = startServer(content);
+        File upgradeFile = File.createTempFile(TAG, ".upgrade");
+        File mediaFile = File.createTempFile(TAG, ".media");
+        try {
+            scheduler.setRate(1024 * KB);
+            BandwidthScheduler.Group upgrade = scheduler.getGroup("upgrade");
+            upgrade.setWeight(3);
+            BandwidthScheduler.Group media = scheduler.getGroup("media");
+            String url = server.url() + "file.apk";
+            DownloadHttpClient.setThreadPool(PoolManager.buildPool(TAG + "Pool", 4));
+            AtomicLong start = new AtomicLong();
+            long[] upgradeTime = new long[1];
+            long[] mediaTime = new long[1];
+            CountDownLatch latch = new CountDownLatch(2);
+            download(upgrade, url, upgradeFile, start, upgradeTime, latch);
+            download(media, url, mediaFile, start, mediaTime, latch);
+            assertTrue(latch.await(20, TimeUnit.SECONDS));
+            Log.d(TAG, "download upgrade=" + upgradeTime[0] + "ms,media=" + mediaTime[0] + "ms");
+            assertEquals(content.length, upgradeFile.length());
+            assertEquals(content.length, mediaFile.length());
+            // upgrade约768KB/s，2s完成；之后media独占带宽，共3MB约3s
+            assertTrue(upgradeTime[0] > 1600 && upgradeTime[0] < 2600);
+            assertTrue(mediaTime[0] > 2600 && mediaTime[0] < 3800);
+        } finally {
+            server.close();
+            upgradeFile.delete();
+            mediaFile.delete();
+        }
+    }
+
+    /**
+     * @param start 首个下载开始读取数据的时间，不包括建立连接的耗时
+     */
+    private void download(BandwidthScheduler.Group group, String url, File saveFile, final AtomicLong start, final long[] time, final CountDownLatch latch) {
+        DownloadHttpClient downloadHttpClient = DownloadHttpClient.build(group.getName());
+        downloadHttpClient.setBandwidthGroup(group);
+        // 测试线程没有Looper，回调直接在下载线程执行
+        downloadHttpClient.send(group.getName(), url, new DownloadResponseHandler() {
+            @Override
+            public void onStart(long from, long length) {
+                start.compareAndSet(0, System.currentTimeMillis());
+            }
+
+            @Override
+            public void onFinish(long end) {
+                time[0] = System.currentTimeMillis() - start.get();
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error, String content) {
+                Log.d(TAG, "onFailure " + error + " " + content);
+            }
+        }, 0, saveFile.getPath());
+    }
+
+    private static void assertRate(long expected, long actual) {
+        assertTrue("expected " + expected + " actual " + actual, Math.abs(actual - expected) <= expected * 0.15);
+    }
+
+    private static Flow[] start(Flow... flows) {
+        for (Flow flow : flows) {
+            flow.start();
+        }
+        return flows;
+    }
+
+    private static void stop(Flow[] flows) throws InterruptedException {
+        for (Flow flow : flows) {
+            flow.interrupt();
+            flow.join();
+        }
+    }
+
+    private static long[] measure(Flow[] flows) throws InterruptedException {
+        Thread.sleep(WARMUP);
+        long[] before = snapshot(flows);
+        Thread.sleep(WINDOW);
+        return rates(before, snapshot(flows));
+    }
+
+    private static long[] snapshot(Flow[] flows) {
+        long[] bytes = new long[flows.length];
+        for (int i = 0; i < flows.length; i++) {
+            bytes[i] = flows[i].bytes.get();
+        }
+        return bytes;
+    }
+
+    private static long[] rates(long[] before, long[] after) {
+        long[] rates = new long[before.length];
+        for (int i = 0; i < before.length; i++) {
+            rates[i] = (after[i] - before[i]) * 1000L / WINDOW;
+        }
+        return rates;
+    }
+
+    /**
+     * 模拟读取循环，每次读取一个CHUNK后扣除令牌，pace大于0时模拟受网络限制的连接
+     */
+    private static class Flow extends Thread {
+        private final BandwidthScheduler.Task task;
+        private final long pace;
+        private final AtomicLong bytes = new AtomicLong();
+
+        Flow(BandwidthScheduler.Task task, long pace) {
+            this.task = task;
+            this.pace = pace;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                while (!isInterrupted()) {
+                    if (pace > 0) {
+                        final long due = start + bytes.get() * 1000000000L / pace;
+                        final long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                    }
+                    task.acquire(CHUNK);
+                    bytes.addAndGet(CHUNK);
+                }
+            } catch (InterruptedException | IOException e) {
+                // stop
+            }
+        }
+    }
+
+    /**
+     * 不限速的文件服务，带宽只受调度器限制
+     */
+    private LocalHttpServer startServer(final byte[] content) throws IOException {
+        return LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                LocalHttpServer.readRequest(socket.getInputStream());
+                LocalHttpServer.respond(socket, "200 OK", "", content);
+            }
+        });
+    }
+}
@@ -0,0 +1,298 @@
+package mobi.cangol.mobile.http.download;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mobi.cangol.mobile.http.LocalHttpServer;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+public class DownloadFileWriterTest extends AndroidTestCase {
+    private static final String TAG = "DownloadFileWriterTest";
+    private static final int BENCHMARK_SIZE = 16 * 1024 * 1024;
+    private static final int TRANSFER_SIZE = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 8192;
+    private File saveFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        saveFile = File.createTempFile(TAG, ".tmp");
+    }
+
+    public void tearDown() throws Exception {
+        saveFile.delete();
+        super.tearDown();
+    }
+
+    public void testCheckpoint() throws Exception {
+        byte[] data = random(200 * 1024, 1);
+        DownloadFileWriter writer = new DownloadFileWriter(saveFile.getPath(), 0);
+        Buffer source = new Buffer().write(data);
+        assertEquals(1000, writer.transferFrom(source, 1000));
+        assertEquals(1000, writer.getPosition());
+        assertEquals(0, writer.getDurablePosition());
+        assertEquals(1000, writer.checkpoint());
+        assertEquals(1000, saveFile.length());
+        while (writer.transferFrom(source, 8192) != -1) {
+            // transfer all
+        }
+        writer.close();
+        assertEquals(data.length, writer.getDurablePosition());
+        assertTrue(Arrays.equals(data, read(saveFile)));
+
+        // 续传时丢弃未确认落盘的部分
+        writer = new DownloadFileWriter(saveFile.getPath(), 1000);
+        writer.truncate();
+        writer.close();
+        assertEquals(1000, saveFile.length());
+    }
+
+    public void testInterrupted() throws Exception {
+        byte[] data = random(100 * 1024, 2);
+        DownloadFileWriter writer = new DownloadFileWriter(saveFile.getPath(), 0);
+        writer.transferFrom(new Buffer().write(data), data.length);
+        // 下载停止时线程已中断，close仍需写入已下载的数据
+        Thread.currentThread().interrupt();
+        writer.close();
+        assertTrue(Thread.interrupted());
+        assertEquals(data.length, writer.getDurablePosition());
+        assertTrue(Arrays.equals(data, read(saveFile)));
+    }
+
+    /**
+     * 本地文件在上次持久化的进度之后还有未确认落盘的数据，续传时从进度处覆盖
+     */
+    public void testResume() throws Exception {
+        final byte[] content = random(300 * 1024, 3);
+        final int from = 100 * 1024;
+        RandomAccessFile file = new RandomAccessFile(saveFile, "rw");
+        file.write(content, 0, from);
+        file.write(random(50 * 1024, 4));
+        file.close();
+
+        LocalHttpServer server = startServer(content);
+        try {
+            DownloadHttpClient downloadHttpClient = DownloadHttpClient.build(TAG);
+            final CountDownLatch latch = new CountDownLatch(1);
+            final long[] result = new long[2];
+            // 测试线程没有Looper，回调直接在下载线程执行
+            downloadHttpClient.send(TAG, server.url() + "file.apk", new DownloadResponseHandler() {
+                @Override
+                public void onStart(long start, long length) {
+                    result[0] = start;
+                    result[1] = length;
+                }
+
+                @Override
+                public void onFinish(long end) {
+                    latch.countDown();
+                }
+            }, from, saveFile.getPath());
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(from, result[0]);
+            assertEquals(content.length, result[1]);
+            assertTrue(Arrays.equals(content, read(saveFile)));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * 本地磁盘上"rwd"同步写入与缓冲写入(每500ms checkpoint)的写入速度对比
+     */
+    public void testBenchmark() throws Exception {
+        byte[] block = random(BLOCK_SIZE, 5);
+
+        long start = System.nanoTime();
+        RandomAccessFile file = new RandomAccessFile(saveFile, "rwd");
+        for (int i = 0; i < BENCHMARK_SIZE / BLOCK_SIZE; i++) {
+            file.write(block);
+        }
+        file.close();
+        double rwd = speed(start);
+        saveFile.delete();
+
+        start = System.nanoTime();
+        DownloadFileWriter writer = new DownloadFileWriter(saveFile.getPath(), 0);
+        BufferedSource source = Okio.buffer(generate(block, BENCHMARK_SIZE));
+        long checkpointTime = System.currentTimeMillis();
+        while (writer.transferFrom(source, BLOCK_SIZE) != -1) {
+            if (System.currentTimeMillis() - checkpointTime > 500L) {
+                writer.checkpoint();
+                checkpointTime = System.currentTimeMillis();
+            }
+        }
+        writer.close();
+        double buffered = speed(start);
+
+        Log.d(TAG, "size=" + BENCHMARK_SIZE + ",rwd=" + rwd + "MB/s,buffered=" + buffered + "MB/s");
+        assertEquals(BENCHMARK_SIZE, saveFile.length());
+        assertTrue(buffered > rwd);
+    }
+
+    /**
+     * byte[]循环复制与okio Segment直接写入的CPU耗时和内存分配对比，
+     * 数据源模拟OkHttp的BufferedSource，分配字节数只在支持ThreadMXBean的JVM上统计
+     */
+    public void testTransferBenchmark() throws Exception {
+        byte[] data = random(BLOCK_SIZE, 6);
+        // 预热
+        copyByArray(data, BENCHMARK_SIZE, new long[2]);
+        transfer(data, BENCHMARK_SIZE, new long[2]);
+
+        // 交替执行取最小值，减少页缓存回写带来的波动
+        long[] array = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] transfer = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] result = new long[2];
+        for (int i = 0; i < 3; i++) {
+            copyByArray(data, TRANSFER_SIZE, result);
+            array[0] = Math.min(array[0], result[0]);
+            array[1] = Math.min(array[1], result[1]);
+            transfer(data, TRANSFER_SIZE, result);
+            transfer[0] = Math.min(transfer[0], result[0]);
+            transfer[1] = Math.min(transfer[1], result[1]);
+        }
+
+        int mb = TRANSFER_SIZE / 1024 / 1024;
+        Log.d(TAG, "size=" + TRANSFER_SIZE
+                + ",array=" + array[0] / 1000 / mb + "us/MB," + array[1] / mb + "B/MB"
+                + ",transfer=" + transfer[0] / 1000 / mb + "us/MB," + transfer[1] / mb + "B/MB");
+        assertEquals(TRANSFER_SIZE, saveFile.length());
+        if (array[1] >= 0) {
+            assertTrue(transfer[1] <= array[1]);
+        }
+    }
+
+    /**
+     * 原来的写入方式，byteStream读入byte[]再写入文件
+     *
+     * @param result 耗时纳秒和分配字节数，不包括落盘
+     */
+    private void copyByArray(byte[] data, int size, long[] result) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(saveFile, "rw");
+        file.setLength(0);
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        InputStream inputStream = Okio.buffer(generate(data, size)).inputStream();
+        byte[] block = new byte[BLOCK_SIZE];
+        int readCount;
+        while ((readCount = inputStream.read(block, 0, BLOCK_SIZE)) != -1) {
+            file.write(block, 0, readCount);
+        }
+        result[0] = System.nanoTime() - start;
+        result[1] = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        file.close();
+    }
+
+    /**
+     * @param result 耗时纳秒和分配字节数，不包括落盘
+     */
+    private void transfer(byte[] data, int size, long[] result) throws IOException {
+        DownloadFileWriter writer = new DownloadFileWriter(saveFile.getPath(), 0);
+        writer.truncate();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        BufferedSource source = Okio.buffer(generate(data, size));
+        while (writer.transferFrom(source, BLOCK_SIZE) != -1) {
+            // transfer all
+        }
+        writer.flush();
+        result[0] = System.nanoTime() - start;
+        result[1] = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        writer.close();
+    }
+
+    /**
+     * 模拟网络数据源，每次最多读取一个Segment
+     */
+    private static Source generate(final byte[] data, final int size) {
+        return new Source() {
+            private int remaining = size;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int count = (int) Math.min(Math.min(byteCount, data.length), remaining);
+                sink.write(data, 0, count);
+                remaining -= count;
+                return count;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return Timeout.NONE;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // nothing
+            }
+        };
+    }
+
+    /**
+     * 当前线程已分配的字节数，不支持时返回-1
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static double speed(long startNanos) {
+        return BENCHMARK_SIZE / 1024.0 / 1024.0 / ((System.nanoTime() - startNanos) / 1000000000.0);
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        int read = 0;
+        while (read < bytes.length) {
+            read += in.read(bytes, read, bytes.length - read);
+        }
+        in.close();
+        return bytes;
+    }
+
+    /**
+     * 支持"Range: bytes=start-"的文件服务
+     */
+    private LocalHttpServer startServer(final byte[] content) throws IOException {
+        return LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                String range = LocalHttpServer.readRequest(socket.getInputStream()).header("range");
+                int start = range == null ? 0 : Integer.parseInt(range.substring(range.indexOf('=') + 1, range.indexOf('-')));
+                LocalHttpServer.respond(socket, "206 Partial Content", "Content-Range: bytes " + start + "-" + (content.length - 1) + "/" + content.length + "\r\n",
+                        Arrays.copyOfRange(content, start, content.length));
+            }
+        });
+    }
+}
@@ -0,0 +1,255 @@
+package mobi.cangol.mobile.http.download;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mobi.cangol.mobile.http.LocalHttpServer;
+import mobi.cangol.mobile.service.PoolManager;
+
+public class SegmentDownloadThreadTest extends AndroidTestCase {
+    private static final String TAG = "SegmentDownloadThreadTest";
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    /**
+     * 单连接限速，模拟单个TCP连接吞吐受限的网络
+     */
+    private static final int RATE = 512 * 1024;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger maxConnections = new AtomicInteger();
+    private volatile boolean rangeSupported = true;
+    private volatile String etag = "\"v1\"";
+    private byte[] content;
+    private LocalHttpServer server;
+    private String url;
+    private File saveFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        server = startServer();
+        url = server.url() + "file.apk";
+        saveFile = File.createTempFile(TAG, ".tmp");
+        saveFile.delete();
+    }
+
+    public void tearDown() throws Exception {
+        server.close();
+        saveFile.delete();
+        new File(saveFile.getPath() + SegmentDownloadThread.SUFFIX_STATE).delete();
+        super.tearDown();
+    }
+
+    public void testSegmented() throws Exception {
+        DownloadHttpClient downloadHttpClient = build(4);
+        Result result = download(downloadHttpClient, 0);
+        Log.d(TAG, "time=" + result.time + ",maxConnections=" + maxConnections.get());
+        assertEquals(FILE_SIZE, result.end);
+        assertTrue(maxConnections.get() > 1);
+        assertTrue(Arrays.equals(md5(content), md5(saveFile)));
+        assertFalse(SegmentDownloadThread.hasState(saveFile.getPath()));
+    }
+
+    public void testResume() throws Exception {
+        DownloadHttpClient downloadHttpClient = build(4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] stop = new long[1];
+        downloadHttpClient.send(TAG, url, new DownloadResponseHandler() {
+            @Override
+            public void onStop(long end) {
+                stop[0] = end;
+                latch.countDown();
+            }
+        }, 0, saveFile.getPath());
+        Thread.sleep(1500);
+        downloadHttpClient.cancelRequests(TAG, true);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Log.d(TAG, "stop=" + stop[0]);
+        assertTrue(stop[0] > 0 && stop[0] < FILE_SIZE);
+        assertTrue(SegmentDownloadThread.hasState(saveFile.getPath()));
+        // 停止回调时所有连接都已结束，之后文件和分段状态不再变化
+        File stateFile = new File(saveFile.getPath() + SegmentDownloadThread.SUFFIX_STATE);
+        byte[] fileMd5 = md5(saveFile);
+        byte[] stateMd5 = md5(stateFile);
+        Thread.sleep(500);
+        assertTrue(Arrays.equals(fileMd5, md5(saveFile)));
+        assertTrue(Arrays.equals(stateMd5, md5(stateFile)));
+
+        // 单连接模式下发现分段状态，继续按分段续传
+        Result result = download(build(1), stop[0]);
+        assertTrue(result.start > 0);
+        assertEquals(FILE_SIZE, result.end);
+        assertTrue(Arrays.equals(md5(content), md5(saveFile)));
+        assertFalse(SegmentDownloadThread.hasState(saveFile.getPath()));
+    }
+
+    public void testChanged() throws Exception {
+        DownloadHttpClient downloadHttpClient = build(4);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] stop = new long[1];
+        downloadHttpClient.send(TAG, url, new DownloadResponseHandler() {
+            @Override
+            public void onStop(long end) {
+                stop[0] = end;
+                latch.countDown();
+            }
+        }, 0, saveFile.getPath());
+        Thread.sleep(1000);
+        downloadHttpClient.cancelRequests(TAG, true);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        // 服务端文件变化，If-Range不匹配，从头下载
+        content = content.clone();
+        new Random(2).nextBytes(content);
+        etag = "\"v2\"";
+        Result result = download(build(4), stop[0]);
+        assertEquals(0, result.start);
+        assertTrue(Arrays.equals(md5(content), md5(saveFile)));
+    }
+
+    public void testFallback() throws Exception {
+        rangeSupported = false;
+        download(build(4), 0);
+        // 首个请求发现不支持Range后单连接重新请求
+        assertEquals(2, requests.get());
+        assertTrue(Arrays.equals(md5(content), md5(saveFile)));
+        assertFalse(SegmentDownloadThread.hasState(saveFile.getPath()));
+    }
+
+    /**
+     * 单连接限速时单连接下载与分段下载的耗时对比
+     */
+    public void testBenchmark() throws Exception {
+        Result single = download(build(1), 0);
+        saveFile.delete();
+        Result segmented = download(build(4), 0);
+        Log.d(TAG, "size=" + FILE_SIZE + ",rate=" + RATE + ",single=" + single.time + "ms,segmented=" + segmented.time + "ms,maxConnections=" + maxConnections.get());
+        assertTrue(Arrays.equals(md5(content), md5(saveFile)));
+        assertTrue(segmented.time < single.time);
+    }
+
+    private DownloadHttpClient build(int maxSegments) {
+        DownloadHttpClient downloadHttpClient = DownloadHttpClient.build(TAG);
+        DownloadHttpClient.setThreadPool(PoolManager.buildPool(TAG + "Pool", 5));
+        downloadHttpClient.setMaxSegments(maxSegments);
+        return downloadHttpClient;
+    }
+
+    private Result download(DownloadHttpClient downloadHttpClient, long from) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Result result = new Result();
+        long start = System.currentTimeMillis();
+        // 测试线程没有Looper，回调直接在下载线程执行
+        downloadHttpClient.send(TAG, url, new DownloadResponseHandler() {
+            @Override
+            public void onStart(long start, long length) {
+                result.start = start;
+            }
+
+            @Override
+            public void onFinish(long end) {
+                result.end = end;
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error, String content) {
+                Log.d(TAG, "onFailure " + error + " " + content);
+                latch.countDown();
+            }
+        }, from, saveFile.getPath());
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        result.time = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    private static byte[] md5(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(bytes);
+    }
+
+    private static byte[] md5(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream in = new FileInputStream(file);
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+        in.close();
+        return digest.digest();
+    }
+
+    /**
+     * 支持Range和If-Range的限速文件服务
+     */
+    private LocalHttpServer startServer() throws IOException {
+        return LocalHttpServer.start(new LocalHttpServer.Handler() {
+            @Override
+            public void serve(Socket socket) throws Exception {
+                requests.incrementAndGet();
+                final int current = connections.incrementAndGet();
+                synchronized (maxConnections) {
+                    maxConnections.set(Math.max(maxConnections.get(), current));
+                }
+                try {
+                    serveFile(socket, LocalHttpServer.readRequest(socket.getInputStream()));
+                } finally {
+                    connections.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void serveFile(Socket socket, LocalHttpServer.Request request) throws Exception {
+        final String range = request.header("range");
+        final String ifRange = request.header("if-range");
+        final byte[] data = content;
+        int start = 0;
+        int end = data.length - 1;
+        String status = "200 OK";
+        String headers = "ETag: " + etag + "\r\n";
+        if (rangeSupported && range != null && (ifRange == null || ifRange.equals(etag))) {
+            String[] bytes = range.substring(range.indexOf('=') + 1).split("-", -1);
+            start = Integer.parseInt(bytes[0]);
+            if (!bytes[1].isEmpty()) {
+                end = Math.min(end, Integer.parseInt(bytes[1]));
+            }
+            if (start >= data.length) {
+                LocalHttpServer.respond(socket, "416 Range Not Satisfiable",
+                        "Content-Range: bytes */" + data.length + "\r\n", new byte[0]);
+                return;
+            }
+            status = "206 Partial Content";
+            headers += "Content-Range: bytes " + start + "-" + end + "/" + data.length + "\r\n";
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + (end - start + 1)
+                + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        final int chunk = 4096;
+        final long chunkTime = chunk * 1000L / RATE;
+        for (int offset = start; offset <= end; offset += chunk) {
+            out.write(data, offset, Math.min(chunk, end - offset + 1));
+            out.flush();
+            Thread.sleep(chunkTime);
+        }
+    }
+
+    private static class Result {
+        long start;
+        long end;
+        long time;
+    }
+}
@@ -0,0 +1,195 @@
+package mobi.cangol.mobile.service;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PoolManagerTest extends AndroidTestCase {
+    private static final String TAG = "PoolManagerTest";
+    private static final long TASK_MILLIS = 50;
+    private static final int BACKGROUND_TASKS = 40;
+    private static final int FOREGROUND_TASKS = 10;
+
+    public void tearDown() throws Exception {
+        PoolManager.closeAll();
+        super.tearDown();
+    }
+
+    public void testPriority() throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + "priority", 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(blocker);
+            }
+        });
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(pool.submit(record(order, PoolManager.PRIORITY_BACKGROUND), PoolManager.PRIORITY_BACKGROUND));
+        futures.add(pool.submit(record(order, PoolManager.PRIORITY_NORMAL), PoolManager.PRIORITY_NORMAL));
+        futures.add(pool.submit(record(order, PoolManager.PRIORITY_IMMEDIATE), PoolManager.PRIORITY_IMMEDIATE));
+        blocker.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(Arrays.asList(PoolManager.PRIORITY_IMMEDIATE, PoolManager.PRIORITY_NORMAL, PoolManager.PRIORITY_BACKGROUND), order);
+    }
+
+    public void testFifo() throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + "fifo", 1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(pool.submit(record(order, i)));
+        }
+        for (Future future : futures) {
+            future.get();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+    }
+
+    public void testAging() throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + "aging", 1);
+        pool.setAging(10);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(blocker);
+            }
+        });
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        Future<?> background = pool.submit(record(order, PoolManager.PRIORITY_BACKGROUND), PoolManager.PRIORITY_BACKGROUND);
+        Thread.sleep(100);
+        Future<?> immediate = pool.submit(record(order, PoolManager.PRIORITY_IMMEDIATE), PoolManager.PRIORITY_IMMEDIATE);
+        blocker.countDown();
+        background.get();
+        immediate.get();
+        // 后台任务等待超过老化时间，排在新提交的高优先级任务之前
+        assertEquals(Arrays.asList(PoolManager.PRIORITY_BACKGROUND, PoolManager.PRIORITY_IMMEDIATE), order);
+    }
+
+    public void testBackgroundCap() throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + "cap", 4);
+        pool.setMaxBackground(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    sleep(10);
+                    running.decrementAndGet();
+                }
+            }, PoolManager.PRIORITY_BACKGROUND));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(1, maxRunning.get());
+    }
+
+    /**
+     * close后等待中的后台任务被取消，计数归零，替换线程池后仍可提交后台任务
+     */
+    public void testCloseBackground() throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + "close", 1);
+        pool.setMaxBackground(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(blocker);
+            }
+        }, PoolManager.PRIORITY_BACKGROUND);
+        Future<?> pending = pool.submit(record(new ArrayList<Integer>(), 0), PoolManager.PRIORITY_BACKGROUND);
+        pool.close(true);
+        assertTrue(pending.isCancelled());
+
+        pool.setExecutorService(new PoolManager.PriorityThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, Executors.defaultThreadFactory()));
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        pool.submit(record(order, PoolManager.PRIORITY_BACKGROUND), PoolManager.PRIORITY_BACKGROUND).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(PoolManager.PRIORITY_BACKGROUND), order);
+    }
+
+    /**
+     * 后台负载下前台任务的等待时间，FIFO(全部NORMAL)与优先级调度对比
+     */
+    public void testBenchmark() throws Exception {
+        long fifo = benchmark("fifo", PoolManager.PRIORITY_NORMAL, PoolManager.PRIORITY_NORMAL);
+        long priority = benchmark("priority", PoolManager.PRIORITY_BACKGROUND, PoolManager.PRIORITY_IMMEDIATE);
+        assertTrue(priority < fifo);
+    }
+
+    private long benchmark(String name, int backgroundPriority, int foregroundPriority) throws Exception {
+        PoolManager.Pool pool = PoolManager.buildPool(TAG + name, 2);
+        for (int i = 0; i < BACKGROUND_TASKS; i++) {
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    sleep(TASK_MILLIS);
+                }
+            }, backgroundPriority);
+        }
+        final long[] latency = new long[FOREGROUND_TASKS];
+        final List<Future<?>> futures = new ArrayList<>();
+        // 全部提交后再等待，每个前台任务都排在已提交的后台任务之后
+        for (int i = 0; i < FOREGROUND_TASKS; i++) {
+            final int index = i;
+            final long submitted = System.nanoTime();
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    latency[index] = (System.nanoTime() - submitted) / 1000000;
+                }
+            }, foregroundPriority));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.close(true);
+        Arrays.sort(latency);
+        Log.d(TAG, name + " foreground p50=" + latency[FOREGROUND_TASKS / 2] + "ms,max=" + latency[FOREGROUND_TASKS - 1] + "ms");
+        return latency[FOREGROUND_TASKS / 2];
+    }
+
+    private Runnable record(final List<Integer> order, final int value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(value);
+            }
+        };
+    }
+
+    private void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package mobi.cangol.mobile.service.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import mobi.cangol.mobile.utils.Object2FileUtils;
+
+public class BinaryCacheCodecTest extends AndroidTestCase {
+    private static final String TAG = "BinaryCacheCodecTest";
+    private static final int TIMES = 1000;
+    private BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    public void testString() throws IOException {
+        CacheObject cacheObject = decode(encode(new CacheObject(TAG, "string", "{\"name\":\"Jick\"}", CacheObject.TIME_HOUR)));
+        assertEquals("{\"name\":\"Jick\"}", cacheObject.getObject());
+        assertEquals(CacheObject.TIME_HOUR, cacheObject.getPeriod());
+        assertEquals(TAG, cacheObject.getGroup());
+        assertEquals("string", cacheObject.getId());
+    }
+
+    public void testBytes() throws IOException {
+        CacheObject cacheObject = decode(encode(new CacheObject(TAG, "bytes", new byte[]{1, 2, 3})));
+        assertEquals(3, ((byte[]) cacheObject.getObject()).length);
+    }
+
+    public void testCorruptLength() throws IOException {
+        byte[] bytes = encode(new CacheObject(TAG, "string", "abc"));
+        // 把payload长度改为Integer.MAX_VALUE
+        int offset = bytes.length - 3 - 4;
+        bytes[offset] = 0x7f;
+        bytes[offset + 1] = (byte) 0xff;
+        bytes[offset + 2] = (byte) 0xff;
+        bytes[offset + 3] = (byte) 0xff;
+        try {
+            decode(bytes);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSerializable() throws IOException {
+        CacheObject cacheObject = decode(encode(new CacheObject(TAG, "user", new User(1, "Jick", "12"))));
+        assertEquals("Jick", ((User) cacheObject.getObject()).getName());
+    }
+
+    public void testLegacy() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Object2FileUtils.writeObject(new CacheObject(TAG, "legacy", "legacy"), out);
+        CacheObject cacheObject = decode(out.toByteArray());
+        assertEquals("legacy", cacheObject.getObject());
+    }
+
+    public void testBenchmark() throws IOException {
+        StringBuilder json = new StringBuilder();
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"Jick\"},");
+            users.add(new User(i, "Jick", "12"));
+        }
+        benchmark("string", json.toString());
+        benchmark("list", users);
+    }
+
+    private void benchmark(String name, Serializable data) throws IOException {
+        CacheObject cacheObject = new CacheObject(TAG, name, data);
+        byte[] binary = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            binary = encode(cacheObject);
+        }
+        long binaryEncode = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            decode(binary);
+        }
+        long binaryDecode = System.nanoTime() - start;
+
+        ByteArrayOutputStream out = null;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            out = new ByteArrayOutputStream();
+            Object2FileUtils.writeObject(cacheObject, out);
+        }
+        long serialEncode = System.nanoTime() - start;
+        byte[] serial = out.toByteArray();
+        start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            Object2FileUtils.readObject(new ByteArrayInputStream(serial));
+        }
+        long serialDecode = System.nanoTime() - start;
+
+        Log.d(TAG, name + " binary encode=" + binaryEncode / TIMES + "ns,decode=" + binaryDecode / TIMES + "ns,bytes=" + binary.length);
+        Log.d(TAG, name + " serial encode=" + serialEncode / TIMES + "ns,decode=" + serialDecode / TIMES + "ns,bytes=" + serial.length);
+    }
+
+    private byte[] encode(CacheObject cacheObject) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(cacheObject, out);
+        return out.toByteArray();
+    }
+
+    private CacheObject decode(byte[] bytes) throws IOException {
+        return codec.decode(new ByteArrayInputStream(bytes));
+    }
+}
@@ -1,11 +1,18 @@
 package mobi.cangol.mobile.service.cache;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.test.ApplicationTestCase;
 
 import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mobi.cangol.mobile.CoreApplication;
 import mobi.cangol.mobile.service.AppService;
+import mobi.cangol.mobile.service.ServiceProperty;
 
 /**
  * Created by weixuewu on 16/6/11.
@@ -42,6 +49,169 @@ public class CacheManagerTest extends ApplicationTestCase<CoreApplication> {
         });
     }
 
+    public void testGetContentCoalesced() throws InterruptedException {
+        final String context = TAG + "Coalesced";
+        final int requests = 10;
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        cacheManager.registerLoader(context, new ContentLoader() {
+            @Override
+            public Serializable load(String context, String id) {
+                loads.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return new User(1, "Jick", "12");
+            }
+        }, CacheObject.TIME_MIN);
+        cacheManager.removeContent(context, "user");
+        final long coalesced = cacheManager.getCacheStats(context).getCoalescedLoadCount();
+        final AtomicInteger callbacks = new AtomicInteger();
+        final CountDownLatch returned = new CountDownLatch(requests);
+        // Task的结果回调需要Looper
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < requests; i++) {
+                    cacheManager.getContent(context, "user", new CacheLoader() {
+                        @Override
+                        public void loading() {
+
+                        }
+
+                        @Override
+                        public void returnContent(Object content) {
+                            if (content != null) {
+                                callbacks.incrementAndGet();
+                            }
+                            returned.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        // 所有请求登记后再让加载完成
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                release.countDown();
+            }
+        });
+        try {
+            assertTrue(returned.await(10, TimeUnit.SECONDS));
+            assertEquals(requests, callbacks.get());
+            assertEquals(1, loads.get());
+            assertEquals(coalesced + requests - 1, cacheManager.getCacheStats(context).getCoalescedLoadCount());
+        } finally {
+            thread.quit();
+            cacheManager.unregisterLoader(context);
+            cacheManager.removeContext(context);
+        }
+    }
+
+    /**
+     * 合并的请求在各自调用线程的Looper上得到结果
+     */
+    public void testGetContentCoalescedLooper() throws InterruptedException {
+        final String context = TAG + "Looper";
+        final CountDownLatch release = new CountDownLatch(1);
+        cacheManager.registerLoader(context, new ContentLoader() {
+            @Override
+            public Serializable load(String context, String id) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                return new User(1, "Jick", "12");
+            }
+        }, CacheObject.TIME_MIN);
+        cacheManager.removeContent(context, "user");
+        final HandlerThread[] threads = {new HandlerThread(TAG + 0), new HandlerThread(TAG + 1)};
+        final AtomicInteger sameLooper = new AtomicInteger();
+        final CountDownLatch requested = new CountDownLatch(threads.length);
+        final CountDownLatch returned = new CountDownLatch(threads.length);
+        try {
+            for (final HandlerThread thread : threads) {
+                thread.start();
+                new Handler(thread.getLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        cacheManager.getContent(context, "user", new CacheLoader() {
+                            @Override
+                            public void loading() {
+
+                            }
+
+                            @Override
+                            public void returnContent(Object content) {
+                                if (content != null && Looper.myLooper() == thread.getLooper()) {
+                                    sameLooper.incrementAndGet();
+                                }
+                                returned.countDown();
+                            }
+                        });
+                        requested.countDown();
+                    }
+                });
+            }
+            assertTrue(requested.await(5, TimeUnit.SECONDS));
+            release.countDown();
+            assertTrue(returned.await(10, TimeUnit.SECONDS));
+            assertEquals(threads.length, sameLooper.get());
+        } finally {
+            for (final HandlerThread thread : threads) {
+                thread.quit();
+            }
+            cacheManager.unregisterLoader(context);
+            cacheManager.removeContext(context);
+        }
+    }
+
+    public void testRegisterLoader() {
+        cacheManager.registerLoader(TAG, new ContentLoader() {
+            @Override
+            public Serializable load(String context, String id) {
+                return new User(1, "Jick", "12");
+            }
+        }, CacheObject.TIME_MIN);
+        cacheManager.removeContent(TAG, "loader");
+        assertNotNull(cacheManager.getContent(TAG, "loader"));
+        cacheManager.unregisterLoader(TAG);
+        cacheManager.removeContent(TAG, "loader");
+        assertNull(cacheManager.getContent(TAG, "loader"));
+    }
+
+    public void testCacheStats() {
+        final String context = TAG + "Stats";
+        final CacheStats before = cacheManager.getCacheStats(context);
+        cacheManager.addContent(context, "stats", "stats");
+        assertEquals("stats", cacheManager.getContent(context, "stats"));
+        assertNull(cacheManager.getContent(context, "missing"));
+        final CacheStats after = cacheManager.getCacheStats(context);
+        assertEquals(before.getMemoryHitCount() + 1, after.getMemoryHitCount());
+        assertEquals(before.getMissCount() + 1, after.getMissCount());
+        assertTrue(cacheManager.getAllCacheStats().containsKey(context));
+        assertTrue(cacheManager.getCacheStats().getRequestCount() >= after.getRequestCount());
+    }
+
+    public void testCacheStatsRemoveContext() {
+        final String context = TAG + "StatsRemove";
+        cacheManager.addContent(context, "stats", "stats");
+        assertEquals("stats", cacheManager.getContent(context, "stats"));
+        final long requests = cacheManager.getCacheStats().getRequestCount();
+        cacheManager.removeContext(context);
+        // context的统计被移除，计数仍保留在合计中
+        assertFalse(cacheManager.getAllCacheStats().containsKey(context));
+        assertEquals(0, cacheManager.getCacheStats(context).getRequestCount());
+        assertTrue(cacheManager.getCacheStats().getRequestCount() >= requests);
+    }
+
     public void testHasContent() {
         cacheManager.hasContent(TAG,"user");
     }
@@ -75,6 +245,73 @@ public class CacheManagerTest extends ApplicationTestCase<CoreApplication> {
         cacheManager.clearCache();
     }
 
+    /**
+     * 内存缓存只有1字节，getContent每次都从磁盘缓存读取并反序列化，
+     * 比较并发读取与旧实现(所有磁盘读取共用一把锁)的吞吐量，只记录结果
+     */
+    public void testConcurrentRead() throws InterruptedException {
+        final CacheManagerImpl manager = new CacheManagerImpl();
+        manager.onCreate(coreApplication);
+        final ServiceProperty serviceProperty = manager.defaultServiceProperty();
+        serviceProperty.putString(CacheManager.CACHE_DIR, TAG);
+        serviceProperty.putInt(CacheManager.MEMORY_SIZE, 1);
+        manager.init(serviceProperty);
+        for (int i = 0; i < 64; i++) {
+            manager.addContent(TAG, "user" + i, new User(i, "Jick", "12"));
+        }
+        // 等待异步写入磁盘缓存完成
+        for (int i = 0; i < 64; i++) {
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while (!manager.hasContent(TAG, "user" + i)) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+        for (final int threads : new int[]{1, 4, 8}) {
+            final int locked = concurrentRead(manager, threads, new Object());
+            final int unlocked = concurrentRead(manager, threads, null);
+            android.util.Log.d(TAG, "threads=" + threads + ",baseline reads/s=" + locked + ",reads/s=" + unlocked + ",speedup=" + (float) unlocked / locked);
+        }
+        assertNotNull(manager.getContent(TAG, "user0"));
+        manager.clearCache();
+        manager.onDestroy();
+    }
+
+    /**
+     * @param lock 不为null时每次读取都持有该锁，模拟旧实现
+     */
+    private int concurrentRead(final CacheManager manager, int threads, final Object lock) throws InterruptedException {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + 1000L;
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = offset;
+                    while (System.currentTimeMillis() < deadline) {
+                        final String id = "user" + (i++ % 64);
+                        final Serializable content;
+                        if (lock != null) {
+                            synchronized (lock) {
+                                content = manager.getContent(TAG, id);
+                            }
+                        } else {
+                            content = manager.getContent(TAG, id);
+                        }
+                        if (content != null) {
+                            reads.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return reads.get();
+    }
+
 }
 class User implements Serializable {
     private String name;
@@ -0,0 +1,162 @@
+package mobi.cangol.mobile.service.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class CompressedCacheCodecTest extends AndroidTestCase {
+    private static final String TAG = "CompressedCacheCodecTest";
+    private static final int TIMES = 200;
+
+    public void testDeflate() throws IOException {
+        roundTrip(new CompressedCacheCodec(new BinaryCacheCodec(), CompressedCacheCodec.METHOD_DEFLATE, 64));
+    }
+
+    public void testGzip() throws IOException {
+        roundTrip(new CompressedCacheCodec(new BinaryCacheCodec(), CompressedCacheCodec.METHOD_GZIP, 64));
+    }
+
+    /**
+     * 与标准GZIP格式互通，兼容旧版本用GZIPOutputStream写入的数据
+     */
+    public void testGzipFormat() throws IOException {
+        CompressedCacheCodec codec = new CompressedCacheCodec(new BinaryCacheCodec(), CompressedCacheCodec.METHOD_GZIP, 64);
+        CacheObject cacheObject = new CacheObject(TAG, "json", json(100));
+        byte[] raw = encode(new BinaryCacheCodec(), cacheObject);
+        byte[] bytes = encode(codec, cacheObject);
+        byte[] unzipped = new byte[raw.length];
+        InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes, 7, bytes.length - 7));
+        new DataInputStream(gzip).readFully(unzipped);
+        gzip.close();
+        assertTrue(Arrays.equals(raw, unzipped));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeShort(CompressedCacheCodec.MAGIC);
+        dos.writeByte(CompressedCacheCodec.METHOD_GZIP);
+        dos.writeInt(raw.length);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(dos);
+        gzipOut.write(raw);
+        gzipOut.close();
+        assertEquals(json(100), decode(codec, out.toByteArray()).getObject());
+
+        // 损坏的CRC
+        bytes[bytes.length - 8] ^= 1;
+        try {
+            decode(codec, bytes);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 原始长度损坏时抛出IOException而不是分配错误大小的数组
+     */
+    public void testCorruptLength() throws IOException {
+        for (int rawLength : new int[]{-1, Integer.MAX_VALUE, CompressedCacheCodec.MAX_RAW_LENGTH + 1}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeShort(CompressedCacheCodec.MAGIC);
+            dos.writeByte(CompressedCacheCodec.METHOD_DEFLATE);
+            dos.writeInt(rawLength);
+            dos.write(new byte[16]);
+            try {
+                decode(new CompressedCacheCodec(), out.toByteArray());
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testBelowThreshold() throws IOException {
+        CompressedCacheCodec codec = new CompressedCacheCodec();
+        byte[] bytes = encode(codec, new CacheObject(TAG, "small", "small"));
+        // 小于阈值时与被包装的编解码器输出一致
+        assertEquals(encode(new BinaryCacheCodec(), new CacheObject(TAG, "small", "small")).length, bytes.length);
+        assertEquals("small", decode(codec, bytes).getObject());
+        assertEquals(1.0, codec.getCompressionRatio());
+    }
+
+    public void testUncompressedData() throws IOException {
+        byte[] bytes = encode(new BinaryCacheCodec(), new CacheObject(TAG, "raw", json(100)));
+        assertEquals(json(100), decode(new CompressedCacheCodec(), bytes).getObject());
+    }
+
+    /**
+     * 比较压缩的CPU耗时与节省的磁盘读写
+     */
+    public void testBenchmark() throws IOException {
+        CacheObject cacheObject = new CacheObject(TAG, "json", json(500));
+        benchmark("raw", new BinaryCacheCodec(), cacheObject);
+        benchmark("deflate", new CompressedCacheCodec(new BinaryCacheCodec(), CompressedCacheCodec.METHOD_DEFLATE, 1024), cacheObject);
+        benchmark("gzip", new CompressedCacheCodec(new BinaryCacheCodec(), CompressedCacheCodec.METHOD_GZIP, 1024), cacheObject);
+    }
+
+    private void benchmark(String name, CacheCodec codec, CacheObject cacheObject) throws IOException {
+        File dir = new File(getContext().getCacheDir(), TAG);
+        if (dir.exists()) {
+            DiskLruCache.deleteContents(dir);
+        }
+        DiskLruCache cache = DiskLruCache.open(dir, 1, 1, 64 * 1024 * 1024, DiskLruCache.JOURNAL_MODE_GROUP_COMMIT);
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            OutputStream out = editor.newOutputStream(0);
+            codec.encode(cacheObject, out);
+            out.close();
+            editor.commit();
+        }
+        long write = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMES; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+            InputStream in = snapshot.getInputStream(0);
+            codec.decode(in);
+            snapshot.close();
+        }
+        long read = System.nanoTime() - start;
+        long size = cache.size();
+        cache.close();
+        DiskLruCache.deleteContents(dir);
+        Log.d(TAG, name + " write=" + write / TIMES + "ns,read=" + read / TIMES + "ns,bytes=" + size / TIMES + "," + codec);
+    }
+
+    private void roundTrip(CompressedCacheCodec codec) throws IOException {
+        String json = json(100);
+        CacheObject cacheObject = decode(codec, encode(codec, new CacheObject(TAG, "json", json, CacheObject.TIME_HOUR)));
+        assertEquals(json, cacheObject.getObject());
+        assertEquals(CacheObject.TIME_HOUR, cacheObject.getPeriod());
+        assertTrue(codec.getCompressionRatio() < 0.5);
+    }
+
+    private String json(int count) {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"Jick\"},");
+        }
+        return json.toString();
+    }
+
+    private byte[] encode(CacheCodec codec, CacheObject cacheObject) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.encode(cacheObject, out);
+        return out.toByteArray();
+    }
+
+    private CacheObject decode(CacheCodec codec, byte[] bytes) throws IOException {
+        return codec.decode(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,358 @@
+package mobi.cangol.mobile.service.cache;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DiskLruCacheTest extends AndroidTestCase {
+    private static final String TAG = "DiskLruCacheTest";
+    private static final int COUNT = 100;
+    private File cacheDir;
+    private File crashDir;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        cacheDir = new File(getContext().getCacheDir(), "DiskLruCacheTest");
+        crashDir = new File(getContext().getCacheDir(), "DiskLruCacheTest-crash");
+        clear(cacheDir);
+        clear(crashDir);
+    }
+
+    public void tearDown() throws Exception {
+        clear(cacheDir);
+        clear(crashDir);
+        super.tearDown();
+    }
+
+    public void testRecoverySync() throws IOException {
+        recovery(DiskLruCache.JOURNAL_MODE_SYNC, false);
+        recovery(DiskLruCache.JOURNAL_MODE_SYNC, true);
+    }
+
+    public void testRecoveryGroupCommit() throws IOException {
+        recovery(DiskLruCache.JOURNAL_MODE_GROUP_COMMIT, false);
+        recovery(DiskLruCache.JOURNAL_MODE_GROUP_COMMIT, true);
+    }
+
+    public void testRecoveryMapped() throws IOException {
+        recovery(DiskLruCache.JOURNAL_MODE_MAPPED, false);
+        recovery(DiskLruCache.JOURNAL_MODE_MAPPED, true);
+    }
+
+    public void testExpiresAt() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        DiskLruCache.Editor editor = cache.edit("expired");
+        editor.set(0, "value");
+        editor.setExpiresAt(System.currentTimeMillis() - 1);
+        editor.commit();
+        editor = cache.edit("never");
+        editor.set(0, "value");
+        editor.setExpiresAt(DiskLruCache.EXPIRES_NEVER);
+        editor.commit();
+        cache.close();
+
+        cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        assertEquals(DiskLruCache.EXPIRES_NEVER, cache.getExpiresAt("never"));
+        assertTrue(cache.getExpiresAt("expired") <= System.currentTimeMillis());
+        assertEquals(DiskLruCache.EXPIRES_UNKNOWN, cache.getExpiresAt("missing"));
+        cache.close();
+    }
+
+    public void testPacked() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        cache.setPackThreshold(1024);
+        for (int i = 0; i < COUNT; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v" + i);
+            editor.commit();
+        }
+        DiskLruCache.Editor editor = cache.edit("k0");
+        editor.set(0, "v0-new");
+        editor.commit();
+        cache.remove("k1");
+        cache.close();
+        // 日志加一个段文件
+        assertEquals(2, cacheDir.listFiles().length);
+
+        cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        assertEquals("v0-new", cache.get("k0").getString(0));
+        assertNull(cache.get("k1"));
+        for (int i = 2; i < COUNT; i++) {
+            assertEquals("v" + i, cache.get("k" + i).getString(0));
+        }
+        cache.close();
+    }
+
+    /**
+     * 未开启打包时空值也写入单独的文件
+     */
+    public void testEmptyValueNotPacked() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        DiskLruCache.Editor editor = cache.edit("empty");
+        editor.set(0, "");
+        editor.commit();
+        cache.close();
+        assertFalse(new File(cacheDir, "0" + DiskLruCache.SEGMENT_SUFFIX).exists());
+        assertTrue(new File(cacheDir, "empty.0").exists());
+        assertFalse(readFile(new File(cacheDir, DiskLruCache.JOURNAL_FILE)).contains("@"));
+
+        cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        assertEquals("", cache.get("empty").getString(0));
+        cache.close();
+    }
+
+    /**
+     * 读取不加锁，批量更新的LRU顺序在flush后生效
+     */
+    public void testReadPromotion() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 10);
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.set(0, "aaaa");
+        editor.commit();
+        editor = cache.edit("b");
+        editor.set(0, "bbbb");
+        editor.commit();
+        closeSnapshot(cache.get("a"));
+        editor = cache.edit("c");
+        editor.set(0, "cccc");
+        editor.commit();
+        cache.flush();
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(4, cache.getLength("c"));
+        cache.close();
+
+        // READ日志行在关闭前写入
+        cache = DiskLruCache.open(cacheDir, 1, 1, 10);
+        closeSnapshot(cache.get("a"));
+        editor = cache.edit("d");
+        editor.set(0, "dddd");
+        editor.commit();
+        cache.flush();
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("c"));
+        cache.close();
+    }
+
+    /**
+     * 比较多线程并发get与旧的同步get(所有读取共用缓存的锁)的吞吐量
+     */
+    public void testConcurrentGet() throws Exception {
+        final DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 16 * 1024 * 1024, DiskLruCache.JOURNAL_MODE_GROUP_COMMIT);
+        for (int i = 0; i < 64; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v" + i);
+            editor.commit();
+        }
+        final int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int locked = concurrentGet(cache, threads, true);
+        final int unlocked = concurrentGet(cache, threads, false);
+        Log.d(TAG, "threads=" + threads + " synchronized get=" + locked + "/s,lock-free get=" + unlocked + "/s,speedup=" + (float) unlocked / locked);
+        assertEquals("v0", cache.get("k0").getString(0));
+        cache.close();
+    }
+
+    /**
+     * 覆盖写入时旧文件被原子替换，并发的读取不会找不到值
+     */
+    public void testGetDuringRewrite() throws Exception {
+        final DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024);
+        DiskLruCache.Editor editor = cache.edit("k");
+        editor.set(0, "v");
+        editor.commit();
+        final AtomicInteger misses = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (done.getCount() > 0) {
+                        final DiskLruCache.Snapshot snapshot = cache.get("k");
+                        if (snapshot == null) {
+                            misses.incrementAndGet();
+                        }
+                        closeSnapshot(snapshot);
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "get " + e);
+                    misses.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            editor = cache.edit("k");
+            editor.set(0, "v" + i);
+            editor.commit();
+        }
+        done.countDown();
+        reader.join();
+        cache.close();
+        assertEquals(0, misses.get());
+    }
+
+    private int concurrentGet(final DiskLruCache cache, int threads, final boolean baseline) throws InterruptedException {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + 1000L;
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int i = offset;
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            final String key = "k" + (i++ % 64);
+                            if (baseline) {
+                                synchronized (cache) {
+                                    closeSnapshot(cache.get(key));
+                                }
+                            } else {
+                                closeSnapshot(cache.get(key));
+                            }
+                            reads.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "get " + e);
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return reads.get();
+    }
+
+    /**
+     * 比较小对象打包与每个对象一个文件的写入/读取吞吐量
+     */
+    public void testPackedBenchmark() throws IOException {
+        benchmark(0);
+        benchmark(4096);
+    }
+
+    private void benchmark(long packThreshold) throws IOException {
+        clear(cacheDir);
+        final int count = 1000;
+        final String value = new String(new char[512]).replace('\0', 'x');
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 16 * 1024 * 1024, DiskLruCache.JOURNAL_MODE_GROUP_COMMIT);
+        cache.setPackThreshold(packThreshold);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, value);
+            editor.commit();
+        }
+        long put = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            cache.get("k" + i).close();
+        }
+        long get = System.nanoTime() - start;
+        int files = cacheDir.listFiles().length;
+        cache.close();
+        Log.d(TAG, "packThreshold=" + packThreshold + " put=" + count * 1000000000L / put + "/s,get=" + count * 1000000000L / get + "/s,files=" + files);
+    }
+
+    /**
+     * 模拟进程在写入过程中被杀死：复制未关闭缓存的目录(未刷新的日志缓冲区随之丢失)，
+     * 可选地追加一行写了一半的日志，然后检查重新打开的缓存是否一致
+     */
+    private void recovery(int journalMode, boolean tornLine) throws IOException {
+        clear(cacheDir);
+        clear(crashDir);
+        DiskLruCache cache = DiskLruCache.open(cacheDir, 1, 1, 1024 * 1024, journalMode);
+        for (int i = 0; i < COUNT; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v" + i);
+            editor.commit();
+            if (i % 3 == 0) {
+                cache.remove("k" + i);
+            }
+            if (i % 5 == 0) {
+                closeSnapshot(cache.get("k" + (i / 2)));
+            }
+        }
+        DiskLruCache.Editor inProgress = cache.edit("dirty");
+        inProgress.set(0, "partial");
+
+        copy(cacheDir, crashDir);
+        if (tornLine) {
+            OutputStream out = new FileOutputStream(new File(crashDir, DiskLruCache.JOURNAL_FILE), true);
+            out.write("CLEAN k9".getBytes("UTF-8"));
+            out.close();
+        }
+        inProgress.abort();
+        cache.close();
+
+        DiskLruCache recovered = DiskLruCache.open(crashDir, 1, 1, 1024 * 1024, journalMode);
+        int readable = 0;
+        for (int i = 0; i < COUNT; i++) {
+            DiskLruCache.Snapshot snapshot = recovered.get("k" + i);
+            if (snapshot != null) {
+                assertEquals("v" + i, snapshot.getString(0));
+                readable++;
+            }
+        }
+        assertNull(recovered.get("dirty"));
+        DiskLruCache.Editor editor = recovered.edit("after");
+        editor.set(0, "after");
+        editor.commit();
+        recovered.close();
+
+        recovered = DiskLruCache.open(crashDir, 1, 1, 1024 * 1024, journalMode);
+        assertEquals("after", recovered.get("after").getString(0));
+        // 除日志外，每个文件都属于一个可读的缓存项
+        assertEquals(readable + 2, crashDir.listFiles().length);
+        recovered.close();
+    }
+
+    private void closeSnapshot(DiskLruCache.Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+
+    private void copy(File from, File to) throws IOException {
+        to.mkdirs();
+        byte[] buffer = new byte[8192];
+        for (File file : from.listFiles()) {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(new File(to, file.getName()));
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            in.close();
+            out.close();
+        }
+    }
+
+    private String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private void clear(File dir) throws IOException {
+        if (dir.exists()) {
+            DiskLruCache.deleteContents(dir);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package mobi.cangol.mobile.service.cache;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+public class MemoryCacheTest extends AndroidTestCase {
+    private static final String TAG = "MemoryCacheTest";
+
+    public void testEvict() {
+        MemoryCache memoryCache = new MemoryCache(4 * 1024);
+        for (int i = 0; i < 100; i++) {
+            memoryCache.put(TAG, "id" + i, new CacheObject(TAG, "id" + i, "value" + i));
+        }
+        assertTrue(memoryCache.size() <= 4 * 1024);
+        assertNull(memoryCache.get(TAG, "id0"));
+        assertNotNull(memoryCache.get(TAG, "id99"));
+    }
+
+    public void testRemoveContext() {
+        MemoryCache memoryCache = new MemoryCache(1024 * 1024);
+        memoryCache.put(TAG, "user", new CacheObject(TAG, "user", "Jick"));
+        memoryCache.put("other", "user", new CacheObject("other", "user", "Jick"));
+        memoryCache.removeContext(TAG);
+        assertNull(memoryCache.get(TAG, "user"));
+        assertNotNull(memoryCache.get("other", "user"));
+    }
+
+    /**
+     * 缓存对象以引用返回，放入后被修改不影响已记录的大小
+     */
+    public void testMutatedValue() {
+        MemoryCache memoryCache = new MemoryCache(64 * 1024);
+        ArrayList<String> list = new ArrayList<>();
+        memoryCache.put(TAG, "list", new CacheObject(TAG, "list", list));
+        int size = memoryCache.size();
+        for (int i = 0; i < 1000; i++) {
+            list.add("value" + i);
+        }
+        assertEquals(size, memoryCache.size());
+        memoryCache.remove(TAG, "list");
+        assertEquals(0, memoryCache.size());
+
+        memoryCache.put(TAG, "list", new CacheObject(TAG, "list", list));
+        list.clear();
+        for (int i = 0; i < 100; i++) {
+            memoryCache.put(TAG, "id" + i, new CacheObject(TAG, "id" + i, "value" + i));
+        }
+        memoryCache.evictAll();
+        assertEquals(0, memoryCache.size());
+    }
+
+    /**
+     * 复制到更小的缓存时保留最近访问的内容
+     */
+    public void testCopy() {
+        MemoryCache memoryCache = new MemoryCache(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            memoryCache.put(TAG, "id" + i, new CacheObject(TAG, "id" + i, "value" + i));
+        }
+        memoryCache.get(TAG, "id0");
+        MemoryCache copy = memoryCache.copy(4 * 1024);
+        assertEquals(4 * 1024, copy.maxSize());
+        assertTrue(copy.size() <= 4 * 1024);
+        assertNotNull(copy.get(TAG, "id0"));
+        assertNotNull(copy.get(TAG, "id99"));
+        assertNull(copy.get(TAG, "id1"));
+    }
+
+    public void testTrimMemory() {
+        MemoryCache memoryCache = new MemoryCache(1024 * 1024);
+        memoryCache.put(TAG, "user", new CacheObject(TAG, "user", "Jick"));
+        memoryCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, memoryCache.size());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 基于Call.enqueue的异步请求，与AsyncHttpRequest的回调顺序和重试规则一致，
+ * 但等待响应和重试间隔都不占用线程池线程
+ */
+class AsyncHttpCall implements Callback, Future<Object> {
+    private static ScheduledExecutorService retryScheduler;
+    private final AsyncHttpClient client;
+    private final OkHttpClient content;
+    private final Request request;
+    private final AsyncHttpResponseHandler responseHandler;
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private boolean isBinaryRequest;
+    private int executionCount;
+    private Call call;
+    private Future<?> pendingRetry;
+    private volatile boolean cancelled;
+
+    public AsyncHttpCall(AsyncHttpClient client, OkHttpClient content, Request request, AsyncHttpResponseHandler responseHandler) {
+        this.client = client;
+        this.content = content;
+        this.request = request;
+        this.responseHandler = responseHandler;
+        if (responseHandler instanceof BinaryHttpResponseHandler) {
+            this.isBinaryRequest = true;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getRetryScheduler() {
+        if (retryScheduler == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "AsyncHttpCall retry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            retryScheduler = executor;
+        }
+        return retryScheduler;
+    }
+
+    /**
+     * 发起请求
+     */
+    public void start() {
+        if (responseHandler != null) {
+            responseHandler.sendStartMessage();
+        }
+        enqueue();
+    }
+
+    private void enqueue() {
+        synchronized (this) {
+            pendingRetry = null;
+            if (cancelled) {
+                return;
+            }
+            if (client.getRetryHandler().allowRequest(request)) {
+                call = content.newCall(request);
+                call.enqueue(this);
+                return;
+            }
+        }
+        // host熔断，直接失败
+        if (responseHandler != null) {
+            responseHandler.sendFinishMessage();
+            if (this.isBinaryRequest) {
+                responseHandler.sendFailureMessage(new CircuitOpenException(request.url().host()), (byte[]) null);
+            } else {
+                responseHandler.sendFailureMessage(new CircuitOpenException(request.url().host()), (String) null);
+            }
+        }
+        doneLatch.countDown();
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+        client.getRetryHandler().recordResult(request, response.code() < 500);
+        if (cancelled) {
+            response.close();
+            return;
+        }
+        if (responseHandler != null) {
+            responseHandler.sendResponseMessage(response);
+            responseHandler.sendFinishMessage();
+        } else {
+            response.close();
+        }
+        doneLatch.countDown();
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+        if (cancelled) {
+            return;
+        }
+        final RetryHandler retryHandler = client.getRetryHandler();
+        retryHandler.recordResult(request, false);
+        if (e instanceof UnknownHostException || e instanceof SocketException) {
+            // Added to detect host unreachable
+            if (responseHandler != null) {
+                responseHandler.sendFailureMessage(e, "can't resolve host");
+                responseHandler.sendFinishMessage();
+            }
+            doneLatch.countDown();
+            return;
+        }
+        if (retryHandler.shouldRetry(request, e, ++executionCount)) {
+            synchronized (this) {
+                if (!cancelled) {
+                    pendingRetry = getRetryScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            enqueue();
+                        }
+                    }, retryHandler.getRetrySleepTime(executionCount), TimeUnit.MILLISECONDS);
+                }
+            }
+            return;
+        }
+
+        // no retries left, crap out with exception
+        final ConnectException ex = new ConnectException();
+        ex.initCause(e);
+        if (responseHandler != null) {
+            responseHandler.sendFinishMessage();
+            if (this.isBinaryRequest) {
+                responseHandler.sendFailureMessage(ex, (byte[]) null);
+            } else {
+                responseHandler.sendFailureMessage(ex, (String) null);
+            }
+        }
+        doneLatch.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            if (call != null) {
+                call.cancel();
+            }
+            if (pendingRetry != null) {
+                pendingRetry.cancel(false);
+            }
+        }
+        doneLatch.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        return null;
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return null;
+    }
+}
@@ -32,6 +32,7 @@ import mobi.cangol.mobile.service.PoolManager.Pool;
 import okhttp3.Call;
 import okhttp3.FormBody;
 import okhttp3.Headers;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
@@ -44,12 +45,26 @@ import okhttp3.RequestBody;
  */
 public class AsyncHttpClient {
     private static final int DEFAULT_RETRY_TIMES = 3;
-    private final OkHttpClient httpClient;
+    private static final ConcurrentHashMap<String, HttpCacheStats> cacheStatsMap = new ConcurrentHashMap<>();
+    private OkHttpClient httpClient;
     private final Map<Object, List<WeakReference<Future<?>>>> requestMap;
 
     private Pool threadPool;
     private RetryHandler retryHandler;
     private String group;
+    private boolean enqueueMode;
+    private HttpCacheInterceptor cacheInterceptor;
+    private HttpMetrics metrics;
+    private GzipRequestInterceptor gzipInterceptor;
+    private boolean coalesceEnabled;
+    private int priority = PoolManager.PRIORITY_NORMAL;
+    private final ConcurrentHashMap<String, CoalescedHttpRequest> inFlightRequests = new ConcurrentHashMap<>();
+    private final Object batchLock = new Object();
+    private volatile HttpUrl batchUrl;
+    private long batchWindow;
+    private int batchMaxSize;
+    private BatchCodec batchCodec;
+    private BatchHttpRequest pendingBatch;
 
     private AsyncHttpClient(String group) {
         this.group = group;
@@ -97,6 +112,167 @@ public class AsyncHttpClient {
         this.threadPool = pool;
     }
 
+    /**
+     * 设置是否使用OkHttp的异步Call.enqueue执行请求，
+     * 开启后请求不再占用线程池线程，重试间隔也不阻塞线程，并发数由setMaxRequests控制
+     *
+     * @param enqueueMode
+     */
+    public void setEnqueueMode(boolean enqueueMode) {
+        this.enqueueMode = enqueueMode;
+    }
+
+    /**
+     * 设置enqueue模式下的最大并发请求数
+     *
+     * @param maxRequests        总的最大并发数
+     * @param maxRequestsPerHost 每个host的最大并发数
+     */
+    public void setMaxRequests(int maxRequests, int maxRequestsPerHost) {
+        httpClient.dispatcher().setMaxRequests(maxRequests);
+        httpClient.dispatcher().setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * 设置默认的请求优先级，ResponseHandler设置了优先级时以ResponseHandler为准，只对线程池模式有效
+     *
+     * @param priority PoolManager.PRIORITY_IMMEDIATE、PRIORITY_NORMAL或PRIORITY_BACKGROUND
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 设置是否合并相同的进行中GET请求(method、url、参数和请求头都相同)，默认关闭。
+     * 合并后只发起一次网络请求，每个ResponseHandler都会收到响应；
+     * StreamHttpResponseHandler不参与合并
+     *
+     * @param coalesceEnabled
+     */
+    public void setCoalesceEnabled(boolean coalesceEnabled) {
+        this.coalesceEnabled = coalesceEnabled;
+    }
+
+    /**
+     * 开启HTTP响应缓存，按Cache-Control缓存响应，过期后用ETag/Last-Modified发起条件请求，
+     * 服务端返回304时直接使用缓存的响应体
+     *
+     * @param directory 缓存目录，如new File(configService.getCacheDir(), "http")
+     * @param maxSize   最大容量(字节)
+     */
+    public void setCache(File directory, long maxSize) {
+        final OkHttpClient.Builder builder = httpClient.newBuilder()
+                .cache(HttpClientFactory.getCache(directory, maxSize));
+        if (cacheInterceptor == null) {
+            cacheStatsMap.putIfAbsent(group, new HttpCacheStats(group));
+            cacheInterceptor = new HttpCacheInterceptor(cacheStatsMap.get(group));
+            builder.addInterceptor(cacheInterceptor);
+        }
+        httpClient = builder.build();
+    }
+
+    /**
+     * 设置stale-if-error，GET请求网络失败或服务端返回5xx时，使用过期不超过maxStale的缓存响应，
+     * 需先调用setCache
+     *
+     * @param maxStale 过期缓存的最长可用时间(秒)，0为关闭
+     */
+    public void setStaleIfError(long maxStale) {
+        if (cacheInterceptor == null) {
+            throw new IllegalStateException("cache is not enabled, call setCache first");
+        }
+        cacheInterceptor.setMaxStale(maxStale);
+    }
+
+    /**
+     * 获取本group的HTTP响应缓存统计，未开启缓存时为null
+     *
+     * @return
+     */
+    public HttpCacheStats getCacheStats() {
+        return cacheStatsMap.get(group);
+    }
+
+    /**
+     * 开启请求体gzip压缩，只压缩1KB以上的表单、JSON和文本请求体，需服务端支持Content-Encoding: gzip
+     *
+     * @param enabled
+     */
+    public void setRequestCompression(boolean enabled) {
+        final OkHttpClient.Builder builder = httpClient.newBuilder();
+        if (enabled && gzipInterceptor == null) {
+            gzipInterceptor = new GzipRequestInterceptor();
+            builder.addInterceptor(gzipInterceptor);
+        } else if (!enabled && gzipInterceptor != null) {
+            builder.interceptors().remove(gzipInterceptor);
+            gzipInterceptor = null;
+        }
+        httpClient = builder.build();
+    }
+
+    /**
+     * 开启批量请求，与批量接口同一host的请求在window内(或达到maxSize)合并为一个POST发送，
+     * 使用JSON格式编解码，批量失败时改为单独发送
+     *
+     * @param url     批量接口地址，为null时关闭
+     * @param window  收集请求的时间窗口(毫秒)
+     * @param maxSize 每批最多请求数，达到后立即发送
+     */
+    public void setBatch(String url, long window, int maxSize) {
+        setBatch(url, window, maxSize, new JsonBatchCodec());
+    }
+
+    /**
+     * 开启批量请求
+     *
+     * @param url     批量接口地址，为null时关闭
+     * @param window  收集请求的时间窗口(毫秒)
+     * @param maxSize 每批最多请求数，达到后立即发送
+     * @param codec   批量请求的编解码
+     */
+    public void setBatch(String url, long window, int maxSize, BatchCodec codec) {
+        final BatchHttpRequest batch;
+        synchronized (batchLock) {
+            this.batchUrl = url == null ? null : HttpUrl.parse(url);
+            this.batchWindow = window;
+            this.batchMaxSize = maxSize;
+            this.batchCodec = codec;
+            batch = pendingBatch;
+            pendingBatch = null;
+        }
+        if (batch != null) {
+            batch.send();
+        }
+    }
+
+    /**
+     * 开启请求性能统计，记录各阶段耗时、收发字节数和重试次数，可多个client共用一个HttpMetrics
+     *
+     * @param metrics 为null时关闭
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        httpClient = HttpMetrics.instrument(httpClient, metrics);
+    }
+
+    /**
+     * 获取请求性能统计，未开启时为null
+     *
+     * @return
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置重试策略
+     *
+     * @param retryHandler
+     */
+    public void setRetryHandler(RetryHandler retryHandler) {
+        this.retryHandler = retryHandler;
+    }
+
     /**
      * 获取RetryHandler
      *
@@ -368,7 +544,8 @@ public class AsyncHttpClient {
                     .tag(context)
                     .headers(headerBuilder.build())
                     .url(url)
-                    .method(method, requestBodyBuilder.build())
+                    .method(method, params.fileParams.isEmpty() ? requestBodyBuilder.build()
+                            : new ProgressRequestBody(requestBodyBuilder.build(), responseHandler, params.isChunked()))
                     .build();
         }
 
@@ -412,7 +589,19 @@ public class AsyncHttpClient {
     }
 
     protected void sendRequest(OkHttpClient client, Request uriRequest, AsyncHttpResponseHandler responseHandler, Object context) {
-        final Future<?> request = threadPool.submit(new AsyncHttpRequest(this, client, uriRequest, responseHandler));
+        final Future<?> request;
+        // 只读取一次，判断可否批量和加入批量请求使用同一个地址，不可批量时为null
+        HttpUrl url = batchUrl;
+        if (url != null && !BatchHttpRequest.isBatchable(uriRequest, responseHandler, url)) {
+            url = null;
+        }
+        if (coalesceEnabled && "GET".equals(uriRequest.method()) && !(responseHandler instanceof StreamHttpResponseHandler)) {
+            request = sendCoalescedRequest(client, uriRequest, responseHandler, getPriority(responseHandler), url);
+        } else if (url != null) {
+            request = sendBatchedRequest(client, uriRequest, responseHandler, getPriority(responseHandler), url);
+        } else {
+            request = submitRequest(client, uriRequest, responseHandler, getPriority(responseHandler));
+        }
         if (context != null) {
             // Add request to request map
             List<WeakReference<Future<?>>> requestList = requestMap.get(context);
@@ -424,6 +613,98 @@ public class AsyncHttpClient {
         }
     }
 
+    private int getPriority(AsyncHttpResponseHandler responseHandler) {
+        if (responseHandler != null && responseHandler.getPriority() >= 0) {
+            return responseHandler.getPriority();
+        }
+        return priority;
+    }
+
+    Future<?> submitRequest(OkHttpClient client, Request uriRequest, AsyncHttpResponseHandler responseHandler, int priority) {
+        if (enqueueMode) {
+            final AsyncHttpCall call = new AsyncHttpCall(this, client, uriRequest, responseHandler);
+            call.start();
+            return call;
+        } else {
+            return threadPool.submit(new AsyncHttpRequest(this, client, uriRequest, responseHandler), priority);
+        }
+    }
+
+    /**
+     * @param url 可批量时为批量接口地址，否则为null
+     */
+    private Future<?> sendCoalescedRequest(OkHttpClient client, Request uriRequest, AsyncHttpResponseHandler responseHandler, int priority, HttpUrl url) {
+        // 不同优先级的请求不合并，避免高优先级请求等待低优先级的共享请求；
+        // 批量请求的响应体是文本，不与不可批量(如二进制)的请求合并
+        final String key = priority + (url != null ? " batch " : " ") + CoalescedHttpRequest.key(uriRequest);
+        while (true) {
+            CoalescedHttpRequest shared = inFlightRequests.get(key);
+            if (shared == null) {
+                final CoalescedHttpRequest newShared = new CoalescedHttpRequest(inFlightRequests, key);
+                shared = inFlightRequests.putIfAbsent(key, newShared);
+                if (shared == null) {
+                    final Future<?> subscription = newShared.subscribe(responseHandler);
+                    // 共享请求不属于任何context，只能通过订阅者的Future取消
+                    final Request sharedRequest = uriRequest.newBuilder().tag(key).build();
+                    newShared.setFuture(url != null ? sendBatchedRequest(client, sharedRequest, newShared, priority, url)
+                            : submitRequest(client, sharedRequest, newShared, priority));
+                    return subscription;
+                }
+            }
+            final Future<?> subscription = shared.subscribe(responseHandler);
+            if (subscription != null) {
+                return subscription;
+            }
+            // 已结束但还未从map中移除
+            inFlightRequests.remove(key, shared);
+        }
+    }
+
+    /**
+     * @param url 判断可否批量时读取的批量接口地址，加入前已被setBatch修改时改为单独发送
+     */
+    private Future<?> sendBatchedRequest(OkHttpClient client, Request uriRequest, AsyncHttpResponseHandler responseHandler, int priority, HttpUrl url) {
+        BatchHttpRequest full = null;
+        final Future<?> entry;
+        synchronized (batchLock) {
+            if (batchUrl != url) {
+                entry = null;
+            } else {
+                if (pendingBatch == null) {
+                    final BatchHttpRequest batch = new BatchHttpRequest(this, client, url, batchCodec);
+                    pendingBatch = batch;
+                    BatchHttpRequest.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushBatch(batch);
+                        }
+                    }, batchWindow);
+                }
+                entry = pendingBatch.add(uriRequest, responseHandler, priority);
+                if (pendingBatch.size() >= batchMaxSize) {
+                    full = pendingBatch;
+                    pendingBatch = null;
+                }
+            }
+        }
+        if (entry == null) {
+            return submitRequest(client, uriRequest, responseHandler, priority);
+        }
+        if (full != null) {
+            full.send();
+        }
+        return entry;
+    }
+
+    private void flushBatch(BatchHttpRequest batch) {
+        synchronized (batchLock) {
+            if (pendingBatch == batch) {
+                pendingBatch = null;
+            }
+        }
+        batch.send();
+    }
+
     /**
      * 取消请求
      *
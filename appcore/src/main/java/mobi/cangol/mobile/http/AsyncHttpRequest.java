@@ -73,6 +73,7 @@ class AsyncHttpRequest implements Runnable {
     private void makeRequest() throws IOException {
         if (!Thread.currentThread().isInterrupted()) {
             final Response response = content.newCall(request).execute();
+            client.getRetryHandler().recordResult(request, response.code() < 500);
             if (!Thread.currentThread().isInterrupted()) {
                 if (responseHandler != null) {
                     responseHandler.sendResponseMessage(response);
@@ -83,36 +84,43 @@ class AsyncHttpRequest implements Runnable {
         }
     }
 
-    private void makeRequestWithRetries() throws ConnectException {
+    private void makeRequestWithRetries() throws IOException {
         // This is an additional layer of retry logic lifted from droid-fu
         // See: https://github.com/kaeppler/droid-fu/blob/master/src/main/java/com/github/droidfu/http/BetterHttpRequestBase.java
         boolean retry = true;
         IOException cause = null;
         final RetryHandler retryHandler = client.getRetryHandler();
         while (retry) {
+            if (!retryHandler.allowRequest(request)) {
+                // host熔断，直接失败
+                throw new CircuitOpenException(request.url().host());
+            }
             try {
                 makeRequest();
                 return;
             } catch (UnknownHostException e) {
+                retryHandler.recordResult(request, false);
                 if (responseHandler != null) {
                     responseHandler.sendFailureMessage(e, "can't resolve host");
                 }
                 return;
             } catch (SocketException e) {
+                retryHandler.recordResult(request, false);
                 // Added to detect host unreachable
                 if (responseHandler != null) {
                     responseHandler.sendFailureMessage(e, "can't resolve host");
                 }
                 return;
             } catch (IOException e) {
+                retryHandler.recordResult(request, false);
                 cause = e;
-                retry = retryHandler.retryRequest(cause, ++executionCount);
+                retry = retryHandler.retryRequest(request, cause, ++executionCount);
             } catch (NullPointerException e) {
                 // there's a bug in HttpClient 4.0.x that on some occasions causes
                 // DefaultRequestExecutor to throw an NPE, see
                 // http://code.google.com/p/android/issues/detail?id=5255
                 cause = new IOException("NPE in HttpClient" + e.getMessage());
-                retry = retryHandler.retryRequest(cause, ++executionCount);
+                retry = retryHandler.retryRequest(request, cause, ++executionCount);
             }
         }
 
@@ -34,8 +34,10 @@ public class AsyncHttpResponseHandler {
     protected static final int FAILURE_MESSAGE = 1;
     protected static final int START_MESSAGE = 2;
     protected static final int FINISH_MESSAGE = 3;
+    protected static final int PROGRESS_MESSAGE = 4;
 
     private Handler handler;
+    private int priority = -1;
 
     public AsyncHttpResponseHandler() {
         // Set up a handler to post events back to the correct thread if possible
@@ -55,6 +57,24 @@ public class AsyncHttpResponseHandler {
         }
     }
 
+    /**
+     * 设置请求优先级，只对线程池模式有效
+     *
+     * @param priority PoolManager.PRIORITY_IMMEDIATE、PRIORITY_NORMAL或PRIORITY_BACKGROUND
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 请求优先级，未设置时为-1，使用AsyncHttpClient的默认优先级
+     *
+     * @return
+     */
+    public int getPriority() {
+        return priority;
+    }
+
     public void onStart() {
         //do nothings
     }
@@ -63,6 +83,16 @@ public class AsyncHttpResponseHandler {
         //do nothings
     }
 
+    /**
+     * 上传进度，请求体由ProgressRequestBody包装时回调
+     *
+     * @param bytesWritten 已发送字节数
+     * @param totalSize    请求体总长度，chunked上传时为-1
+     */
+    public void onProgress(long bytesWritten, long totalSize) {
+        //do nothings
+    }
+
     public void onSuccess(String content) {
         //do nothings
     }
@@ -92,6 +122,10 @@ public class AsyncHttpResponseHandler {
         sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[]{e, responseBody}));
     }
 
+    protected void sendProgressMessage(long bytesWritten, long totalSize) {
+        sendMessage(obtainMessage(PROGRESS_MESSAGE, new Object[]{bytesWritten, totalSize}));
+    }
+
     protected void sendStartMessage() {
         sendMessage(obtainMessage(START_MESSAGE, null));
     }
@@ -126,6 +160,10 @@ public class AsyncHttpResponseHandler {
             case FINISH_MESSAGE:
                 onFinish();
                 break;
+            case PROGRESS_MESSAGE:
+                response = (Object[]) msg.obj;
+                onProgress(((Long) response[0]).longValue(), ((Long) response[1]).longValue());
+                break;
             default:
                 break;
         }
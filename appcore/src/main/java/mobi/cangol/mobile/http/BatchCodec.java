@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 批量请求的编解码，把多个请求编码为一个请求体，并把批量响应拆分为各请求的响应
+ */
+public interface BatchCodec {
+
+    /**
+     * 编码批量请求体
+     *
+     * @param requests 批量中的请求，顺序与decode一致
+     * @return
+     * @throws IOException
+     */
+    RequestBody encode(List<Request> requests) throws IOException;
+
+    /**
+     * 解码批量响应
+     *
+     * @param requests 批量中的请求
+     * @param response 批量请求的响应(2xx)，由调用方关闭
+     * @return 与requests一一对应的响应，数量不一致时视为批量失败
+     * @throws IOException
+     */
+    List<Response> decode(List<Request> requests, Response response) throws IOException;
+}
@@ -0,0 +1,415 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package mobi.cangol.mobile.http;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 批量请求，收集一段时间内的多个请求，编码为一个POST发送到批量接口，再把响应拆分给各请求的ResponseHandler
+ * <p/>
+ * 批量失败时改为单独发送：批量接口返回4xx或请求未发出时全部单独发送，
+ * 否则服务端可能已执行，只单独发送可安全重试(幂等或带Idempotency-Key)的请求，其他请求回调失败。
+ * 各请求的onStart在批量响应后回调
+ */
+class BatchHttpRequest extends AsyncHttpResponseHandler {
+    private static final String TAG = "BatchHttpRequest";
+    private static ScheduledExecutorService scheduler;
+    private final AsyncHttpClient client;
+    private final OkHttpClient content;
+    private final HttpUrl url;
+    private final BatchCodec codec;
+    private final List<Entry> entries = new ArrayList<>();
+    private final CountDownLatch sentLatch = new CountDownLatch(1);
+    private volatile Future<?> future;
+    private int priority = Integer.MAX_VALUE;
+    private boolean sent;
+
+    BatchHttpRequest(AsyncHttpClient client, OkHttpClient content, HttpUrl url, BatchCodec codec) {
+        super();
+        this.client = client;
+        this.content = content;
+        this.url = url;
+        this.codec = codec;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "BatchHttpRequest flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    /**
+     * 延迟执行，用于批量窗口到期时发送
+     *
+     * @param runnable
+     * @param delay    毫秒
+     */
+    static void schedule(Runnable runnable, long delay) {
+        getScheduler().schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 是否可以加入批量：与批量接口同一host，响应不是流式或二进制，请求体为空或是文本
+     *
+     * @param request
+     * @param responseHandler
+     * @param batchUrl        批量接口
+     * @return
+     */
+    static boolean isBatchable(Request request, AsyncHttpResponseHandler responseHandler, HttpUrl batchUrl) {
+        if (responseHandler instanceof StreamHttpResponseHandler || responseHandler instanceof BinaryHttpResponseHandler) {
+            return false;
+        }
+        final HttpUrl requestUrl = request.url();
+        if (!requestUrl.scheme().equals(batchUrl.scheme())
+                || !requestUrl.host().equals(batchUrl.host())
+                || requestUrl.port() != batchUrl.port()
+                || requestUrl.encodedPath().equals(batchUrl.encodedPath())) {
+            return false;
+        }
+        final RequestBody body = request.body();
+        if (body == null) {
+            return true;
+        }
+        final MediaType type = body.contentType();
+        return type != null && ("text".equals(type.type())
+                || type.subtype().contains("json")
+                || "x-www-form-urlencoded".equals(type.subtype()));
+    }
+
+    /**
+     * 加入批量，已发送时返回null
+     *
+     * @param request
+     * @param responseHandler
+     * @param priority
+     * @return
+     */
+    synchronized Future<?> add(Request request, AsyncHttpResponseHandler responseHandler, int priority) {
+        if (sent) {
+            return null;
+        }
+        final Entry entry = new Entry(request, responseHandler, priority);
+        entries.add(entry);
+        return entry;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 发送批量请求，只有一个请求时直接单独发送
+     */
+    void send() {
+        final List<Entry> list;
+        synchronized (this) {
+            if (sent) {
+                return;
+            }
+            sent = true;
+            list = new ArrayList<>(entries);
+            for (final Entry entry : list) {
+                priority = Math.min(priority, entry.priority);
+            }
+        }
+        try {
+            if (list.size() == 1) {
+                sendSingle(list.get(0));
+            } else if (!list.isEmpty()) {
+                final RequestBody body;
+                try {
+                    body = codec.encode(requests());
+                } catch (IOException e) {
+                    Log.d(TAG, "encode " + e);
+                    fallback(true, e);
+                    return;
+                }
+                final Request batchRequest = new Request.Builder()
+                        .url(url)
+                        .tag(this)
+                        .post(body)
+                        .build();
+                setFuture(client.submitRequest(content, batchRequest, this, priority));
+            }
+        } finally {
+            sentLatch.countDown();
+        }
+    }
+
+    private void setFuture(Future<?> future) {
+        boolean cancel;
+        synchronized (this) {
+            this.future = future;
+            cancel = isAllCancelled();
+        }
+        if (cancel) {
+            future.cancel(true);
+        }
+    }
+
+    private boolean isAllCancelled() {
+        for (final Entry entry : entries) {
+            if (!entry.cancelled) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized List<Request> requests() {
+        final List<Request> requests = new ArrayList<>(entries.size());
+        for (final Entry entry : entries) {
+            requests.add(entry.request);
+        }
+        return requests;
+    }
+
+    private void sendSingle(Entry entry) {
+        synchronized (this) {
+            if (!entry.cancelled) {
+                entry.fallback = client.submitRequest(content, entry.request, entry.responseHandler, entry.priority);
+            }
+        }
+    }
+
+    /**
+     * 批量失败
+     *
+     * @param unsent 服务端未执行任何请求，全部单独发送
+     * @param error
+     */
+    private void fallback(boolean unsent, Throwable error) {
+        final List<Entry> list;
+        synchronized (this) {
+            list = new ArrayList<>(entries);
+        }
+        Log.d(TAG, "batch failed, fallback " + list.size() + " requests " + error);
+        for (final Entry entry : list) {
+            if (unsent || client.getRetryHandler().isRetrySafe(entry.request)) {
+                sendSingle(entry);
+            } else {
+                entry.fail(error);
+            }
+        }
+    }
+
+    private static boolean isUnsent(Throwable e) {
+        // AsyncHttpRequest重试用尽时抛出的ConnectException包装了原始异常
+        final Throwable cause = e instanceof ConnectException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof CircuitOpenException
+                || cause instanceof UnknownHostException
+                || cause instanceof ConnectException
+                || cause instanceof NoRouteToHostException;
+    }
+
+    @Override
+    protected void sendStartMessage() {
+        // 各请求在收到批量响应后回调onStart
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+        // 各请求单独回调onFinish
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        fallback(isUnsent(e), e);
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        fallback(isUnsent(e), e);
+    }
+
+    @Override
+    void sendResponseMessage(Response response) {
+        final List<Entry> list;
+        synchronized (this) {
+            list = new ArrayList<>(entries);
+        }
+        List<Response> responses = null;
+        IOException error = null;
+        try {
+            if (response.isSuccessful()) {
+                responses = codec.decode(requests(), response);
+            } else {
+                error = new IOException("code=" + response.code());
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            response.close();
+        }
+        if (responses != null && responses.size() == list.size()) {
+            for (int i = 0; i < list.size(); i++) {
+                list.get(i).dispatch(responses.get(i));
+            }
+        } else {
+            // 4xx说明批量接口没有执行任何请求
+            fallback(response.code() >= 400 && response.code() < 500,
+                    error != null ? error : new IOException("batch size mismatch"));
+        }
+    }
+
+    /**
+     * 批量中单个请求的Future，批量失败单独发送后代理到单独请求的Future
+     */
+    private class Entry implements Future<Object> {
+        private final Request request;
+        private final AsyncHttpResponseHandler responseHandler;
+        private final int priority;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Future<?> fallback;
+
+        Entry(Request request, AsyncHttpResponseHandler responseHandler, int priority) {
+            this.request = request;
+            this.responseHandler = responseHandler;
+            this.priority = priority;
+        }
+
+        void dispatch(Response response) {
+            if (cancelled) {
+                response.close();
+                return;
+            }
+            done = true;
+            if (responseHandler != null) {
+                responseHandler.sendStartMessage();
+                responseHandler.sendResponseMessage(response);
+                responseHandler.sendFinishMessage();
+            } else {
+                response.close();
+            }
+        }
+
+        void fail(Throwable error) {
+            if (cancelled) {
+                return;
+            }
+            done = true;
+            if (responseHandler != null) {
+                responseHandler.sendStartMessage();
+                responseHandler.sendFinishMessage();
+                responseHandler.sendFailureMessage(error, (String) null);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<?> cancelFuture = null;
+            synchronized (BatchHttpRequest.this) {
+                if (cancelled || done) {
+                    return false;
+                }
+                cancelled = true;
+                if (!sent) {
+                    entries.remove(this);
+                } else if (fallback != null) {
+                    cancelFuture = fallback;
+                } else if (isAllCancelled()) {
+                    cancelFuture = future;
+                }
+            }
+            if (cancelFuture != null) {
+                cancelFuture.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            final Future<?> f = fallback;
+            return cancelled || done || f != null && f.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            sentLatch.await();
+            if (future != null) {
+                future.get();
+            }
+            if (fallback != null) {
+                fallback.get();
+            }
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (!sentLatch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            if (future != null) {
+                future.get(timeout, unit);
+            }
+            if (fallback != null) {
+                fallback.get(timeout, unit);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.content.Context;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okio.BufferedSource;
+
+/**
+ * 分块响应处理，按块回调响应数据，成功时返回读取的总字节数
+ */
+public abstract class ChunkedHttpResponseHandler extends StreamHttpResponseHandler<Long> {
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+    private final int mChunkSize;
+
+    public ChunkedHttpResponseHandler() {
+        super();
+        mChunkSize = DEFAULT_CHUNK_SIZE;
+    }
+
+    public ChunkedHttpResponseHandler(Context context) {
+        super(context);
+        mChunkSize = DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * @param context
+     * @param chunkSize 每块最大字节数
+     */
+    public ChunkedHttpResponseHandler(Context context, int chunkSize) {
+        super(context);
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * 收到一块数据(在请求线程中执行)，buffer在回调后会被复用
+     *
+     * @param buffer 数据
+     * @param count  有效字节数
+     * @throws IOException
+     */
+    protected abstract void onChunk(byte[] buffer, int count) throws IOException;
+
+    @Override
+    protected Long parseResponse(BufferedSource source, MediaType contentType, long contentLength) throws IOException {
+        final byte[] buffer = new byte[mChunkSize];
+        long total = 0;
+        int count;
+        while ((count = source.read(buffer)) != -1) {
+            onChunk(buffer, count);
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按host统计的熔断器和重试预算
+ * <p/>
+ * 每个统计窗口内请求数不少于minRequests且失败率达到failureThreshold时熔断(OPEN)，
+ * openMillis内该host的请求直接失败；之后进入HALF_OPEN，只放行一个探测请求，成功则恢复(CLOSED)，失败则继续熔断。
+ * 重试预算限制每个窗口内的重试次数不超过 max(minRetries, 请求数*retryRatio)。
+ */
+public class CircuitBreaker {
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+    private static final long DEFAULT_WINDOW_MILLIS = 10 * 1000L;
+    private static final long DEFAULT_OPEN_MILLIS = 30 * 1000L;
+    private static final int DEFAULT_MIN_REQUESTS = 10;
+    private static final float DEFAULT_FAILURE_THRESHOLD = 0.5f;
+    private static final int DEFAULT_MIN_RETRIES = 3;
+    private static final float DEFAULT_RETRY_RATIO = 0.2f;
+    private final ConcurrentHashMap<String, HostState> hostStates = new ConcurrentHashMap<>();
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private long openMillis = DEFAULT_OPEN_MILLIS;
+    private int minRequests = DEFAULT_MIN_REQUESTS;
+    private float failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private int minRetries = DEFAULT_MIN_RETRIES;
+    private float retryRatio = DEFAULT_RETRY_RATIO;
+
+    /**
+     * 设置熔断条件
+     *
+     * @param minRequests      窗口内最少请求数，少于此数不熔断
+     * @param failureThreshold 失败率阈值(0-1)
+     * @param windowMillis     统计窗口(毫秒)
+     * @param openMillis       熔断时长(毫秒)
+     */
+    public void setThreshold(int minRequests, float failureThreshold, long windowMillis, long openMillis) {
+        this.minRequests = minRequests;
+        this.failureThreshold = failureThreshold;
+        this.windowMillis = windowMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 设置重试预算
+     *
+     * @param minRetries 每个窗口至少允许的重试次数
+     * @param retryRatio 重试次数占请求数的最大比例
+     */
+    public void setRetryBudget(int minRetries, float retryRatio) {
+        this.minRetries = minRetries;
+        this.retryRatio = retryRatio;
+    }
+
+    /**
+     * 是否允许向host发起请求，熔断时返回false
+     *
+     * @param host
+     * @return
+     */
+    public boolean allowRequest(String host) {
+        return getHostState(host).allowRequest(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 记录一次成功
+     *
+     * @param host
+     */
+    public void recordSuccess(String host) {
+        getHostState(host).record(true, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 记录一次失败(网络异常或5xx)
+     *
+     * @param host
+     */
+    public void recordFailure(String host) {
+        getHostState(host).record(false, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 申请一次重试，超出重试预算时返回false
+     *
+     * @param host
+     * @return
+     */
+    public boolean acquireRetry(String host) {
+        return getHostState(host).acquireRetry(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 获取host的状态
+     *
+     * @param host
+     * @return STATE_CLOSED、STATE_OPEN或STATE_HALF_OPEN
+     */
+    public int getState(String host) {
+        final HostState hostState = hostStates.get(host);
+        return hostState == null ? STATE_CLOSED : hostState.getState(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 重置所有host的统计
+     */
+    public void reset() {
+        hostStates.clear();
+    }
+
+    private HostState getHostState(String host) {
+        HostState hostState = hostStates.get(host);
+        if (hostState == null) {
+            hostStates.putIfAbsent(host, new HostState());
+            hostState = hostStates.get(host);
+        }
+        return hostState;
+    }
+
+    private class HostState {
+        private long windowStart;
+        private int requests;
+        private int failures;
+        private int retries;
+        private long openUntil;
+        private boolean probing;
+        private long probeStart;
+
+        synchronized boolean allowRequest(long now) {
+            final int state = getState(now);
+            if (state == STATE_CLOSED) {
+                return true;
+            } else if (state == STATE_HALF_OPEN && (!probing || now - probeStart >= openMillis)) {
+                // 探测请求被取消等未记录结果时，超时后允许新的探测
+                probing = true;
+                probeStart = now;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void record(boolean success, long now) {
+            if (openUntil > 0) {
+                if (probing) {
+                    // 探测请求的结果
+                    probing = false;
+                    if (success) {
+                        openUntil = 0;
+                        resetWindow(now);
+                    } else {
+                        openUntil = now + openMillis;
+                    }
+                }
+                return;
+            }
+            if (now - windowStart >= windowMillis) {
+                resetWindow(now);
+            }
+            requests++;
+            if (!success) {
+                failures++;
+                if (requests >= minRequests && failures >= requests * failureThreshold) {
+                    openUntil = now + openMillis;
+                }
+            }
+        }
+
+        synchronized boolean acquireRetry(long now) {
+            if (now - windowStart >= windowMillis) {
+                resetWindow(now);
+            }
+            if (retries < Math.max(minRetries, (int) (requests * retryRatio))) {
+                retries++;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int getState(long now) {
+            if (openUntil == 0) {
+                return STATE_CLOSED;
+            }
+            return now < openUntil ? STATE_OPEN : STATE_HALF_OPEN;
+        }
+
+        private void resetWindow(long now) {
+            windowStart = now;
+            requests = 0;
+            failures = 0;
+            retries = 0;
+        }
+    }
+}
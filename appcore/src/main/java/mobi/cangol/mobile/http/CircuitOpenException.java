@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+
+/**
+ * host处于熔断状态，请求未发出
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String host) {
+        super("circuit open: " + host);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * 合并相同的进行中GET请求，只发起一次网络请求，响应体读入内存后分发给每个订阅者的ResponseHandler
+ * <p/>
+ * 每个订阅者持有各自的Future，取消时只退出订阅，最后一个订阅者取消时才取消网络请求
+ */
+class CoalescedHttpRequest extends AsyncHttpResponseHandler {
+    private final ConcurrentMap<String, CoalescedHttpRequest> inFlightRequests;
+    private final String key;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private volatile Future<?> future;
+    private boolean started;
+    private boolean closed;
+
+    CoalescedHttpRequest(ConcurrentMap<String, CoalescedHttpRequest> inFlightRequests, String key) {
+        super();
+        this.inFlightRequests = inFlightRequests;
+        this.key = key;
+    }
+
+    /**
+     * 合并的key，method+url(包括参数)+请求头
+     *
+     * @param request
+     * @return
+     */
+    static String key(Request request) {
+        return request.method() + ' ' + request.url() + '\n' + request.headers();
+    }
+
+    /**
+     * 加入订阅，请求已结束或已取消时返回null
+     *
+     * @param responseHandler
+     * @return
+     */
+    synchronized Future<?> subscribe(AsyncHttpResponseHandler responseHandler) {
+        if (closed) {
+            return null;
+        }
+        final Subscription subscription = new Subscription(responseHandler);
+        subscriptions.add(subscription);
+        if (started && responseHandler != null) {
+            responseHandler.sendStartMessage();
+        }
+        return subscription;
+    }
+
+    void setFuture(Future<?> future) {
+        boolean cancel;
+        synchronized (this) {
+            this.future = future;
+            cancel = closed && subscriptions.isEmpty();
+        }
+        if (cancel) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * 请求结束，不再接受新的订阅
+     *
+     * @return 当前的订阅者
+     */
+    private synchronized List<Subscription> close() {
+        if (!closed) {
+            closed = true;
+            inFlightRequests.remove(key, this);
+        }
+        return new ArrayList<>(subscriptions);
+    }
+
+    @Override
+    protected void sendStartMessage() {
+        final List<Subscription> list;
+        synchronized (this) {
+            started = true;
+            list = new ArrayList<>(subscriptions);
+        }
+        for (final Subscription subscription : list) {
+            if (subscription.isActive()) {
+                subscription.responseHandler.sendStartMessage();
+            }
+        }
+    }
+
+    @Override
+    protected void sendFinishMessage() {
+        for (final Subscription subscription : close()) {
+            if (subscription.isActive()) {
+                subscription.responseHandler.sendFinishMessage();
+            }
+        }
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        for (final Subscription subscription : close()) {
+            if (subscription.isActive()) {
+                subscription.responseHandler.sendFailureMessage(e, responseBody);
+            }
+        }
+    }
+
+    @Override
+    protected void sendFailureMessage(Throwable e, byte[] responseBody) {
+        for (final Subscription subscription : close()) {
+            if (subscription.isActive()) {
+                subscription.responseHandler.sendFailureMessage(e, responseBody);
+            }
+        }
+    }
+
+    @Override
+    void sendResponseMessage(Response response) {
+        final List<Subscription> list = close();
+        final ResponseBody body = response.body();
+        final byte[] bytes;
+        try {
+            bytes = body.bytes();
+        } catch (IOException e) {
+            for (final Subscription subscription : list) {
+                if (subscription.isActive()) {
+                    subscription.responseHandler.sendFailureMessage(e, response.message());
+                }
+            }
+            return;
+        } finally {
+            response.close();
+        }
+        for (final Subscription subscription : list) {
+            if (subscription.isActive()) {
+                subscription.responseHandler.sendResponseMessage(response.newBuilder()
+                        .body(ResponseBody.create(body.contentType(), bytes))
+                        .build());
+            }
+        }
+    }
+
+    /**
+     * 单个订阅者的Future
+     */
+    private class Subscription implements Future<Object> {
+        private final AsyncHttpResponseHandler responseHandler;
+        private volatile boolean cancelled;
+
+        Subscription(AsyncHttpResponseHandler responseHandler) {
+            this.responseHandler = responseHandler;
+        }
+
+        boolean isActive() {
+            return !cancelled && responseHandler != null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<?> cancelFuture = null;
+            synchronized (CoalescedHttpRequest.this) {
+                if (cancelled || isDone()) {
+                    return false;
+                }
+                cancelled = true;
+                subscriptions.remove(this);
+                if (subscriptions.isEmpty() && !closed) {
+                    closed = true;
+                    inFlightRequests.remove(key, CoalescedHttpRequest.this);
+                    cancelFuture = future;
+                }
+            }
+            if (cancelFuture != null) {
+                cancelFuture.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            final Future<?> f = future;
+            return cancelled || f != null && f.isDone();
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return future.get();
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return future.get(timeout, unit);
+        }
+    }
+}
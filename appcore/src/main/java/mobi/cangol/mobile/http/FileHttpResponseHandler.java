@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * 文件响应处理，响应体直接写入文件，成功时返回该文件
+ * <p/>
+ * 先写入同目录下的临时文件，完成后再重命名，失败时不会留下不完整的文件
+ */
+public class FileHttpResponseHandler extends StreamHttpResponseHandler<File> {
+    private final File mFile;
+
+    public FileHttpResponseHandler(File file) {
+        super();
+        mFile = file;
+    }
+
+    public FileHttpResponseHandler(Context context, File file) {
+        super(context);
+        mFile = file;
+    }
+
+    @Override
+    protected File parseResponse(BufferedSource source, MediaType contentType, long contentLength) throws IOException {
+        final File parent = mFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can't create dir " + parent);
+        }
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        final BufferedSink sink = Okio.buffer(Okio.sink(tmp));
+        try {
+            sink.writeAll(source);
+        } catch (IOException e) {
+            sink.close();
+            tmp.delete();
+            throw e;
+        }
+        sink.close();
+        if (mFile.exists() && !mFile.delete() || !tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("can't rename " + tmp + " to " + mFile);
+        }
+        return mFile;
+    }
+}
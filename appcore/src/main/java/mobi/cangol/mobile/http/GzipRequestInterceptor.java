@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * 请求体gzip压缩拦截器，只压缩表单、JSON和文本请求体，并添加Content-Encoding: gzip
+ * <p/>
+ * 服务端需支持解压请求体，压缩后的请求体有确定长度，不使用chunked传输
+ */
+class GzipRequestInterceptor implements Interceptor {
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    /**
+     * 小于该长度的请求体不压缩，压缩收益抵不过gzip头和CPU开销
+     */
+    private static final long MIN_SIZE = 1024;
+
+    static boolean isCompressible(MediaType type) {
+        return type != null && ("text".equals(type.type())
+                || type.subtype().contains("json")
+                || type.subtype().contains("xml")
+                || "x-www-form-urlencoded".equals(type.subtype()));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final RequestBody body = request.body();
+        if (body == null || request.header(CONTENT_ENCODING) != null || !isCompressible(body.contentType())) {
+            return chain.proceed(request);
+        }
+        final long length = body.contentLength();
+        if (length >= 0 && length < MIN_SIZE) {
+            return chain.proceed(request);
+        }
+        final Buffer buffer = new Buffer();
+        final BufferedSink gzipSink = Okio.buffer(new GzipSink(buffer));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+        if (length >= 0 && buffer.size() >= length) {
+            // 压缩无收益
+            buffer.clear();
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder()
+                .header(CONTENT_ENCODING, "gzip")
+                .method(request.method(), RequestBody.create(body.contentType(), buffer.readByteString()))
+                .build());
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import mobi.cangol.mobile.logging.Log;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 响应缓存拦截器，统计缓存命中，并在网络失败或服务端5xx时使用过期缓存(stale-if-error)
+ * <p/>
+ * 作为应用拦截器添加，位于OkHttp的CacheInterceptor之前
+ */
+class HttpCacheInterceptor implements Interceptor {
+    private static final String TAG = "HttpCacheInterceptor";
+    private final HttpCacheStats stats;
+    private volatile long maxStale;
+
+    HttpCacheInterceptor(HttpCacheStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param maxStale 过期缓存的最长可用时间(秒)，0为关闭stale-if-error
+     */
+    void setMaxStale(long maxStale) {
+        this.maxStale = maxStale;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final boolean staleIfError = maxStale > 0 && "GET".equals(request.method());
+        final Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            if (staleIfError) {
+                final Response stale = proceedStale(chain, request);
+                if (stale != null) {
+                    return stale;
+                }
+            }
+            throw e;
+        }
+        if (staleIfError && response.code() >= 500) {
+            final Response stale = proceedStale(chain, request);
+            if (stale != null) {
+                response.close();
+                return stale;
+            }
+        }
+        stats.record(response);
+        return response;
+    }
+
+    private Response proceedStale(Chain chain, Request request) {
+        final Request staleRequest = request.newBuilder()
+                .cacheControl(new CacheControl.Builder()
+                        .onlyIfCached()
+                        .maxStale((int) Math.min(maxStale, Integer.MAX_VALUE), TimeUnit.SECONDS)
+                        .build())
+                .build();
+        try {
+            final Response response = chain.proceed(staleRequest);
+            if (response.cacheResponse() != null) {
+                stats.recordStaleIfError();
+                stats.record(response);
+                return response;
+            }
+            response.close();
+        } catch (IOException e) {
+            Log.d(TAG, "stale " + e);
+        }
+        return null;
+    }
+}
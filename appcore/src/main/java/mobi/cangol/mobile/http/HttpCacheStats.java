@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Response;
+
+/**
+ * HTTP响应缓存统计，按AsyncHttpClient的group统计，线程安全
+ */
+public final class HttpCacheStats {
+    private final String group;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidatedCount = new AtomicLong();
+    private final AtomicLong networkCount = new AtomicLong();
+    private final AtomicLong staleIfErrorCount = new AtomicLong();
+
+    HttpCacheStats(String group) {
+        this.group = group;
+    }
+
+    void record(Response response) {
+        requestCount.incrementAndGet();
+        if (response.cacheResponse() != null && response.networkResponse() == null) {
+            hitCount.incrementAndGet();
+        } else if (response.cacheResponse() != null && response.networkResponse().code() == 304) {
+            revalidatedCount.incrementAndGet();
+        } else if (response.networkResponse() != null) {
+            networkCount.incrementAndGet();
+        }
+    }
+
+    void recordStaleIfError() {
+        staleIfErrorCount.incrementAndGet();
+    }
+
+    /**
+     * 统计的group
+     *
+     * @return
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * 经过缓存的请求总次数
+     *
+     * @return
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 未访问网络、直接由缓存响应的次数(包括stale-if-error)
+     *
+     * @return
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 条件请求返回304、使用缓存响应体的次数
+     *
+     * @return
+     */
+    public long getRevalidatedCount() {
+        return revalidatedCount.get();
+    }
+
+    /**
+     * 从网络下载完整响应体的次数
+     *
+     * @return
+     */
+    public long getNetworkCount() {
+        return networkCount.get();
+    }
+
+    /**
+     * 网络失败时使用过期缓存的次数
+     *
+     * @return
+     */
+    public long getStaleIfErrorCount() {
+        return staleIfErrorCount.get();
+    }
+
+    /**
+     * 命中率(0-1)，直接命中和304都算命中，无请求时为0
+     *
+     * @return
+     */
+    public double getHitRate() {
+        final long count = requestCount.get();
+        return count == 0 ? 0 : (double) (hitCount.get() + revalidatedCount.get()) / count;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpCacheStats{" +
+                "group=" + group +
+                ", requestCount=" + requestCount.get() +
+                ", hitCount=" + hitCount.get() +
+                ", revalidatedCount=" + revalidatedCount.get() +
+                ", networkCount=" + networkCount.get() +
+                ", staleIfErrorCount=" + staleIfErrorCount.get() +
+                '}';
+    }
+}
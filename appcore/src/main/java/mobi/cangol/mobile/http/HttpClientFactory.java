@@ -16,8 +16,14 @@
 package mobi.cangol.mobile.http;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -25,8 +31,13 @@ import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -39,8 +50,12 @@ import javax.net.ssl.X509TrustManager;
 
 import mobi.cangol.mobile.logging.Log;
 import okhttp3.Authenticator;
+import okhttp3.Cache;
 import okhttp3.CertificatePinner;
+import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -51,28 +66,114 @@ public class HttpClientFactory {
     private static final int DEFAULT_CONNECT_TIMEOUT = 20 * 1000;
     private static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
     private static final int DEFAULT_WRITE_TIMEOUT = 20 * 1000;
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    private static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000L;
+    private static final long DEFAULT_DNS_TTL = 60 * 1000L;
 
+    private static int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private static long keepAliveDuration = DEFAULT_KEEP_ALIVE_DURATION;
+    private static long dnsTtl = DEFAULT_DNS_TTL;
     private static OkHttpClient httpClient;
-    private HttpClientFactory(){}
+    private static CachingDns dnsCache;
+    private static final Map<String, Cache> caches = new HashMap<>();
+
+    private HttpClientFactory() {
+    }
+
     /**
-     * 创建默的 HttpClient
+     * 配置共享连接池，需在第一次创建HttpClient之前调用，之后调用只影响新创建的HttpClient
      *
-     * @return
+     * @param maxIdle   最大空闲连接数
+     * @param keepAlive 空闲连接保持时间(毫秒)
      */
-    public static OkHttpClient createDefaultHttpClient() {
+    public static synchronized void setConnectionPool(int maxIdle, long keepAlive) {
+        maxIdleConnections = maxIdle;
+        keepAliveDuration = keepAlive;
+        httpClient = null;
+    }
 
-        httpClient = new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
-                .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
-                .build();
+    /**
+     * 配置共享DNS缓存的有效期，0为不缓存，需在第一次创建HttpClient之前调用
+     *
+     * @param ttl 有效期(毫秒)
+     */
+    public static synchronized void setDnsTtl(long ttl) {
+        dnsTtl = ttl;
+        httpClient = null;
+    }
 
+    /**
+     * 清空共享DNS缓存，网络切换后调用，之后的请求重新解析
+     */
+    public static synchronized void clearDnsCache() {
+        if (dnsCache != null) {
+            dnsCache.clear();
+        }
+    }
+
+    /**
+     * 获取进程共享的HttpClient，所有HttpClient都由它派生，
+     * Dns和SocketFactory会上报dns和connect耗时给HttpMetrics
+     *
+     * @return
+     */
+    public static synchronized OkHttpClient getSharedHttpClient() {
+        if (httpClient == null) {
+            dnsCache = dnsTtl > 0 ? new CachingDns(dnsTtl) : null;
+            httpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveDuration, TimeUnit.MILLISECONDS))
+                    .dispatcher(new Dispatcher())
+                    .dns(new TimingDns(dnsCache != null ? dnsCache : Dns.SYSTEM))
+                    .socketFactory(new TimingSocketFactory(dnsCache))
+                    .retryOnConnectionFailure(true)
+                    .followRedirects(true)
+                    .followSslRedirects(true)
+                    .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .build();
+        }
         return httpClient;
     }
 
+    /**
+     * 从共享HttpClient派生Builder，共享连接池、DNS缓存和调度线程池，
+     * Dispatcher各自独立，使cancelAll只取消本HttpClient的请求
+     *
+     * @return
+     */
+    public static OkHttpClient.Builder newBuilder() {
+        final OkHttpClient shared = getSharedHttpClient();
+        return shared.newBuilder()
+                .dispatcher(new Dispatcher(shared.dispatcher().executorService()));
+    }
+
+    /**
+     * 获取响应缓存，同一目录只创建一个Cache实例(OkHttp要求一个目录只能被一个Cache使用)
+     *
+     * @param directory 缓存目录，建议使用ConfigService.getCacheDir()下的子目录
+     * @param maxSize   最大容量(字节)，只在第一次创建时有效
+     * @return
+     */
+    public static synchronized Cache getCache(File directory, long maxSize) {
+        final String key = directory.getAbsolutePath();
+        Cache cache = caches.get(key);
+        if (cache == null) {
+            cache = new Cache(directory, maxSize);
+            caches.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * 创建默的 HttpClient
+     *
+     * @return
+     */
+    public static OkHttpClient createDefaultHttpClient() {
+        return newBuilder().build();
+    }
+
     /**
      * 创建 auth认证的 HttpClient
      *
@@ -82,13 +183,7 @@ public class HttpClientFactory {
      */
     public static OkHttpClient createAuthHttpClient(final String username, final String password) {
 
-        return new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
-                .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
+        return newBuilder()
                 .authenticator(new Authenticator() {
                     @Override
                     public Request authenticate(Route route, Response response) {
@@ -110,13 +205,7 @@ public class HttpClientFactory {
      */
     public static OkHttpClient createCertHttpClient(final String pattern, final String... pins) {
 
-        return new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
-                .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
+        return newBuilder()
                 .certificatePinner(new CertificatePinner.Builder()
                         .add(pattern, pins)
                         .build())
@@ -152,13 +241,7 @@ public class HttpClientFactory {
         }
 
 
-        return new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
-                .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
+        return newBuilder()
                 .socketFactory(sslSocketFactory)
                 .build();
     }
@@ -273,18 +356,165 @@ public class HttpClientFactory {
             Log.d(TAG, e.getMessage());
         }
 
-        return new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
-                .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
+        return newBuilder()
                 .sslSocketFactory(sslSocketFactory, trustManager)
                 .hostnameVerifier(new UnSafeHostnameVerifier())
                 .build();
     }
 
+    /**
+     * 带缓存的DNS，同一host在有效期内只解析一次；
+     * 未命中时清理过期的项，连接某地址失败时移除包含该地址的项
+     */
+    static class CachingDns implements Dns {
+        private final ConcurrentHashMap<String, DnsEntry> cache = new ConcurrentHashMap<>();
+        private final long ttl;
+
+        CachingDns(long ttl) {
+            this.ttl = ttl;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            final long now = System.currentTimeMillis();
+            final DnsEntry entry = cache.get(hostname);
+            if (entry != null && entry.expiresAt > now) {
+                return entry.addresses;
+            }
+            evictExpired(now);
+            final List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+            cache.put(hostname, new DnsEntry(addresses, System.currentTimeMillis() + ttl));
+            return addresses;
+        }
+
+        private void evictExpired(long now) {
+            for (final Map.Entry<String, DnsEntry> entry : cache.entrySet()) {
+                if (entry.getValue().expiresAt <= now) {
+                    cache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        void invalidate(InetAddress address) {
+            for (final Map.Entry<String, DnsEntry> entry : cache.entrySet()) {
+                if (entry.getValue().addresses.contains(address)) {
+                    cache.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        void clear() {
+            cache.clear();
+        }
+
+        int size() {
+            return cache.size();
+        }
+    }
+
+    /**
+     * 统计dns耗时
+     */
+    private static class TimingDns implements Dns {
+        private final Dns delegate;
+
+        TimingDns(Dns delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            final long start = System.nanoTime();
+            try {
+                return delegate.lookup(hostname);
+            } finally {
+                HttpMetricsInterceptor.onDns(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * 统计connect耗时，OkHttp使用无参的createSocket创建socket再connect
+     */
+    private static class TimingSocketFactory extends SocketFactory {
+        private final CachingDns dnsCache;
+
+        TimingSocketFactory(CachingDns dnsCache) {
+            this.dnsCache = dnsCache;
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new TimingSocket(dnsCache);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            final Socket socket = new TimingSocket(dnsCache);
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            final Socket socket = new TimingSocket(dnsCache);
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            final Socket socket = new TimingSocket(dnsCache);
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            final Socket socket = new TimingSocket(dnsCache);
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(address, port));
+            return socket;
+        }
+    }
+
+    /**
+     * 统计connect耗时，连接失败时从DNS缓存中移除该地址
+     */
+    private static class TimingSocket extends Socket {
+        private final CachingDns dnsCache;
+
+        TimingSocket(CachingDns dnsCache) {
+            this.dnsCache = dnsCache;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                super.connect(endpoint, timeout);
+            } catch (IOException e) {
+                if (dnsCache != null && endpoint instanceof InetSocketAddress) {
+                    dnsCache.invalidate(((InetSocketAddress) endpoint).getAddress());
+                }
+                throw e;
+            } finally {
+                HttpMetricsInterceptor.onConnect(start, System.nanoTime());
+            }
+        }
+    }
+
+    private static class DnsEntry {
+        private final List<InetAddress> addresses;
+        private final long expiresAt;
+
+        DnsEntry(List<InetAddress> addresses, long expiresAt) {
+            this.addresses = addresses;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     /**
      * 不验证host
      */
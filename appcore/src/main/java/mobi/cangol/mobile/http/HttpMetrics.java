@@ -0,0 +1,534 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import mobi.cangol.mobile.logging.Log;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+
+/**
+ * HTTP请求性能统计，记录每次请求各阶段耗时、收发字节数和重试次数，并按host聚合为直方图
+ * <p/>
+ * 通过instrument为OkHttpClient添加拦截器，可多个client共用一个实例，线程安全
+ */
+public final class HttpMetrics {
+    public static final int PHASE_DNS = 0;
+    public static final int PHASE_CONNECT = 1;
+    public static final int PHASE_TLS = 2;
+    public static final int PHASE_TTFB = 3;
+    public static final int PHASE_TRANSFER = 4;
+    public static final int PHASE_TOTAL = 5;
+    static final int PHASE_COUNT = 6;
+    private static final String TAG = "HttpMetrics";
+    private static final String[] PHASE_NAMES = {"dns", "connect", "tls", "ttfb", "transfer", "total"};
+    /**
+     * 直方图各桶的上界(毫秒)，最后一个桶收集超过30s的值
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, Long.MAX_VALUE};
+    private final String name;
+    private final HttpMetricsInterceptor interceptor;
+    private volatile ConcurrentHashMap<String, HostRecorder> hosts = new ConcurrentHashMap<>();
+    private volatile OnCallListener onCallListener;
+
+    public HttpMetrics(String name) {
+        this.name = name;
+        this.interceptor = new HttpMetricsInterceptor(this);
+    }
+
+    /**
+     * 为client添加统计拦截器，返回新的OkHttpClient，已有的统计拦截器会被替换
+     *
+     * @param client
+     * @param metrics 为null时移除统计
+     * @return
+     */
+    public static OkHttpClient instrument(OkHttpClient client, HttpMetrics metrics) {
+        final OkHttpClient.Builder builder = client.newBuilder();
+        removeInterceptors(builder.interceptors().iterator());
+        removeInterceptors(builder.networkInterceptors().iterator());
+        if (metrics != null) {
+            builder.interceptors().add(0, metrics.interceptor);
+            builder.addNetworkInterceptor(metrics.interceptor.networkInterceptor);
+        }
+        return builder.build();
+    }
+
+    private static void removeInterceptors(Iterator<Interceptor> iterator) {
+        while (iterator.hasNext()) {
+            final Interceptor interceptor = iterator.next();
+            if (interceptor instanceof HttpMetricsInterceptor
+                    || interceptor instanceof HttpMetricsInterceptor.NetworkInterceptor) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 阶段名称，用于日志和上报
+     *
+     * @param phase PHASE_*
+     * @return
+     */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 设置单次请求完成的回调，在请求线程(或读取响应体的线程)回调
+     *
+     * @param onCallListener
+     */
+    public void setOnCallListener(OnCallListener onCallListener) {
+        this.onCallListener = onCallListener;
+    }
+
+    void record(CallMetrics call) {
+        final ConcurrentHashMap<String, HostRecorder> current = hosts;
+        HostRecorder recorder = current.get(call.host);
+        if (recorder == null) {
+            current.putIfAbsent(call.host, new HostRecorder(call.host));
+            recorder = current.get(call.host);
+        }
+        recorder.record(call);
+        final OnCallListener listener = onCallListener;
+        if (listener != null) {
+            try {
+                listener.onCall(call);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "onCall " + e);
+            }
+        }
+    }
+
+    /**
+     * 获取各host统计的快照
+     *
+     * @return host为key，不可修改
+     */
+    public Map<String, HostMetrics> getSnapshot() {
+        return getSnapshot(false);
+    }
+
+    /**
+     * 获取各host统计的快照
+     *
+     * @param reset 是否同时清空统计，用于按周期上报
+     * @return host为key，不可修改
+     */
+    public Map<String, HostMetrics> getSnapshot(boolean reset) {
+        final ConcurrentHashMap<String, HostRecorder> current = hosts;
+        if (reset) {
+            hosts = new ConcurrentHashMap<>();
+        }
+        final Map<String, HostMetrics> snapshot = new HashMap<>();
+        for (final HostRecorder recorder : current.values()) {
+            snapshot.put(recorder.host, recorder.snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * 获取单个host统计的快照
+     *
+     * @param host
+     * @return 无请求时为null
+     */
+    public HostMetrics getSnapshot(String host) {
+        final HostRecorder recorder = hosts.get(host);
+        return recorder == null ? null : recorder.snapshot();
+    }
+
+    /**
+     * 清空统计
+     */
+    public void reset() {
+        hosts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 单次请求完成的回调
+     */
+    public interface OnCallListener {
+        void onCall(CallMetrics call);
+    }
+
+    /**
+     * 单次请求的统计，包括OkHttp内部的重定向，不包括响应缓存的读取
+     */
+    public static final class CallMetrics {
+        final String host;
+        final String method;
+        final boolean retry;
+        final long[] phases = new long[PHASE_COUNT];
+        int code = -1;
+        boolean connectionReused;
+        long bytesOut;
+        long bytesIn;
+        long startNanos;
+        long connectNanos;
+        boolean connected;
+        long responseNanos;
+        boolean finished;
+
+        CallMetrics(String host, String method, boolean retry) {
+            this.host = host;
+            this.method = method;
+            this.retry = retry;
+            Arrays.fill(phases, -1);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * 响应码，网络异常时为-1
+         *
+         * @return
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * 是否失败，网络异常或5xx
+         *
+         * @return
+         */
+        public boolean isFailed() {
+            return code < 0 || code >= 500;
+        }
+
+        /**
+         * 是否为同一请求的重试
+         *
+         * @return
+         */
+        public boolean isRetry() {
+            return retry;
+        }
+
+        /**
+         * 是否复用了连接池中的连接
+         *
+         * @return
+         */
+        public boolean isConnectionReused() {
+            return connectionReused;
+        }
+
+        /**
+         * 发送的字节数(请求头+请求体)
+         *
+         * @return
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * 从网络接收的响应体字节数(压缩后)
+         *
+         * @return
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * 阶段耗时
+         *
+         * @param phase PHASE_*
+         * @return 毫秒，未经历该阶段(如复用连接没有dns/connect/tls)时为-1
+         */
+        public long getPhaseTime(int phase) {
+            return phases[phase] < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(phases[phase]);
+        }
+
+        void addPhase(int phase, long nanos) {
+            phases[phase] = Math.max(phases[phase], 0) + nanos;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("CallMetrics{host=").append(host)
+                    .append(", method=").append(method)
+                    .append(", code=").append(code)
+                    .append(", retry=").append(retry)
+                    .append(", reused=").append(connectionReused)
+                    .append(", bytesOut=").append(bytesOut)
+                    .append(", bytesIn=").append(bytesIn);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                builder.append(", ").append(PHASE_NAMES[i]).append('=').append(getPhaseTime(i));
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * 单个host的统计快照
+     */
+    public static final class HostMetrics {
+        private final String host;
+        private final long callCount;
+        private final long failureCount;
+        private final long retryCount;
+        private final long reusedCount;
+        private final long bytesOut;
+        private final long bytesIn;
+        private final Histogram[] histograms;
+
+        HostMetrics(String host, long callCount, long failureCount, long retryCount, long reusedCount,
+                    long bytesOut, long bytesIn, Histogram[] histograms) {
+            this.host = host;
+            this.callCount = callCount;
+            this.failureCount = failureCount;
+            this.retryCount = retryCount;
+            this.reusedCount = reusedCount;
+            this.bytesOut = bytesOut;
+            this.bytesIn = bytesIn;
+            this.histograms = histograms;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getCallCount() {
+            return callCount;
+        }
+
+        /**
+         * 失败次数，网络异常或5xx
+         *
+         * @return
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * 重试次数
+         *
+         * @return
+         */
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * 复用连接的请求次数
+         *
+         * @return
+         */
+        public long getReusedCount() {
+            return reusedCount;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * 阶段耗时直方图
+         *
+         * @param phase PHASE_*
+         * @return
+         */
+        public Histogram getHistogram(int phase) {
+            return histograms[phase];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("HostMetrics{host=").append(host)
+                    .append(", callCount=").append(callCount)
+                    .append(", failureCount=").append(failureCount)
+                    .append(", retryCount=").append(retryCount)
+                    .append(", reusedCount=").append(reusedCount)
+                    .append(", bytesOut=").append(bytesOut)
+                    .append(", bytesIn=").append(bytesIn);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                builder.append(", ").append(PHASE_NAMES[i]).append('=').append(histograms[i]);
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    /**
+     * 耗时直方图(毫秒)，固定桶1ms~30s
+     */
+    public static final class Histogram {
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        Histogram() {
+            this.counts = new long[BUCKETS.length];
+        }
+
+        private Histogram(Histogram source) {
+            this.counts = source.counts.clone();
+            this.count = source.count;
+            this.sum = source.sum;
+            this.max = source.max;
+        }
+
+        void record(long millis) {
+            int index = 0;
+            while (millis > BUCKETS[index]) {
+                index++;
+            }
+            counts[index]++;
+            count++;
+            sum += millis;
+            max = Math.max(max, millis);
+        }
+
+        Histogram copy() {
+            return new Histogram(this);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * 估算分位值，返回所在桶的上界(不超过最大值)
+         *
+         * @param percentile 0-1，如0.5、0.9、0.99
+         * @return 毫秒，无数据时为0
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKETS[i], max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * 各桶的上界(毫秒)
+         *
+         * @return
+         */
+        public long[] getBucketBounds() {
+            return BUCKETS.clone();
+        }
+
+        /**
+         * 各桶的计数，与getBucketBounds一一对应
+         *
+         * @return
+         */
+        public long[] getBucketCounts() {
+            return counts.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", mean=" + getMean() + ", p50=" + getPercentile(0.5)
+                    + ", p90=" + getPercentile(0.9) + ", max=" + max + '}';
+        }
+    }
+
+    private static class HostRecorder {
+        private final String host;
+        private final Histogram[] histograms = new Histogram[PHASE_COUNT];
+        private long callCount;
+        private long failureCount;
+        private long retryCount;
+        private long reusedCount;
+        private long bytesOut;
+        private long bytesIn;
+
+        HostRecorder(String host) {
+            this.host = host;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        synchronized void record(CallMetrics call) {
+            callCount++;
+            if (call.isFailed()) {
+                failureCount++;
+            }
+            if (call.retry) {
+                retryCount++;
+            }
+            if (call.connectionReused) {
+                reusedCount++;
+            }
+            bytesOut += call.bytesOut;
+            bytesIn += call.bytesIn;
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                final long millis = call.getPhaseTime(i);
+                if (millis >= 0) {
+                    histograms[i].record(millis);
+                }
+            }
+        }
+
+        synchronized HostMetrics snapshot() {
+            final Histogram[] copies = new Histogram[PHASE_COUNT];
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                copies[i] = histograms[i].copy();
+            }
+            return new HostMetrics(host, callCount, failureCount, retryCount, reusedCount, bytesOut, bytesIn, copies);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import mobi.cangol.mobile.http.HttpMetrics.CallMetrics;
+import okhttp3.Connection;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * 请求统计拦截器，作为应用拦截器统计总耗时和重试，内部的NetworkInterceptor统计TTFB和收发字节数
+ * <p/>
+ * OkHttp3.6没有EventListener，dns和connect耗时由HttpClientFactory共享的Dns和SocketFactory
+ * 通过ThreadLocal上报(OkHttp在调用线程上建立连接)，TLS耗时为connect结束到请求发出的间隔
+ */
+class HttpMetricsInterceptor implements Interceptor {
+    private static final ThreadLocal<CallMetrics> CURRENT = new ThreadLocal<>();
+    final NetworkInterceptor networkInterceptor = new NetworkInterceptor();
+    private final HttpMetrics metrics;
+    /**
+     * 已发出的请求，同一个Request对象再次发出即为重试
+     */
+    private final Map<Request, Boolean> issued = Collections.synchronizedMap(new WeakHashMap<Request, Boolean>());
+
+    HttpMetricsInterceptor(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * dns解析完成，由HttpClientFactory的Dns调用
+     *
+     * @param nanos 解析耗时
+     */
+    static void onDns(long nanos) {
+        final CallMetrics call = CURRENT.get();
+        if (call != null) {
+            call.addPhase(HttpMetrics.PHASE_DNS, nanos);
+        }
+    }
+
+    /**
+     * socket连接完成(包括失败)，由HttpClientFactory的SocketFactory调用
+     *
+     * @param startNanos
+     * @param endNanos
+     */
+    static void onConnect(long startNanos, long endNanos) {
+        final CallMetrics call = CURRENT.get();
+        if (call != null) {
+            call.addPhase(HttpMetrics.PHASE_CONNECT, endNanos - startNanos);
+            call.connectNanos = endNanos;
+            call.connected = true;
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final CallMetrics call = new CallMetrics(request.url().host(), request.method(), issued.put(request, Boolean.TRUE) != null);
+        call.startNanos = System.nanoTime();
+        final CallMetrics outer = CURRENT.get();
+        CURRENT.set(call);
+        final Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            finish(call);
+            throw e;
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+        call.code = response.code();
+        call.responseNanos = System.nanoTime();
+        if (response.body() == null || response.body().contentLength() == 0) {
+            finish(call);
+            return response;
+        }
+        return response.newBuilder()
+                .body(new MetricsResponseBody(response.body(), call, false))
+                .build();
+    }
+
+    private void finish(CallMetrics call) {
+        synchronized (call) {
+            if (call.finished) {
+                return;
+            }
+            call.finished = true;
+            final long now = System.nanoTime();
+            call.phases[HttpMetrics.PHASE_TOTAL] = now - call.startNanos;
+            if (call.code >= 0) {
+                call.phases[HttpMetrics.PHASE_TRANSFER] = now - call.responseNanos;
+            }
+        }
+        metrics.record(call);
+    }
+
+    private static long byteCount(Request request) throws IOException {
+        long count = request.method().length() + request.url().encodedPath().length() + 11;
+        final Headers headers = request.headers();
+        for (int i = 0; i < headers.size(); i++) {
+            count += headers.name(i).length() + headers.value(i).length() + 4;
+        }
+        if (request.body() != null) {
+            count += Math.max(0, request.body().contentLength());
+        }
+        return count;
+    }
+
+    /**
+     * 网络拦截器，每次网络请求(包括重定向)调用一次，缓存命中时不调用
+     */
+    final class NetworkInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            final CallMetrics call = CURRENT.get();
+            if (call == null) {
+                return chain.proceed(chain.request());
+            }
+            final Request request = chain.request();
+            final long start = System.nanoTime();
+            final Connection connection = chain.connection();
+            // 本次网络请求前没有新建socket即为复用连接
+            call.connectionReused = !call.connected;
+            if (call.connected && connection != null && connection.handshake() != null) {
+                call.addPhase(HttpMetrics.PHASE_TLS, start - call.connectNanos);
+            }
+            call.connected = false;
+            call.bytesOut += byteCount(request);
+            final Response response = chain.proceed(request);
+            // 复用连接时包括请求发送耗时
+            call.phases[HttpMetrics.PHASE_TTFB] = System.nanoTime() - start;
+            if (response.body() == null) {
+                return response;
+            }
+            return response.newBuilder()
+                    .body(new MetricsResponseBody(response.body(), call, true))
+                    .build();
+        }
+    }
+
+    /**
+     * network为true时统计接收字节数，否则在读完或关闭时结束统计
+     */
+    private final class MetricsResponseBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final CallMetrics call;
+        private final boolean network;
+        private BufferedSource source;
+
+        MetricsResponseBody(ResponseBody delegate, CallMetrics call, boolean network) {
+            this.delegate = delegate;
+            this.call = call;
+            this.network = network;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public synchronized BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        final long read;
+                        try {
+                            read = super.read(sink, byteCount);
+                        } catch (IOException e) {
+                            if (!network) {
+                                finish(call);
+                            }
+                            throw e;
+                        }
+                        if (network && read > 0) {
+                            call.bytesIn += read;
+                        } else if (!network && read == -1) {
+                            finish(call);
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            if (!network) {
+                                finish(call);
+                            }
+                        }
+                    }
+                });
+            }
+            return source;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+/**
+ * JSON格式的批量请求编解码
+ * <pre>
+ * 请求: [{"method":"GET","url":"/path?query","headers":{"name":"value"},"body":"..."}, ...]
+ * 响应: [{"code":200,"headers":{"Content-Type":"application/json"},"body":"..."}, ...]
+ * </pre>
+ * url为相对路径，请求和响应的body都是UTF-8文本
+ */
+public class JsonBatchCodec implements BatchCodec {
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final String CONTENT_TYPE = "Content-Type";
+
+    @Override
+    public RequestBody encode(List<Request> requests) throws IOException {
+        final JSONArray array = new JSONArray();
+        try {
+            for (final Request request : requests) {
+                final JSONObject item = new JSONObject();
+                item.put("method", request.method());
+                final String query = request.url().encodedQuery();
+                item.put("url", query == null ? request.url().encodedPath() : request.url().encodedPath() + '?' + query);
+                final JSONObject headers = new JSONObject();
+                for (int i = 0; i < request.headers().size(); i++) {
+                    headers.put(request.headers().name(i), request.headers().value(i));
+                }
+                final RequestBody body = request.body();
+                if (body != null) {
+                    if (body.contentType() != null) {
+                        headers.put(CONTENT_TYPE, body.contentType().toString());
+                    }
+                    final Buffer buffer = new Buffer();
+                    body.writeTo(buffer);
+                    item.put("body", buffer.readUtf8());
+                }
+                item.put("headers", headers);
+                array.put(item);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        return RequestBody.create(MEDIA_TYPE_JSON, array.toString());
+    }
+
+    @Override
+    public List<Response> decode(List<Request> requests, Response response) throws IOException {
+        final List<Response> responses = new ArrayList<>(requests.size());
+        try {
+            final JSONArray array = new JSONArray(response.body().string());
+            for (int i = 0; i < array.length() && i < requests.size(); i++) {
+                final JSONObject item = array.getJSONObject(i);
+                final Headers.Builder headers = new Headers.Builder();
+                final JSONObject headerObject = item.optJSONObject("headers");
+                if (headerObject != null) {
+                    final Iterator<?> names = headerObject.keys();
+                    while (names.hasNext()) {
+                        final String name = (String) names.next();
+                        headers.add(name, headerObject.getString(name));
+                    }
+                }
+                final String contentType = headerObject == null ? null : headerObject.optString(CONTENT_TYPE, null);
+                responses.add(new Response.Builder()
+                        .request(requests.get(i))
+                        .protocol(response.protocol())
+                        .code(item.getInt("code"))
+                        .message(item.optString("message", ""))
+                        .headers(headers.build())
+                        .body(ResponseBody.create(contentType == null ? null : MediaType.parse(contentType), item.optString("body", "")))
+                        .sentRequestAtMillis(response.sentRequestAtMillis())
+                        .receivedResponseAtMillis(response.receivedResponseAtMillis())
+                        .build());
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        return responses;
+    }
+}
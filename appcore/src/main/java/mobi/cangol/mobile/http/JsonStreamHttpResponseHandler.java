@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.content.Context;
+import android.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import okhttp3.MediaType;
+import okio.BufferedSource;
+
+/**
+ * JSON流式响应处理，通过JsonReader逐个读取token并直接构建数据模型，
+ * 不生成完整的响应字符串和JSONObject
+ *
+ * @param <T> 数据模型类型
+ */
+public abstract class JsonStreamHttpResponseHandler<T> extends StreamHttpResponseHandler<T> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public JsonStreamHttpResponseHandler() {
+        super();
+    }
+
+    public JsonStreamHttpResponseHandler(Context context) {
+        super(context);
+    }
+
+    /**
+     * 读取JSON并构建数据模型(在请求线程中执行)
+     *
+     * @param reader JSON读取器
+     * @return 数据模型
+     * @throws IOException
+     */
+    protected abstract T readJson(JsonReader reader) throws IOException;
+
+    @Override
+    protected T parseResponse(BufferedSource source, MediaType contentType, long contentLength) throws IOException {
+        final Charset charset = contentType != null ? contentType.charset(UTF_8) : UTF_8;
+        final JsonReader reader = new JsonReader(new InputStreamReader(source.inputStream(), charset));
+        try {
+            return readJson(reader);
+        } catch (IllegalStateException e) {
+            // JsonReader在token类型不符时抛出IllegalStateException
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * 包装请求体，边写边回调上传进度，可选使用chunked传输(不声明Content-Length)
+ * <p/>
+ * 请求体按Okio的Segment(8KB)流式写出，不会整体读入内存
+ */
+public class ProgressRequestBody extends RequestBody {
+    private static final long PROGRESS_INTERVAL = 200L;
+    private final RequestBody delegate;
+    private final AsyncHttpResponseHandler responseHandler;
+    private final boolean chunked;
+
+    /**
+     * @param delegate        原请求体
+     * @param responseHandler 接收onProgress回调
+     * @param chunked         是否使用chunked传输
+     */
+    public ProgressRequestBody(RequestBody delegate, AsyncHttpResponseHandler responseHandler, boolean chunked) {
+        this.delegate = delegate;
+        this.responseHandler = responseHandler;
+        this.chunked = chunked;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return chunked ? -1 : delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        final ProgressSink progressSink = new ProgressSink(sink, contentLength());
+        final BufferedSink bufferedSink = Okio.buffer(progressSink);
+        delegate.writeTo(bufferedSink);
+        bufferedSink.emit();
+        progressSink.sendProgress();
+    }
+
+    private class ProgressSink extends ForwardingSink {
+        private final long totalSize;
+        private long bytesWritten;
+        private long reported = -1;
+        private long lastTime;
+
+        ProgressSink(BufferedSink sink, long totalSize) {
+            super(sink);
+            this.totalSize = totalSize;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            bytesWritten += byteCount;
+            if (System.currentTimeMillis() - lastTime >= PROGRESS_INTERVAL) {
+                sendProgress();
+            }
+        }
+
+        void sendProgress() {
+            if (responseHandler != null && reported != bytesWritten) {
+                reported = bytesWritten;
+                lastTime = System.currentTimeMillis();
+                responseHandler.sendProgressMessage(bytesWritten, totalSize);
+            }
+        }
+    }
+}
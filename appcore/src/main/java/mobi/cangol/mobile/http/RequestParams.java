@@ -26,6 +26,7 @@ public class RequestParams {
 
     protected ConcurrentHashMap<String, String> urlParams;
     protected ConcurrentHashMap<String, File> fileParams;
+    private boolean chunked;
 
     public RequestParams() {
         init();
@@ -70,6 +71,19 @@ public class RequestParams {
         }
     }
 
+    /**
+     * 有文件时使用chunked传输上传，不预先计算Content-Length，默认false
+     *
+     * @param chunked
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
     public void remove(String key) {
         urlParams.remove(key);
         fileParams.remove(key);
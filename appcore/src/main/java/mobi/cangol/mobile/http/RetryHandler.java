@@ -24,11 +24,24 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Random;
 
 import javax.net.ssl.SSLHandshakeException;
 
+import okhttp3.Request;
+
+/**
+ * 重试策略，可继承后通过AsyncHttpClient.setRetryHandler替换
+ * <p/>
+ * 重试间隔按指数退避增长并加入随机抖动；POST、PATCH等非幂等请求默认不重试，
+ * 除非请求头带有Idempotency-Key；每个host的重试受CircuitBreaker的重试预算限制。
+ */
 public class RetryHandler {
+    public static final String HEADER_IDEMPOTENCY_KEY = "Idempotency-Key";
     private static final long RETRY_SLEEP_TIME_MILLIS = 1500L;
+    private static final long DEFAULT_BASE_DELAY = 1000L;
+    private static final long DEFAULT_MAX_DELAY = 30 * 1000L;
+    private static final HashSet<String> idempotentMethods = new HashSet<>();
     private static HashSet<Class<?>> exceptionWhitelist = new HashSet<>();
     private static HashSet<Class<?>> exceptionBlacklist = new HashSet<>();
 
@@ -45,15 +58,160 @@ public class RetryHandler {
         exceptionBlacklist.add(InterruptedIOException.class);
         // never retry SSL handshake failures
         exceptionBlacklist.add(SSLHandshakeException.class);
+
+        idempotentMethods.add("GET");
+        idempotentMethods.add("HEAD");
+        idempotentMethods.add("PUT");
+        idempotentMethods.add("DELETE");
+        idempotentMethods.add("OPTIONS");
+        idempotentMethods.add("TRACE");
     }
 
+    private final Random random = new Random();
     private int maxRetries;
+    private long baseDelay = DEFAULT_BASE_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
 
     public RetryHandler(int maxRetries) {
         this.maxRetries = maxRetries;
     }
 
+    /**
+     * 设置指数退避，第n次重试的间隔为 min(maxDelay, baseDelay*2^(n-1)) 的50%-100%
+     *
+     * @param baseDelay 第一次重试的间隔(毫秒)
+     * @param maxDelay  最大间隔(毫秒)
+     */
+    public void setBackoff(long baseDelay, long maxDelay) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * 设置熔断器，null为不熔断、不限制重试预算
+     *
+     * @param circuitBreaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * 是否允许发起请求，host熔断时返回false
+     *
+     * @param request
+     * @return
+     */
+    public boolean allowRequest(Request request) {
+        return circuitBreaker == null || circuitBreaker.allowRequest(request.url().host());
+    }
+
+    /**
+     * 记录请求结果，用于熔断统计
+     *
+     * @param request
+     * @param success 收到非5xx响应为成功
+     */
+    public void recordResult(Request request, boolean success) {
+        if (circuitBreaker != null) {
+            if (success) {
+                circuitBreaker.recordSuccess(request.url().host());
+            } else {
+                circuitBreaker.recordFailure(request.url().host());
+            }
+        }
+    }
+
+    /**
+     * 请求是否可以安全重试，幂等方法或带有Idempotency-Key请求头
+     *
+     * @param request
+     * @return
+     */
+    protected boolean isRetrySafe(Request request) {
+        return idempotentMethods.contains(request.method()) || request.header(HEADER_IDEMPOTENCY_KEY) != null;
+    }
+
+    /**
+     * 判断是否重试，不等待，由调用者在getRetrySleepTime(executionCount)后重试
+     *
+     * @param request
+     * @param exception
+     * @param executionCount 已执行次数
+     * @return
+     */
+    public boolean shouldRetry(Request request, IOException exception, int executionCount) {
+        if (!isRetrySafe(request)) {
+            Log.d("retryRequest", "not retry " + request.method() + " " + request.url());
+            return false;
+        }
+        if (!shouldRetry(exception, executionCount)) {
+            return false;
+        }
+        if (circuitBreaker != null && !circuitBreaker.acquireRetry(request.url().host())) {
+            Log.d("retryRequest", "retry budget exhausted " + request.url().host());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 判断是否重试，需要重试时在当前线程按退避间隔等待
+     *
+     * @param request
+     * @param exception
+     * @param executionCount 已执行次数
+     * @return
+     */
+    public boolean retryRequest(Request request, IOException exception, int executionCount) {
+        final boolean retry = shouldRetry(request, exception, executionCount);
+        if (retry) {
+            SystemClock.sleep(getRetrySleepTime(executionCount));
+        }
+        return retry;
+    }
+
+    /**
+     * 第executionCount次执行失败后的重试间隔(毫秒)，指数退避加随机抖动
+     *
+     * @param executionCount 已执行次数
+     * @return
+     */
+    public long getRetrySleepTime(int executionCount) {
+        final int shift = Math.min(Math.max(executionCount - 1, 0), 30);
+        final long delay = Math.min(maxDelay, baseDelay << shift);
+        final long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    /**
+     * 判断是否重试，需要重试时在当前线程等待重试间隔
+     *
+     * @param exception
+     * @param executionCount 已执行次数
+     * @return
+     */
     public boolean retryRequest(IOException exception, int executionCount) {
+        final boolean retry = shouldRetry(exception, executionCount);
+        if (retry) {
+            SystemClock.sleep(getRetrySleepTime());
+        }
+        return retry;
+    }
+
+    /**
+     * 判断是否重试，不等待，由调用者在getRetrySleepTime()后重试
+     *
+     * @param exception
+     * @param executionCount 已执行次数
+     * @return
+     */
+    public boolean shouldRetry(IOException exception, int executionCount) {
         Log.d("retryRequest", "exception:" + exception.getClass() + " executionCount=" + executionCount);
         boolean retry = true;
         if (executionCount > maxRetries) {
@@ -66,13 +224,19 @@ public class RetryHandler {
             // immediately retry if error is whitelisted
         }
 
-        if (retry) {
-            SystemClock.sleep(RETRY_SLEEP_TIME_MILLIS);
-        } else {
+        if (!retry) {
             Log.d(getClass().getName(), exception.getMessage());
         }
 
         return retry;
     }
-}
 
+    /**
+     * 固定的重试间隔(毫秒)，不区分执行次数时使用
+     *
+     * @return
+     */
+    public long getRetrySleepTime() {
+        return RETRY_SLEEP_TIME_MILLIS;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.content.Context;
+import android.os.Message;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * 流式响应处理，响应体不会整体读入内存
+ * <p/>
+ * parseResponse在请求线程中直接读取BufferedSource，只把解析结果发送到调用线程(通常为主线程)
+ *
+ * @param <T> 解析结果类型
+ */
+public abstract class StreamHttpResponseHandler<T> extends AsyncHttpResponseHandler {
+    protected static final int SUCCESS_STREAM_MESSAGE = 200;
+
+    public StreamHttpResponseHandler() {
+        super();
+    }
+
+    public StreamHttpResponseHandler(Context context) {
+        super(context);
+    }
+
+    /**
+     * 解析响应体(在请求线程中执行)
+     *
+     * @param source        响应体数据源
+     * @param contentType   响应体类型，可能为null
+     * @param contentLength 响应体长度，未知时为-1
+     * @return 解析结果
+     * @throws IOException
+     */
+    protected abstract T parseResponse(BufferedSource source, MediaType contentType, long contentLength) throws IOException;
+
+    /**
+     * 请求成功(在调用线程中执行)
+     *
+     * @param statusCode 状态码
+     * @param result     parseResponse的解析结果
+     */
+    public void onStreamSuccess(int statusCode, T result) {
+        //do nothings
+    }
+
+    protected void sendStreamSuccessMessage(int statusCode, T result) {
+        sendMessage(obtainMessage(SUCCESS_STREAM_MESSAGE, new Object[]{statusCode, result}));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void handleMessage(Message msg) {
+        if (msg.what == SUCCESS_STREAM_MESSAGE) {
+            final Object[] response = (Object[]) msg.obj;
+            onStreamSuccess(((Integer) response[0]).intValue(), (T) response[1]);
+        } else {
+            super.handleMessage(msg);
+        }
+    }
+
+    @Override
+    void sendResponseMessage(Response response) {
+        final ResponseBody responseBody = response.body();
+        try {
+            if (response.isSuccessful()) {
+                final T result = parseResponse(responseBody.source(), responseBody.contentType(), responseBody.contentLength());
+                sendStreamSuccessMessage(response.code(), result);
+            } else {
+                sendFailureMessage(new IOException("code=" + response.code()), response.message());
+            }
+        } catch (IOException e) {
+            sendFailureMessage(e, response.message());
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.http;
+
+import android.content.Context;
+import android.os.Message;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.util.List;
+
+import mobi.cangol.mobile.parser.JSONParserException;
+import mobi.cangol.mobile.parser.JsonUtils;
+import okhttp3.Response;
+
+/**
+ * 类型化JSON响应处理，在请求线程中完成JSON解析和对象绑定(JsonUtils)，
+ * 调用线程(通常为主线程)只接收解析好的对象
+ * <p/>
+ * 响应体为JSON对象时回调onSuccess(T)，为JSON数组时回调onSuccess(List)
+ *
+ * @param <T> 数据模型类型
+ */
+public class TypedJsonHttpResponseHandler<T> extends AsyncHttpResponseHandler {
+    protected static final int SUCCESS_TYPED_MESSAGE = 300;
+    private final Class<T> mClass;
+    private final boolean mUseAnnotation;
+    private volatile long mNetworkTime;
+    private volatile long mParseTime;
+
+    public TypedJsonHttpResponseHandler(Class<T> clazz) {
+        this(clazz, true);
+    }
+
+    public TypedJsonHttpResponseHandler(Class<T> clazz, boolean useAnnotation) {
+        super();
+        this.mClass = clazz;
+        this.mUseAnnotation = useAnnotation;
+    }
+
+    public TypedJsonHttpResponseHandler(Context context, Class<T> clazz) {
+        this(context, clazz, true);
+    }
+
+    public TypedJsonHttpResponseHandler(Context context, Class<T> clazz, boolean useAnnotation) {
+        super(context);
+        this.mClass = clazz;
+        this.mUseAnnotation = useAnnotation;
+    }
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * 响应体为JSON对象
+     *
+     * @param result 解析后的对象
+     */
+    public void onSuccess(T result) {
+        //do nothings
+    }
+
+    /**
+     * 响应体为JSON对象
+     *
+     * @param statusCode 状态码
+     * @param result     解析后的对象
+     */
+    public void onSuccess(int statusCode, T result) {
+        onSuccess(result);
+    }
+
+    /**
+     * 响应体为JSON数组
+     *
+     * @param result 解析后的对象列表
+     */
+    public void onSuccess(List<T> result) {
+        //do nothings
+    }
+
+    /**
+     * 响应体为JSON数组
+     *
+     * @param statusCode 状态码
+     * @param result     解析后的对象列表
+     */
+    public void onSuccess(int statusCode, List<T> result) {
+        onSuccess(result);
+    }
+
+    /**
+     * 网络耗时(毫秒)，从发出请求到读完响应体
+     *
+     * @return
+     */
+    public long getNetworkTime() {
+        return mNetworkTime;
+    }
+
+    /**
+     * 解析耗时(毫秒)，包括JSON解析和对象绑定
+     *
+     * @return
+     */
+    public long getParseTime() {
+        return mParseTime;
+    }
+
+    /**
+     * 解析响应体(在请求线程中执行)，返回T或List&lt;T&gt;
+     *
+     * @param responseBody 响应体
+     * @return
+     * @throws JSONException
+     * @throws JSONParserException
+     */
+    protected Object parseResponse(String responseBody) throws JSONException, JSONParserException {
+        final Object json = new JSONTokener(responseBody.trim()).nextValue();
+        if (json instanceof JSONObject) {
+            return JsonUtils.parserToObject(mClass, (JSONObject) json, mUseAnnotation);
+        } else if (json instanceof JSONArray) {
+            return JsonUtils.parserToList(mClass, (JSONArray) json, mUseAnnotation);
+        } else {
+            throw new JSONException("Unexpected type " + (json == null ? null : json.getClass().getName()));
+        }
+    }
+
+    //
+    // Pre-processing of messages (executes in background threadpool thread)
+    //
+
+    @Override
+    void sendResponseMessage(Response response) {
+        if (!response.isSuccessful()) {
+            super.sendResponseMessage(response);
+            return;
+        }
+        final String responseBody;
+        try {
+            responseBody = response.body().string();
+        } catch (IOException e) {
+            sendFailureMessage(e, response.message());
+            response.close();
+            return;
+        }
+        mNetworkTime = System.currentTimeMillis() - response.sentRequestAtMillis();
+        final long start = System.currentTimeMillis();
+        try {
+            final Object result = parseResponse(responseBody);
+            mParseTime = System.currentTimeMillis() - start;
+            sendMessage(obtainMessage(SUCCESS_TYPED_MESSAGE, new Object[]{response.code(), result}));
+        } catch (JSONException | JSONParserException e) {
+            mParseTime = System.currentTimeMillis() - start;
+            sendFailureMessage(e, responseBody);
+        }
+    }
+
+    //
+    // Pre-processing of messages (in original calling thread, typically the UI thread)
+    //
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void handleMessage(Message msg) {
+        if (msg.what == SUCCESS_TYPED_MESSAGE) {
+            final Object[] response = (Object[]) msg.obj;
+            final int statusCode = ((Integer) response[0]).intValue();
+            if (response[1] instanceof List) {
+                onSuccess(statusCode, (List<T>) response[1]);
+            } else {
+                onSuccess(statusCode, (T) response[1]);
+            }
+        } else {
+            super.handleMessage(msg);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ *
+ *  Copyright (c) 2013 Cangol
+ *   <p/>
+ *   Licensed under the Apache License, Version 2.0 (the "License")
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  <p/>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p/>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mobi.cangol.mobile.http.download;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * 下载带宽调度，按 总带宽 -> 分组(下载执行器) -> 任务 三级分配速率，每级可设置权重和限速
+ * <p/>
+ * 每个周期(或配置变化、任务加入时)按权重做max-min公平分配：未用满分配的任务按实测速度估算需求，
+ * 多余的带宽分给其他任务；每个任务以分配的速率作为令牌桶，在读取响应数据后扣除令牌，不足时等待
+ */
+public final class BandwidthScheduler {
+    /**
+     * 重新分配的周期
+     */
+    private static final long PERIOD_NANOS = 200 * 1000000L;
+    /**
+     * 超过该时间没有读取数据的任务不再参与分配
+     */
+    private static final long IDLE_NANOS = 1000 * 1000000L;
+    /**
+     * 未被限速的任务需求按实测速度放大，留出增长空间
+     */
+    private static final double DEMAND_FACTOR = 1.25;
+    private static final double MIN_RATE = 16 * 1024;
+    private static final double MIN_BURST = 16 * 1024;
+    private static final double UNLIMITED = Double.POSITIVE_INFINITY;
+    private static final BandwidthScheduler DEFAULT = new BandwidthScheduler();
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private long rate;
+    private long allocationNanos;
+
+    /**
+     * 全局的调度器，DownloadManager的各个下载执行器共用
+     *
+     * @return
+     */
+    public static BandwidthScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 设置总带宽，运行中的下载立即生效
+     *
+     * @param bytesPerSecond 小于等于0时不限速
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        this.rate = bytesPerSecond;
+        allocate(System.nanoTime());
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * 获取分组，不存在时创建，默认权重为1且不限速
+     *
+     * @param name 下载执行器名称
+     * @return
+     */
+    public synchronized Group getGroup(String name) {
+        Group group = groups.get(name);
+        if (group == null) {
+            group = new Group(name);
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    /**
+     * 包装响应，读取数据时按任务的速率限速
+     *
+     * @param response
+     * @param task     为null时不限速
+     * @return
+     */
+    static Response throttle(Response response, Task task) {
+        if (task == null || response.body() == null) {
+            return response;
+        }
+        return response.newBuilder()
+                .body(new ThrottledResponseBody(response.body(), task))
+                .build();
+    }
+
+    /**
+     * 重新计算各分组和任务的速率，调用时需持有锁
+     */
+    private void allocate(long now) {
+        final List<Group> active = new ArrayList<>();
+        for (final Group group : groups.values()) {
+            group.cap = 0;
+            final Iterator<Task> iterator = group.tasks.iterator();
+            while (iterator.hasNext()) {
+                final Task task = iterator.next();
+                if (now - task.lastNanos > IDLE_NANOS) {
+                    task.registered = false;
+                    iterator.remove();
+                    continue;
+                }
+                task.estimate(now);
+                final long taskRate = group.taskRate(task.key);
+                task.weight = group.taskWeight(task.key);
+                task.cap = Math.min(task.demand, taskRate > 0 ? taskRate : UNLIMITED);
+                group.cap += task.cap;
+            }
+            if (!group.tasks.isEmpty()) {
+                group.cap = Math.min(group.cap, group.rate > 0 ? group.rate : UNLIMITED);
+                active.add(group);
+            }
+        }
+        fill(rate > 0 ? rate : UNLIMITED, active);
+        for (final Group group : active) {
+            fill(group.alloc, group.tasks);
+            for (final Task task : group.tasks) {
+                task.setAllocation(task.alloc, now);
+            }
+        }
+        allocationNanos = now;
+    }
+
+    /**
+     * 按权重的max-min公平分配，需求小于份额的节点只分配需求，剩余的继续按权重分给其他节点
+     */
+    private static void fill(double capacity, List<? extends Node> nodes) {
+        final List<Node> pending = new ArrayList<>();
+        for (final Node node : nodes) {
+            node.alloc = 0;
+            if (node.cap > 0) {
+                pending.add(node);
+            }
+        }
+        double remaining = capacity;
+        while (!pending.isEmpty()) {
+            if (remaining == UNLIMITED) {
+                for (final Node node : pending) {
+                    node.alloc = node.cap;
+                }
+                return;
+            }
+            double weights = 0;
+            for (final Node node : pending) {
+                weights += node.weight;
+            }
+            boolean capped = false;
+            final Iterator<Node> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                final Node node = iterator.next();
+                if (node.cap <= remaining * node.weight / weights) {
+                    node.alloc = node.cap;
+                    remaining -= node.cap;
+                    iterator.remove();
+                    capped = true;
+                }
+            }
+            if (!capped) {
+                for (final Node node : pending) {
+                    node.alloc = remaining * node.weight / weights;
+                }
+                return;
+            }
+        }
+    }
+
+    abstract static class Node {
+        int weight = 1;
+        double cap;
+        double alloc;
+    }
+
+    /**
+     * 分组，对应一个下载执行器
+     */
+    public final class Group extends Node {
+        private final String name;
+        private final List<Task> tasks = new ArrayList<>();
+        private final Map<String, Long> taskRates = new HashMap<>();
+        private final Map<String, Integer> taskWeights = new HashMap<>();
+        private long rate;
+
+        private Group(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 设置分组的限速，运行中的下载立即生效
+         *
+         * @param bytesPerSecond 小于等于0时不限速
+         */
+        public void setRate(long bytesPerSecond) {
+            synchronized (BandwidthScheduler.this) {
+                this.rate = bytesPerSecond;
+                allocate(System.nanoTime());
+            }
+        }
+
+        public long getRate() {
+            synchronized (BandwidthScheduler.this) {
+                return rate;
+            }
+        }
+
+        /**
+         * 设置分组的权重，总带宽不足时按权重分配
+         *
+         * @param weight 大于0
+         */
+        public void setWeight(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be > 0");
+            }
+            synchronized (BandwidthScheduler.this) {
+                this.weight = weight;
+                allocate(System.nanoTime());
+            }
+        }
+
+        public int getWeight() {
+            synchronized (BandwidthScheduler.this) {
+                return weight;
+            }
+        }
+
+        /**
+         * 设置任务的限速，对该任务之后的下载同样有效
+         *
+         * @param key            任务标识，即DownloadHttpClient.send的tag
+         * @param bytesPerSecond 小于等于0时不限速
+         */
+        public void setTaskRate(String key, long bytesPerSecond) {
+            synchronized (BandwidthScheduler.this) {
+                if (bytesPerSecond > 0) {
+                    taskRates.put(key, bytesPerSecond);
+                } else {
+                    taskRates.remove(key);
+                }
+                allocate(System.nanoTime());
+            }
+        }
+
+        /**
+         * 设置任务在分组内的权重
+         *
+         * @param key    任务标识，即DownloadHttpClient.send的tag
+         * @param weight 大于0
+         */
+        public void setTaskWeight(String key, int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be > 0");
+            }
+            synchronized (BandwidthScheduler.this) {
+                taskWeights.put(key, weight);
+                allocate(System.nanoTime());
+            }
+        }
+
+        /**
+         * 创建任务，分段下载的多个连接共用一个任务
+         *
+         * @param key
+         * @return
+         */
+        Task newTask(String key) {
+            return new Task(this, key);
+        }
+
+        private long taskRate(String key) {
+            final Long value = taskRates.get(key);
+            return value == null ? 0 : value;
+        }
+
+        private int taskWeight(String key) {
+            final Integer value = taskWeights.get(key);
+            return value == null ? 1 : value;
+        }
+    }
+
+    /**
+     * 一次下载，按分配的速率维护令牌桶
+     */
+    final class Task extends Node {
+        private final Group group;
+        private final String key;
+        private boolean registered;
+        private double rate = UNLIMITED;
+        private double tokens;
+        private long refillNanos;
+        private long lastNanos;
+        private long periodNanos;
+        private long periodBytes;
+        private boolean throttled;
+        private double demand = UNLIMITED;
+
+        private Task(Group group, String key) {
+            this.group = group;
+            this.key = key;
+        }
+
+        /**
+         * 读取了byteCount字节后扣除令牌，令牌不足时等待
+         *
+         * @param byteCount
+         * @throws InterruptedIOException
+         */
+        void acquire(long byteCount) throws InterruptedIOException {
+            final long sleepNanos;
+            synchronized (BandwidthScheduler.this) {
+                final long now = System.nanoTime();
+                lastNanos = now;
+                periodBytes += byteCount;
+                if (!registered) {
+                    // 新任务加入，立即重新分配
+                    registered = true;
+                    periodNanos = now;
+                    refillNanos = now;
+                    group.tasks.add(this);
+                    allocate(now);
+                } else if (now - allocationNanos > PERIOD_NANOS) {
+                    allocate(now);
+                }
+                if (rate == UNLIMITED) {
+                    return;
+                }
+                tokens = Math.min(capacity(), tokens + (now - refillNanos) * rate / 1000000000L);
+                refillNanos = now;
+                tokens -= byteCount;
+                if (tokens >= 0) {
+                    return;
+                }
+                throttled = true;
+                sleepNanos = (long) (-tokens / rate * 1000000000L);
+            }
+            try {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * 当前分配的速率，不限速时为Long.MAX_VALUE
+         *
+         * @return
+         */
+        long getRate() {
+            synchronized (BandwidthScheduler.this) {
+                return rate == UNLIMITED ? Long.MAX_VALUE : (long) rate;
+            }
+        }
+
+        /**
+         * 按上个周期的实测速度估算需求，被限速的任务需求视为无限
+         */
+        private void estimate(long now) {
+            final long elapsed = now - periodNanos;
+            if (elapsed < PERIOD_NANOS) {
+                return;
+            }
+            demand = throttled ? UNLIMITED : Math.max(MIN_RATE, periodBytes * 1000000000.0 / elapsed * DEMAND_FACTOR);
+            periodNanos = now;
+            periodBytes = 0;
+            throttled = false;
+        }
+
+        private void setAllocation(double allocation, long now) {
+            if (rate == UNLIMITED && allocation != UNLIMITED) {
+                // 从不限速切换到限速，从空桶开始
+                tokens = 0;
+                refillNanos = now;
+            }
+            rate = allocation;
+        }
+
+        private double capacity() {
+            return Math.max(MIN_BURST, rate / 10);
+        }
+    }
+
+    /**
+     * 读取数据后按任务速率限速的响应
+     */
+    private static final class ThrottledResponseBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final Task task;
+        private BufferedSource source;
+
+        ThrottledResponseBody(ResponseBody delegate, Task task) {
+            this.delegate = delegate;
+            this.task = task;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public synchronized BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        final long read = super.read(sink, byteCount);
+                        if (read > 0) {
+                            task.acquire(read);
+                        }
+                        return read;
+                    }
+                });
+            }
+            return source;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *
+ *  Copyright (c) 2013 Cangol
+ *   <p/>
+ *   Licensed under the Apache License, Version 2.0 (the "License")
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  <p/>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p/>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mobi.cangol.mobile.http.download;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * 下载文件写入，从BufferedSource读取的Segment先移入okio缓冲区，累积后直接以Segment的数组批量写入文件，
+ * 不经过中间的byte[]或ByteBuffer复制，Segment写完后回收到okio的SegmentPool；checkpoint时force到存储设备
+ * <p/>
+ * 替代"rwd"模式下每次写入都同步到存储设备，只有checkpoint之前写入的数据保证已落盘，
+ * 持久化的下载进度不能超过checkpoint返回的位置
+ * <p/>
+ * FileChannel在线程中断时会被关闭，下载停止依赖中断，因此中断时抛出InterruptedIOException，
+ * close时暂时清除中断状态，保证停止前已下载的数据落盘
+ */
+class DownloadFileWriter implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final Buffer buffer = new Buffer();
+    private long position;
+    private long durable;
+
+    /**
+     * @param saveFile
+     * @param position 开始写入的位置
+     * @throws IOException
+     */
+    DownloadFileWriter(String saveFile, long position) throws IOException {
+        this.file = new RandomAccessFile(saveFile, "rw");
+        this.channel = file.getChannel();
+        this.file.seek(position);
+        // 与RandomAccessFile共享文件位置，写入不受线程中断影响
+        this.out = new FileOutputStream(file.getFD());
+        this.position = position;
+        this.durable = position;
+    }
+
+    /**
+     * 丢弃写入位置之后的数据，续传时去掉上次checkpoint之后未确认落盘的部分
+     *
+     * @throws IOException
+     */
+    void truncate() throws IOException {
+        if (channel.size() > position) {
+            channel.truncate(position);
+        }
+    }
+
+    /**
+     * 从source读取最多byteCount字节，缓冲区满BUFFER_SIZE时写入文件
+     *
+     * @param source
+     * @param byteCount
+     * @return 读取的字节数，source结束时为-1
+     * @throws IOException
+     */
+    long transferFrom(BufferedSource source, long byteCount) throws IOException {
+        final long readCount = source.read(buffer, byteCount);
+        if (readCount > 0) {
+            position += readCount;
+            if (buffer.size() >= BUFFER_SIZE) {
+                flush();
+            }
+        }
+        return readCount;
+    }
+
+    /**
+     * 缓冲区数据写入文件，不保证落盘
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        buffer.writeTo(out);
+    }
+
+    /**
+     * 写入并同步到存储设备
+     *
+     * @return 已落盘的位置
+     * @throws IOException
+     */
+    long checkpoint() throws IOException {
+        flush();
+        try {
+            channel.force(false);
+        } catch (ClosedByInterruptException e) {
+            throw new InterruptedIOException();
+        }
+        durable = position;
+        return durable;
+    }
+
+    /**
+     * 已写入的位置，包括缓冲区中的数据
+     *
+     * @return
+     */
+    long getPosition() {
+        return position;
+    }
+
+    /**
+     * 最后一次checkpoint落盘的位置
+     *
+     * @return
+     */
+    long getDurablePosition() {
+        return durable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final boolean interrupted = Thread.interrupted();
+        try {
+            if (channel.isOpen()) {
+                checkpoint();
+            }
+        } finally {
+            buffer.clear();
+            file.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.WeakHashMap;
 import java.util.concurrent.Future;
 
 import mobi.cangol.mobile.http.HttpClientFactory;
+import mobi.cangol.mobile.http.HttpMetrics;
 import mobi.cangol.mobile.service.PoolManager;
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
@@ -37,6 +38,9 @@ public class DownloadHttpClient {
     private OkHttpClient httpClient;
     private DownloadRetryHandler downloadRetryHandler;
     private String group;
+    private HttpMetrics metrics;
+    private int maxSegments = 1;
+    private BandwidthScheduler.Group bandwidthGroup;
 
     protected DownloadHttpClient(final String group, boolean safe) {
         this.group = group;
@@ -77,6 +81,62 @@ public class DownloadHttpClient {
         threadPool = pool;
     }
 
+    /**
+     * 开启请求性能统计，记录各阶段耗时、收发字节数和重试次数
+     *
+     * @param metrics 为null时关闭
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        httpClient = HttpMetrics.instrument(httpClient, metrics);
+    }
+
+    /**
+     * 获取请求性能统计，未开启时为null
+     *
+     * @return
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置分段下载的最大连接数，服务端支持Range时文件分成多段并行下载，
+     * 连接数根据实际吞吐从1逐步增加到该值
+     *
+     * @param maxSegments 小于等于1时为单连接下载
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * 获取分段下载的最大连接数
+     *
+     * @return
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * 设置带宽调度分组，读取响应时按分组内分配的速率限速，以send的tag作为任务标识
+     *
+     * @param bandwidthGroup 为null时不限速
+     */
+    public void setBandwidthGroup(BandwidthScheduler.Group bandwidthGroup) {
+        this.bandwidthGroup = bandwidthGroup;
+    }
+
+    /**
+     * 获取带宽调度分组，未设置时为null
+     *
+     * @return
+     */
+    public BandwidthScheduler.Group getBandwidthGroup() {
+        return bandwidthGroup;
+    }
+
     protected DownloadRetryHandler getDownloadRetryHandler() {
         return downloadRetryHandler;
     }
@@ -97,11 +157,35 @@ public class DownloadHttpClient {
                 .addHeader("Range", "bytes=" + from + "-")
                 .url(url)
                 .build();
+        if (maxSegments > 1 || SegmentDownloadThread.hasState(saveFile)) {
+            // 未完成的分段下载需继续按分段续传
+            return submitRequest(request, new SegmentDownloadThread(this, httpClient, request, responseHandler, from, saveFile, Math.max(1, maxSegments), newBandwidthTask(tag)));
+        }
         return sendRequest(request, responseHandler, saveFile);
     }
 
     protected Future sendRequest(Request urlRequest, DownloadResponseHandler responseHandler, String saveFile) {
-        final Future<?> request = threadPool.submit(new DownloadThread(this, httpClient, urlRequest, responseHandler, saveFile));
+        final DownloadThread downloadThread = new DownloadThread(this, httpClient, urlRequest, responseHandler, saveFile);
+        downloadThread.setBandwidthTask(newBandwidthTask(urlRequest.tag()));
+        return submitRequest(urlRequest, downloadThread);
+    }
+
+    private BandwidthScheduler.Task newBandwidthTask(Object tag) {
+        return bandwidthGroup == null ? null : bandwidthGroup.newTask(String.valueOf(tag));
+    }
+
+    /**
+     * 在线程池中执行分段下载新增的连接
+     *
+     * @param runnable
+     * @return
+     */
+    Future<?> submit(Runnable runnable) {
+        return threadPool.submit(runnable);
+    }
+
+    private Future<?> submitRequest(Request urlRequest, Runnable runnable) {
+        final Future<?> request = threadPool.submit(runnable);
         if (urlRequest.tag() != null) {
             // Add request to request map
             List<WeakReference<Future<?>>> requestList = requestMap.get(urlRequest.tag());
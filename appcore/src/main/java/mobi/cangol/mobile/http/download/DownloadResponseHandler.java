@@ -21,11 +21,10 @@ import android.os.Looper;
 import android.os.Message;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
 
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
 
 public class DownloadResponseHandler {
     public static final  String TAG = "DownloadResponseHandler";
@@ -128,53 +127,51 @@ public class DownloadResponseHandler {
         sendMessage(obtainMessage(FAILURE_MESSAGE, new Object[]{e, responseBody}));
     }
 
-    void sendResponseMessage(Response response, String saveFile) throws IOException {
+    /**
+     * 从from开始写入响应数据，每次进度回调前checkpoint，保证回调的进度都已落盘
+     *
+     * @param response
+     * @param saveFile
+     * @param from     请求的起始位置，服务端不支持Range时从0开始
+     * @throws IOException
+     */
+    void sendResponseMessage(Response response, String saveFile, long from) throws IOException {
         if (response.isSuccessful()) {
             final ResponseBody responseBody = response.body();
-            final long length = responseBody.contentLength();
-            final RandomAccessFile threadfile = new RandomAccessFile(saveFile, "rwd");
-            final InputStream inputStream = responseBody.byteStream();
-            long oldLength = threadfile.length();
-            sendStartMessage(oldLength, length);
-            if (oldLength < length) {
-                threadfile.seek(oldLength);
-                final byte[] block = new byte[BUFF_SIZE];
+            final long start = response.code() == 206 ? from : 0;
+            final long length = responseBody.contentLength() < 0 ? -1 : start + responseBody.contentLength();
+            final BufferedSource source = responseBody.source();
+            final DownloadFileWriter writer = new DownloadFileWriter(saveFile, start);
+            long oldLength = start;
+            try {
+                writer.truncate();
+                sendStartMessage(start, length);
                 long starTime = System.currentTimeMillis();
                 long startLength = 0;
-                int readCount = 0;
-                while (!Thread.currentThread().isInterrupted() && (readCount = inputStream.read(block, 0, BUFF_SIZE)) != -1) {
-                    threadfile.write(block, 0, readCount);
+                long readCount = 0;
+                while (!Thread.currentThread().isInterrupted() && (readCount = writer.transferFrom(source, BUFF_SIZE)) != -1) {
                     oldLength += readCount;
                     startLength += readCount;
                     if ((System.currentTimeMillis() - starTime) > 500L) {
-                        final int progress = (int) (oldLength * 1.0f / length * 100);
+                        writer.checkpoint();
+                        final int progress = length > 0 ? (int) (oldLength * 1.0f / length * 100) : 0;
                         final int speed = (int) (startLength * 1000.0f / (System.currentTimeMillis() - starTime));
                         sendProgressMessage(oldLength, progress, speed);
                         starTime = System.currentTimeMillis();
                         startLength = 0;
                     }
                 }
-                if (threadfile != null) {
-                    threadfile.close();
-                }
-                if (Thread.currentThread().isInterrupted()) {
-                    sendStopMessage(oldLength);
-                } else {
-                    if (oldLength == length) {
-                        sendProgressMessage(oldLength, 100, 0);
-                        sendFinishMessage(length);
-                    } else {
-                        sendFinishMessage(oldLength);
-                    }
-                }
-            } else if (oldLength == length) {
+            } finally {
+                responseBody.close();
+                writer.close();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                sendStopMessage(oldLength);
+            } else if (length < 0 || oldLength == length) {
                 sendProgressMessage(oldLength, 100, 0);
                 sendFinishMessage(oldLength);
             } else {
-                sendFailureMessage(new IOException(), "oldfile error oldLength>length");
-            }
-            if (responseBody != null) {
-                responseBody.close();
+                sendFinishMessage(oldLength);
             }
         } else {
             sendFailureMessage(new IOException(), "StatusCode " + response.code());
@@ -18,6 +18,7 @@ package mobi.cangol.mobile.http.download;
 
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 
@@ -34,6 +35,7 @@ public class DownloadThread implements Runnable {
     private int executionCount;
     private long from;
     private String saveFile;
+    private BandwidthScheduler.Task bandwidthTask;
 
     public DownloadThread(DownloadHttpClient context, OkHttpClient client, Request request, DownloadResponseHandler responseHandler, String saveFile) {
         this.client = client;
@@ -43,12 +45,34 @@ public class DownloadThread implements Runnable {
         this.saveFile = saveFile;
     }
 
+    /**
+     * 设置带宽调度任务，读取响应时按分配的速率限速
+     *
+     * @param bandwidthTask 为null时不限速
+     */
+    void setBandwidthTask(BandwidthScheduler.Task bandwidthTask) {
+        this.bandwidthTask = bandwidthTask;
+    }
+
     @Override
     public void run() {
+        if (responseHandler != null) {
+            responseHandler.sendWaitMessage();
+        }
+        download();
+    }
+
+    /**
+     * 下载，不发送等待状态，分段下载回退时使用
+     */
+    void download() {
         try {
             from = parserFrom(request);
-            if (responseHandler != null) {
-                responseHandler.sendWaitMessage();
+            final long fileLength = new File(saveFile).length();
+            if (from > fileLength) {
+                // 本地文件比记录的进度短，从文件末尾续传
+                from = fileLength;
+                request = request.newBuilder().header("Range", "bytes=" + from + "-").build();
             }
             makeRequestWithRetries();
         } catch (Exception e) {
@@ -61,10 +85,10 @@ public class DownloadThread implements Runnable {
     private void makeRequest() throws IOException {
         if (!Thread.currentThread().isInterrupted()) {
 
-            final Response response = client.newCall(request).execute();
+            final Response response = BandwidthScheduler.throttle(client.newCall(request).execute(), bandwidthTask);
             if (!Thread.currentThread().isInterrupted()) {
                 if (responseHandler != null) {
-                    responseHandler.sendResponseMessage(response, saveFile);
+                    responseHandler.sendResponseMessage(response, saveFile, from);
                 }
             } else {
                 Log.d(TAG, "Thread.isInterrupted");
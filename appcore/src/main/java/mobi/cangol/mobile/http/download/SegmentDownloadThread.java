@@ -0,0 +1,683 @@
+/*
+ *
+ *  Copyright (c) 2013 Cangol
+ *   <p/>
+ *   Licensed under the Apache License, Version 2.0 (the "License")
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *  <p/>
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  <p/>
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mobi.cangol.mobile.http.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * 分段下载，多个连接并行下载同一文件的不同区间并直接写入目标文件
+ * <p/>
+ * 首个请求从Content-Range得到文件长度，空闲的连接从剩余最多的分段中切分一半继续下载；
+ * 每个采样周期根据上次新增连接带来的吞吐提升决定是否继续增加连接。
+ * 各分段已落盘的位置保存在saveFile.seg中，可以分别续传，服务端不支持Range时回退为单连接下载
+ */
+class SegmentDownloadThread implements Runnable {
+    static final String SUFFIX_STATE = ".seg";
+    private static final String TAG = "SegmentDownloadThread";
+    private static final int BUFF_SIZE = 8192;
+    private static final long SAMPLE_INTERVAL = 500L;
+    /**
+     * 新增连接后总速度的提升不足单连接平均速度的一半时，不再增加连接
+     */
+    private static final float MIN_GAIN = 0.5f;
+    /**
+     * 可切分的最小分段，需大于BUFF_SIZE，保证切分点不会落在正在写入的缓冲区内
+     */
+    static long minSegmentSize = 128 * 1024L;
+    private final DownloadHttpClient context;
+    private final OkHttpClient client;
+    private final Request request;
+    private final DownloadResponseHandler responseHandler;
+    private final String saveFile;
+    private final File stateFile;
+    private final long from;
+    private final int maxSegments;
+    private final BandwidthScheduler.Task bandwidthTask;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Worker> workers = new ArrayList<>();
+    private long length;
+    private String validator;
+    private long completed;
+    private int active;
+    private boolean stopped;
+    private Exception failure;
+    private long sampleTime;
+    private long sampleBytes;
+    private int lastSpeed;
+    private int lastConnections;
+    private int settle;
+    private boolean growing = true;
+    private boolean draining;
+
+    SegmentDownloadThread(DownloadHttpClient context, OkHttpClient client, Request request, DownloadResponseHandler responseHandler, long from, String saveFile, int maxSegments,
+                          BandwidthScheduler.Task bandwidthTask) {
+        this.context = context;
+        this.client = client;
+        this.request = request;
+        this.responseHandler = responseHandler;
+        this.from = from;
+        this.saveFile = saveFile;
+        this.stateFile = new File(saveFile + SUFFIX_STATE);
+        this.maxSegments = maxSegments;
+        this.bandwidthTask = bandwidthTask;
+    }
+
+    /**
+     * 是否有未完成的分段下载
+     *
+     * @param saveFile
+     * @return
+     */
+    static boolean hasState(String saveFile) {
+        return new File(saveFile + SUFFIX_STATE).exists();
+    }
+
+    @Override
+    public void run() {
+        responseHandler.sendWaitMessage();
+        Response response = null;
+        try {
+            response = prepare();
+        } catch (InterruptedIOException e) {
+            responseHandler.sendStopMessage(from);
+            return;
+        } catch (Exception e) {
+            responseHandler.sendFailureMessage(e, e.getMessage());
+            return;
+        }
+        if (response == null) {
+            return;
+        }
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get(0);
+            segment.running = true;
+            active = 1;
+            responseHandler.sendStartMessage(completed, length);
+            sampleTime = System.currentTimeMillis();
+            // 续传时恢复上次的并行分段
+            final int pending = Math.min(pendingCount(), maxSegments - 1);
+            for (int i = 0; i < pending; i++) {
+                spawn();
+            }
+        }
+        work(segment, response);
+        synchronized (this) {
+            // 没有可下载的分段了，还未开始的连接不再执行
+            draining = true;
+            cancelPending();
+            // 汇总进度前必须等所有连接结束写入，被中断时取消各连接后继续等待
+            boolean interrupted = false;
+            while (active > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    stop();
+                }
+            }
+            finish();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 发出首个请求并建立分段，返回可直接读取的响应；返回null时已回退或已通知结果
+     */
+    private Response prepare() throws IOException {
+        boolean restart = from == 0;
+        if (restart) {
+            // 重新下载
+            deleteState();
+        } else if (loadState()) {
+            final Segment segment = nextPending();
+            if (segment == null) {
+                deleteState();
+                responseHandler.sendProgressMessage(length, 100, 0);
+                responseHandler.sendFinishMessage(length);
+                return null;
+            }
+            final Response response = execute(rangeRequest(segment));
+            if (isPartial(response)) {
+                segments.remove(segment);
+                segments.add(0, segment);
+                return response;
+            }
+            // 服务端文件已变化
+            Log.d(TAG, "remote file changed, StatusCode " + response.code());
+            response.close();
+            deleteState();
+            restart = true;
+        }
+        final File file = new File(saveFile);
+        final long offset = restart ? 0 : file.length();
+        if (offset == 0) {
+            truncate(file);
+        }
+        final Response response = execute(request.newBuilder()
+                .header("Range", "bytes=" + offset + "-")
+                .build());
+        final long total = total(response);
+        if (response.code() == 416 && offset > 0 && total == offset) {
+            // 上次单连接下载已完成
+            response.close();
+            responseHandler.sendProgressMessage(offset, 100, 0);
+            responseHandler.sendFinishMessage(offset);
+            return null;
+        }
+        if (response.code() != 206 || total <= offset) {
+            response.close();
+            fallback(file);
+            return null;
+        }
+        length = total;
+        validator = validator(response);
+        completed = offset;
+        segments.add(new Segment(offset, total));
+        return response;
+    }
+
+    /**
+     * 不支持Range时从头单连接下载
+     */
+    private void fallback(File file) throws IOException {
+        Log.d(TAG, "range not supported, fallback to single connection");
+        deleteState();
+        truncate(file);
+        final DownloadThread downloadThread = new DownloadThread(context, client, request.newBuilder().header("Range", "bytes=0-").build(),
+                responseHandler, saveFile);
+        downloadThread.setBandwidthTask(bandwidthTask);
+        downloadThread.download();
+    }
+
+    /**
+     * 执行请求，各连接共用一个带宽调度任务
+     */
+    private Response execute(Request request) throws IOException {
+        return BandwidthScheduler.throttle(client.newCall(request).execute(), bandwidthTask);
+    }
+
+    private static void truncate(File file) throws IOException {
+        if (file.length() > 0) {
+            final RandomAccessFile threadfile = new RandomAccessFile(file, "rw");
+            threadfile.setLength(0);
+            threadfile.close();
+        }
+    }
+
+    private void work(Segment segment, Response response) {
+        try {
+            while (segment != null && !isStopped()) {
+                download(segment, response);
+                response = null;
+                segment = next(segment);
+            }
+        } catch (InterruptedIOException e) {
+            stop();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+            synchronized (this) {
+                active--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 下载一个分段，网络错误时从该分段已下载的位置重试
+     */
+    private void download(Segment segment, Response response) throws IOException {
+        final DownloadRetryHandler retryHandler = context.getDownloadRetryHandler();
+        int executionCount = 0;
+        while (true) {
+            try {
+                if (response == null) {
+                    response = execute(rangeRequest(segment));
+                }
+                if (!isPartial(response)) {
+                    // 服务端文件已变化，重试无意义
+                    throw new ProtocolException("StatusCode " + response.code());
+                }
+                read(segment, response);
+                return;
+            } catch (ProtocolException | InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (isStopped() || !retryHandler.retryRequest(e, ++executionCount)) {
+                    throw e;
+                }
+            } finally {
+                if (response != null) {
+                    response.close();
+                    response = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取分段数据，每个采样周期checkpoint一次，分段状态只记录已落盘的位置
+     */
+    private void read(Segment segment, Response response) throws IOException {
+        final DownloadFileWriter writer = new DownloadFileWriter(saveFile, segment.offset);
+        try {
+            final BufferedSource source = response.body().source();
+            long checkpointTime = System.currentTimeMillis();
+            while (true) {
+                if (Thread.currentThread().isInterrupted() || isStopped()) {
+                    throw new InterruptedIOException();
+                }
+                final long limit;
+                synchronized (segment) {
+                    limit = segment.end - segment.offset;
+                }
+                if (limit <= 0) {
+                    return;
+                }
+                final long readCount = writer.transferFrom(source, Math.min(BUFF_SIZE, limit));
+                if (readCount == -1) {
+                    throw new IOException("unexpected end of stream");
+                }
+                synchronized (segment) {
+                    segment.offset += readCount;
+                }
+                if (System.currentTimeMillis() - checkpointTime > SAMPLE_INTERVAL) {
+                    final long position = writer.checkpoint();
+                    synchronized (segment) {
+                        segment.durable = position;
+                    }
+                    checkpointTime = System.currentTimeMillis();
+                }
+                onProgress(readCount);
+            }
+        } finally {
+            writer.close();
+            synchronized (segment) {
+                segment.durable = writer.getDurablePosition();
+            }
+        }
+    }
+
+    private synchronized void onProgress(long readCount) {
+        completed += readCount;
+        sampleBytes += readCount;
+        final long now = System.currentTimeMillis();
+        if (now - sampleTime > SAMPLE_INTERVAL && !stopped) {
+            final int progress = (int) (completed * 1.0f / length * 100);
+            final int speed = (int) (sampleBytes * 1000.0f / (now - sampleTime));
+            responseHandler.sendProgressMessage(completed, progress, speed);
+            sampleTime = now;
+            sampleBytes = 0;
+            saveState();
+            adapt(speed);
+        }
+    }
+
+    /**
+     * 根据上次新增连接后的总速度决定是否继续增加连接
+     */
+    private void adapt(int speed) {
+        if (!growing || draining) {
+            return;
+        }
+        if (settle > 0) {
+            // 新连接建立期间的采样不计入
+            settle--;
+            return;
+        }
+        if (lastConnections > 0 && speed - lastSpeed < lastSpeed * MIN_GAIN / lastConnections) {
+            Log.d(TAG, "connections=" + active + ",speed=" + speed + ",stop growing");
+            growing = false;
+            return;
+        }
+        if (active < maxSegments && (pendingCount() > 0 || largestRunning() != null)) {
+            lastSpeed = speed;
+            lastConnections = active;
+            spawn();
+        }
+    }
+
+    private void spawn() {
+        final Worker worker = new Worker();
+        active++;
+        settle = 1;
+        workers.add(worker);
+        worker.future = context.submit(worker);
+    }
+
+    /**
+     * 当前分段完成，领取未开始的分段或从剩余最多的分段中切分一半
+     */
+    private synchronized Segment next(Segment finished) {
+        if (finished != null) {
+            finished.running = false;
+        }
+        if (stopped) {
+            return null;
+        }
+        final Segment pending = nextPending();
+        if (pending != null) {
+            pending.running = true;
+            return pending;
+        }
+        final Segment largest = largestRunning();
+        if (largest == null) {
+            return null;
+        }
+        final Segment segment;
+        synchronized (largest) {
+            final long middle = largest.offset + (largest.end - largest.offset) / 2;
+            segment = new Segment(middle, largest.end);
+            largest.end = middle;
+        }
+        segment.running = true;
+        segments.add(segment);
+        return segment;
+    }
+
+    private Segment nextPending() {
+        for (final Segment segment : segments) {
+            if (!segment.running && segment.offset < segment.end) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private int pendingCount() {
+        int count = 0;
+        for (final Segment segment : segments) {
+            if (!segment.running && segment.offset < segment.end) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Segment largestRunning() {
+        Segment largest = null;
+        long max = 2 * minSegmentSize - 1;
+        for (final Segment segment : segments) {
+            if (segment.running) {
+                final long remaining;
+                synchronized (segment) {
+                    remaining = segment.end - segment.offset;
+                }
+                if (remaining > max) {
+                    max = remaining;
+                    largest = segment;
+                }
+            }
+        }
+        return largest;
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    private synchronized void stop() {
+        if (!stopped) {
+            stopped = true;
+            saveState();
+            cancelWorkers();
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (!stopped) {
+            failure = e;
+            stopped = true;
+            saveState();
+            cancelWorkers();
+        }
+    }
+
+    private void cancelWorkers() {
+        cancelPending();
+        for (final Worker worker : workers) {
+            worker.future.cancel(true);
+        }
+        notifyAll();
+    }
+
+    /**
+     * 取消还未开始执行的连接，被取消的任务不会再执行，直接从active中减去
+     */
+    private void cancelPending() {
+        for (final Worker worker : workers) {
+            if (!worker.started && !worker.cancelled) {
+                worker.cancelled = true;
+                worker.future.cancel(false);
+                active--;
+            }
+        }
+    }
+
+    private void finish() {
+        if (failure != null) {
+            responseHandler.sendFailureMessage(failure, failure.getMessage());
+        } else if (stopped || Thread.currentThread().isInterrupted()) {
+            // 停止的进度会被持久化，只计算已落盘的部分
+            saveState();
+            long remaining = 0;
+            for (final Segment segment : segments) {
+                synchronized (segment) {
+                    remaining += segment.end - segment.durable;
+                }
+            }
+            responseHandler.sendStopMessage(length - remaining);
+        } else if (completed >= length) {
+            deleteState();
+            responseHandler.sendProgressMessage(length, 100, 0);
+            responseHandler.sendFinishMessage(length);
+        } else {
+            saveState();
+            responseHandler.sendFinishMessage(completed);
+        }
+    }
+
+    private Request rangeRequest(Segment segment) {
+        final Request.Builder builder = request.newBuilder()
+                .header("Range", "bytes=" + segment.offset + "-" + (segment.end - 1));
+        if (validator != null) {
+            builder.header("If-Range", validator);
+        }
+        return builder.build();
+    }
+
+    private boolean isPartial(Response response) {
+        return response.code() == 206 && total(response) == length;
+    }
+
+    /**
+     * 从Content-Range: bytes start-end/total中取文件长度，未知时为-1
+     */
+    private static long total(Response response) {
+        final String range = response.header("Content-Range");
+        if (range == null || range.indexOf('/') == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * If-Range不接受弱ETag，此时使用Last-Modified
+     */
+    private static String validator(Response response) {
+        final String etag = response.header("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /**
+     * 读取分段状态，格式为文件长度、校验值和每个未完成分段的"offset-end"
+     */
+    private boolean loadState() {
+        if (!stateFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+            final long total = Long.parseLong(reader.readLine());
+            final String etag = reader.readLine();
+            final List<Segment> list = new ArrayList<>();
+            long remaining = 0;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                final int index = line.indexOf('-');
+                final Segment segment = new Segment(Long.parseLong(line.substring(0, index)), Long.parseLong(line.substring(index + 1)));
+                if (segment.offset < 0 || segment.offset > segment.end || segment.end > total) {
+                    throw new IOException("illegal segment " + line);
+                }
+                remaining += segment.end - segment.offset;
+                list.add(segment);
+            }
+            length = total;
+            validator = etag == null || etag.isEmpty() ? null : etag;
+            completed = total - remaining;
+            segments.addAll(list);
+            return true;
+        } catch (Exception e) {
+            Log.d(TAG, "loadState " + e);
+            deleteState();
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "close " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存分段状态，先写临时文件再重命名，避免中断时留下不完整的状态
+     */
+    private synchronized void saveState() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(length).append('\n');
+        builder.append(validator == null ? "" : validator).append('\n');
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                if (segment.durable < segment.end) {
+                    builder.append(segment.durable).append('-').append(segment.end).append('\n');
+                }
+            }
+        }
+        final File tmpFile = new File(stateFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(builder.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(stateFile)) {
+                Log.d(TAG, "saveState rename fail");
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "saveState " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "close " + e);
+                }
+            }
+        }
+    }
+
+    private void deleteState() {
+        segments.clear();
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.d(TAG, "deleteState fail");
+        }
+    }
+
+    /**
+     * 文件区间[offset, end)，offset为已下载的位置，durable为已落盘的位置，end可被切分缩小
+     */
+    static final class Segment {
+        long offset;
+        long durable;
+        long end;
+        boolean running;
+
+        Segment(long offset, long end) {
+            this.offset = offset;
+            this.durable = offset;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 新增的连接，在线程池中执行
+     */
+    private final class Worker implements Runnable {
+        Future<?> future;
+        boolean started;
+        boolean cancelled;
+
+        @Override
+        public void run() {
+            final Segment segment;
+            synchronized (SegmentDownloadThread.this) {
+                if (cancelled) {
+                    return;
+                }
+                started = true;
+            }
+            segment = next(null);
+            work(segment, null);
+        }
+    }
+}
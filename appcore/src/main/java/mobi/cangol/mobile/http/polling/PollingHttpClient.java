@@ -27,6 +27,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import mobi.cangol.mobile.http.HttpClientFactory;
+import mobi.cangol.mobile.http.HttpMetrics;
 import mobi.cangol.mobile.service.PoolManager;
 import okhttp3.Call;
 import okhttp3.FormBody;
@@ -44,15 +46,13 @@ public class PollingHttpClient {
     private final Map<Object, List<WeakReference<Future<?>>>> requestMap;
     private OkHttpClient httpClient;
     private PoolManager.Pool threadPool;
+    private HttpMetrics metrics;
 
     /**
      * 构造实例
      */
     public PollingHttpClient(final String group) {
-        httpClient = new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
+        httpClient = HttpClientFactory.newBuilder()
                 .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
                 .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
                 .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -65,6 +65,25 @@ public class PollingHttpClient {
         return new PollingHttpClient(group);
     }
 
+    /**
+     * 开启请求性能统计，记录各阶段耗时、收发字节数和重试次数
+     *
+     * @param metrics 为null时关闭
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        httpClient = HttpMetrics.instrument(httpClient, metrics);
+    }
+
+    /**
+     * 获取请求性能统计，未开启时为null
+     *
+     * @return
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * 发送轮询请求(get请求)
      *
@@ -25,6 +25,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import mobi.cangol.mobile.http.HttpClientFactory;
+import mobi.cangol.mobile.http.HttpMetrics;
 import mobi.cangol.mobile.service.PoolManager;
 import okhttp3.Call;
 import okhttp3.FormBody;
@@ -41,16 +43,14 @@ public class RouteHttpClient {
     private static Map<Object, List<WeakReference<Future<?>>>> requestMap = new WeakHashMap<>();
     private OkHttpClient httpClient;
     private PoolManager.Pool threadPool;
+    private HttpMetrics metrics;
 
     /**
      * 构造实例
      */
     public RouteHttpClient() {
 
-        httpClient = new OkHttpClient.Builder()
-                .retryOnConnectionFailure(true)
-                .followRedirects(true)
-                .followSslRedirects(true)
+        httpClient = HttpClientFactory.newBuilder()
                 .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.MILLISECONDS)
                 .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)
                 .writeTimeout(DEFAULT_WRITE_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -59,6 +59,25 @@ public class RouteHttpClient {
 
     }
 
+    /**
+     * 开启请求性能统计，记录各阶段耗时、收发字节数和重试次数
+     *
+     * @param metrics 为null时关闭
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+        httpClient = HttpMetrics.instrument(httpClient, metrics);
+    }
+
+    /**
+     * 获取请求性能统计，未开启时为null
+     *
+     * @return
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * 发起请求
      *
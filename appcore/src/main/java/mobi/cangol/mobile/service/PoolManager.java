@@ -15,15 +15,23 @@
  */
 package mobi.cangol.mobile.service;
 
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TheadPool manager by name
@@ -31,6 +39,19 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Cangol
  */
 public class PoolManager {
+    /**
+     * 最高优先级，用户正在等待的请求
+     */
+    public static final int PRIORITY_IMMEDIATE = 0;
+    /**
+     * 默认优先级
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * 后台优先级，如统计上报、预加载，同时执行的数量受Pool.setMaxBackground限制
+     */
+    public static final int PRIORITY_BACKGROUND = 2;
+
     private PoolManager() {
     }
 
@@ -38,12 +59,13 @@ public class PoolManager {
     private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
     private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
     private static final int KEEP_ALIVE = 1;
+    private static final long DEFAULT_AGING = 2000L;
     private static ConcurrentHashMap<String, Pool> poolMap = null;
 
     private static ExecutorService generateExecutorService(final String name, int core) {
 
-        return new ThreadPoolExecutor(core, core * 2 + 1, KEEP_ALIVE,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        return new PriorityThreadPoolExecutor(core, core * 2 + 1, KEEP_ALIVE,
+                TimeUnit.SECONDS, new ThreadFactory() {
             private final AtomicInteger mCount = new AtomicInteger(1);
 
             public Thread newThread(final Runnable r) {
@@ -53,8 +75,8 @@ public class PoolManager {
     }
 
     private static ExecutorService generateExecutorService(final String name) {
-        return new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        return new PriorityThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
+                TimeUnit.SECONDS, new ThreadFactory() {
             private final AtomicInteger mCount = new AtomicInteger(1);
 
             public Thread newThread(final Runnable r) {
@@ -135,24 +157,44 @@ public class PoolManager {
         private ExecutorService executorService = null;
         private boolean threadPoolClose = false;
         private String name = null;
+        private final Deque<PriorityTask<?>> pendingBackground = new ArrayDeque<>();
+        private int activeBackground;
+        private int maxBackground;
+        /**
+         * 每次close加一，之前提交的后台任务结束时不再影响计数
+         */
+        private int generation;
 
         Pool(String name, int core) {
             this.name = name;
             this.executorService = PoolManager.generateExecutorService(name, core);
             this.threadPoolClose = false;
+            this.maxBackground = Math.max(1, core / 2);
         }
 
         Pool(String name) {
             this.name = name;
             this.executorService = PoolManager.generateExecutorService(name);
             this.threadPoolClose = false;
+            this.maxBackground = Math.max(1, CORE_POOL_SIZE / 2);
         }
 
         public void close(boolean shutDownNow) {
-            if (shutDownNow)
-                this.executorService.shutdownNow();
-            else
-                this.executorService.shutdown();
+            synchronized (pendingBackground) {
+                generation++;
+                activeBackground = 0;
+                for (final PriorityTask<?> task : pendingBackground) {
+                    task.cancel(false);
+                }
+                pendingBackground.clear();
+            }
+            // 重复关闭时executorService已为null
+            if (this.executorService != null) {
+                if (shutDownNow)
+                    this.executorService.shutdownNow();
+                else
+                    this.executorService.shutdown();
+            }
 
             this.threadPoolClose = true;
             this.executorService = null;
@@ -170,6 +212,106 @@ public class PoolManager {
             return this.executorService.submit(task, result);
         }
 
+        /**
+         * 按优先级提交任务
+         *
+         * @param task
+         * @param priority PRIORITY_IMMEDIATE、PRIORITY_NORMAL或PRIORITY_BACKGROUND
+         * @return
+         */
+        public Future<?> submit(Runnable task, int priority) {
+            return submit(Executors.callable(task), priority);
+        }
+
+        /**
+         * 按优先级提交任务
+         *
+         * @param task
+         * @param priority PRIORITY_IMMEDIATE、PRIORITY_NORMAL或PRIORITY_BACKGROUND
+         * @param <T>
+         * @return
+         */
+        public <T> Future<T> submit(Callable<T> task, int priority) {
+            if (!(executorService instanceof PriorityThreadPoolExecutor)) {
+                // 自定义的线程池不支持优先级
+                return this.executorService.submit(task);
+            }
+            final PriorityThreadPoolExecutor executor = (PriorityThreadPoolExecutor) executorService;
+            final PriorityTask<T> priorityTask = executor.newPriorityTask(task, priority);
+            if (priority == PRIORITY_BACKGROUND) {
+                priorityTask.pool = this;
+                synchronized (pendingBackground) {
+                    priorityTask.generation = generation;
+                    if (activeBackground >= maxBackground) {
+                        pendingBackground.add(priorityTask);
+                        return priorityTask;
+                    }
+                    activeBackground++;
+                }
+            }
+            executor.execute(priorityTask);
+            return priorityTask;
+        }
+
+        /**
+         * 后台任务结束，放行下一个等待的后台任务
+         */
+        void onBackgroundFinished(PriorityTask<?> finished) {
+            PriorityTask<?> next;
+            synchronized (pendingBackground) {
+                if (finished.generation != generation) {
+                    return;
+                }
+                next = pendingBackground.poll();
+                if (next == null) {
+                    activeBackground--;
+                    return;
+                }
+            }
+            final ExecutorService executor = executorService;
+            if (executor != null && !executor.isShutdown()) {
+                executor.execute(next);
+            } else {
+                next.cancel(false);
+            }
+        }
+
+        /**
+         * 设置同时执行(包括已进入队列)的后台任务上限，默认为核心线程数的一半
+         *
+         * @param maxBackground
+         */
+        public void setMaxBackground(int maxBackground) {
+            if (maxBackground <= 0) {
+                throw new IllegalArgumentException("maxBackground <= 0: " + maxBackground);
+            }
+            synchronized (pendingBackground) {
+                this.maxBackground = maxBackground;
+            }
+            while (true) {
+                PriorityTask<?> next;
+                synchronized (pendingBackground) {
+                    if (activeBackground >= this.maxBackground || pendingBackground.isEmpty()) {
+                        return;
+                    }
+                    next = pendingBackground.poll();
+                    activeBackground++;
+                }
+                executorService.execute(next);
+            }
+        }
+
+        /**
+         * 设置老化时间(毫秒)，低一级的任务等待超过此时间后排在新提交的高一级任务之前，防止饥饿
+         *
+         * @param aging
+         */
+        public void setAging(long aging) {
+            if (executorService instanceof PriorityThreadPoolExecutor) {
+                ((PriorityThreadPoolExecutor) executorService).aging = aging;
+            }
+        }
+
         public boolean isTerminated() {
             return this.executorService.isTerminated();
         }
@@ -204,4 +346,80 @@ public class PoolManager {
         }
 
     }
+
+    /**
+     * 使用优先级队列的线程池，队列按 提交时间+优先级*老化时间 排序，相同时按提交顺序
+     */
+    static class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+        private volatile long aging = DEFAULT_AGING;
+
+        PriorityThreadPoolExecutor(int core, int max, long keepAlive, TimeUnit unit, ThreadFactory threadFactory) {
+            super(core, max, keepAlive, unit, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        }
+
+        <T> PriorityTask<T> newPriorityTask(Callable<T> callable, int priority) {
+            return new PriorityTask<>(callable, priority, SystemClock.elapsedRealtime() + priority * aging);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return newPriorityTask(Executors.callable(runnable, value), PRIORITY_NORMAL);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return newPriorityTask(callable, PRIORITY_NORMAL);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (command instanceof PriorityTask) {
+                super.execute(command);
+            } else {
+                super.execute(newPriorityTask(Executors.callable(command), PRIORITY_NORMAL));
+            }
+        }
+    }
+
+    /**
+     * 带优先级的任务，后台任务结束时通知所属Pool
+     */
+    static class PriorityTask<T> extends FutureTask<T> implements Comparable<PriorityTask<?>> {
+        private static final AtomicLong SEQUENCE = new AtomicLong();
+        private final int priority;
+        private final long deadline;
+        private final long sequence;
+        private Pool pool;
+        private int generation;
+
+        PriorityTask(Callable<T> callable, int priority, long deadline) {
+            super(callable);
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = SEQUENCE.getAndIncrement();
+        }
+
+        int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                if (pool != null) {
+                    pool.onBackgroundFinished(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(PriorityTask<?> another) {
+            if (deadline != another.deadline) {
+                return deadline < another.deadline ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.service.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * 默认的二进制编解码器
+ * <p>
+ * 格式: magic(2) version(1) type(1) timestamp(8) period(8) group id payload,
+ * String和byte[]直接写入，其他类型使用java序列化。
+ * 旧版本直接序列化CacheObject的数据仍可读取。
+ *
+ * @author Cangol
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    static final int MAGIC = 0xCAC0;
+    static final int VERSION_1 = 1;
+    private static final int STREAM_MAGIC = 0xACED;
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_BYTES = 2;
+    private static final int TYPE_SERIALIZABLE = 3;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public void encode(CacheObject cacheObject, OutputStream out) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, IO_BUFFER_SIZE));
+        final Serializable object = cacheObject.getObject();
+        dos.writeShort(MAGIC);
+        dos.writeByte(VERSION_1);
+        dos.writeByte(typeOf(object));
+        dos.writeLong(cacheObject.getTimestamp());
+        dos.writeLong(cacheObject.getPeriod());
+        writeString(dos, cacheObject.getGroup());
+        writeString(dos, cacheObject.getId());
+        if (object instanceof String) {
+            writeBytes(dos, ((String) object).getBytes(UTF_8));
+        } else if (object instanceof byte[]) {
+            writeBytes(dos, (byte[]) object);
+        } else if (object != null) {
+            final ObjectOutputStream oos = new ObjectOutputStream(dos);
+            oos.writeObject(object);
+            oos.flush();
+        }
+        dos.flush();
+    }
+
+    @Override
+    public CacheObject decode(InputStream in) throws IOException {
+        final BufferedInputStream bis = new BufferedInputStream(in, IO_BUFFER_SIZE);
+        bis.mark(2);
+        final int magic = (bis.read() << 8) | bis.read();
+        bis.reset();
+        if (magic == STREAM_MAGIC) {
+            return decodeSerializable(bis);
+        } else if (magic != MAGIC) {
+            throw new IOException("unexpected cache magic: " + Integer.toHexString(magic));
+        }
+
+        final DataInputStream dis = new DataInputStream(bis);
+        dis.readShort();
+        final int version = dis.readUnsignedByte();
+        if (version != VERSION_1) {
+            throw new IOException("unexpected cache version: " + version);
+        }
+        final int type = dis.readUnsignedByte();
+        final CacheObject cacheObject = new CacheObject();
+        cacheObject.setTimestamp(dis.readLong());
+        cacheObject.setPeriod(dis.readLong());
+        cacheObject.setGroup(readString(dis));
+        cacheObject.setId(readString(dis));
+        switch (type) {
+            case TYPE_NULL:
+                break;
+            case TYPE_STRING:
+                cacheObject.setObject(new String(readBytes(dis), UTF_8));
+                break;
+            case TYPE_BYTES:
+                cacheObject.setObject(readBytes(dis));
+                break;
+            case TYPE_SERIALIZABLE:
+                try {
+                    cacheObject.setObject((Serializable) new ObjectInputStream(dis).readObject());
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e.getMessage());
+                }
+                break;
+            default:
+                throw new IOException("unexpected cache type: " + type);
+        }
+        return cacheObject;
+    }
+
+    /**
+     * 读取旧版本直接序列化的CacheObject
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private CacheObject decodeSerializable(InputStream in) throws IOException {
+        try {
+            return (CacheObject) new ObjectInputStream(in).readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage());
+        } catch (ClassCastException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private int typeOf(Serializable object) {
+        if (object == null) {
+            return TYPE_NULL;
+        } else if (object instanceof String) {
+            return TYPE_STRING;
+        } else if (object instanceof byte[]) {
+            return TYPE_BYTES;
+        } else {
+            return TYPE_SERIALIZABLE;
+        }
+    }
+
+    private void writeString(DataOutputStream dos, String value) throws IOException {
+        dos.writeBoolean(value != null);
+        if (value != null) {
+            dos.writeUTF(value);
+        }
+    }
+
+    private String readString(DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    private void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private byte[] readBytes(DataInputStream dis) throws IOException {
+        final int length = dis.readInt();
+        if (length < 0) {
+            throw new IOException("unexpected length: " + length);
+        }
+        // 长度可能已损坏，按实际读到的数据扩容，不预先分配length大小的数组
+        byte[] bytes = new byte[Math.min(length, IO_BUFFER_SIZE)];
+        int count = 0;
+        while (count < length) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+            }
+            final int read = dis.read(bytes, count, bytes.length - count);
+            if (read == -1) {
+                throw new EOFException("expected " + length + " bytes, got " + count);
+            }
+            count += read;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.service.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 缓存对象编解码器，决定CacheObject在磁盘缓存中的存储格式
+ */
+public interface CacheCodec {
+
+    /**
+     * 将缓存对象写入输出流
+     *
+     * @param cacheObject 缓存对象
+     * @param out         输出流
+     * @throws IOException
+     */
+    void encode(CacheObject cacheObject, OutputStream out) throws IOException;
+
+    /**
+     * 从输入流读取缓存对象
+     *
+     * @param in 输入流
+     * @return
+     * @throws IOException
+     */
+    CacheObject decode(InputStream in) throws IOException;
+}
@@ -1,8 +1,10 @@
 package mobi.cangol.mobile.service.cache;
 
 import java.io.Serializable;
+import java.util.Map;
 
 import mobi.cangol.mobile.service.AppService;
+import mobi.cangol.mobile.service.analytics.ITracker;
 
 public interface CacheManager extends AppService {
     /**
@@ -13,6 +15,30 @@ public interface CacheManager extends AppService {
      * 缓存最大大小
      */
     String CACHE_SIZE = "cache_size";
+    /**
+     * 内存缓存最大大小(字节)，默认为最大堆内存的1/8
+     */
+    String MEMORY_SIZE = "memory_size";
+    /**
+     * 默认的提前刷新比例，缓存对象存在超过有效期的此比例后被访问时后台重新加载，默认0.8
+     */
+    String REFRESH_AHEAD = "refresh_ahead";
+    /**
+     * 磁盘缓存日志模式，见DiskLruCache.JOURNAL_MODE_*，默认JOURNAL_MODE_SYNC
+     */
+    String JOURNAL_MODE = "journal_mode";
+    /**
+     * 小对象打包阈值(字节)，不超过此大小的缓存写入共享的段文件而非单独文件，默认0不打包
+     */
+    String PACK_THRESHOLD = "pack_threshold";
+    /**
+     * 压缩阈值(字节)，编码后不小于此大小的缓存压缩后写入磁盘，默认0不压缩
+     */
+    String COMPRESS_THRESHOLD = "compress_threshold";
+    /**
+     * 压缩方法，见CompressedCacheCodec.METHOD_*，默认METHOD_DEFLATE
+     */
+    String COMPRESS_METHOD = "compress_method";
 
     /**
      * 获取缓存对象
@@ -75,6 +101,78 @@ public interface CacheManager extends AppService {
      */
     void removeContent(String context, String id);
 
+    /**
+     * 注册context的数据源，缓存未命中时通过数据源加载并缓存(read-through)，
+     * 缓存对象接近过期时后台提前刷新(refresh-ahead)
+     *
+     * @param context 上下文标示，可当做分类
+     * @param loader  数据源
+     * @param period  加载数据的有效期(单位毫秒)，-1为永久
+     */
+    void registerLoader(String context, ContentLoader loader, long period);
+
+    /**
+     * 注册context的数据源
+     *
+     * @param context      上下文标示，可当做分类
+     * @param loader       数据源
+     * @param period       加载数据的有效期(单位毫秒)，-1为永久
+     * @param refreshAhead 提前刷新比例(0-1)，0为不提前刷新
+     */
+    void registerLoader(String context, ContentLoader loader, long period, float refreshAhead);
+
+    /**
+     * 注销context的数据源
+     *
+     * @param context 上下文标示，可当做分类
+     */
+    void unregisterLoader(String context);
+
+    /**
+     * 获取context的缓存统计，removeContext和clearCache后重新计数；
+     * 最多单独统计64个context，超出的只计入合计
+     *
+     * @param context 上下文标示，可当做分类
+     * @return
+     */
+    CacheStats getCacheStats(String context);
+
+    /**
+     * 获取所有context合计的缓存统计，磁盘占用为整个磁盘缓存的大小
+     *
+     * @return
+     */
+    CacheStats getCacheStats();
+
+    /**
+     * 获取每个context的缓存统计
+     *
+     * @return
+     */
+    Map<String, CacheStats> getAllCacheStats();
+
+    /**
+     * 通过统计跟踪器上报每个context的缓存统计及合计
+     *
+     * @param tracker AnalyticsService获取的统计跟踪器
+     * @param url     上报地址
+     */
+    void reportCacheStats(ITracker tracker, String url);
+
+    /**
+     * 设置磁盘缓存的编解码器，默认为BinaryCacheCodec
+     *
+     * @param cacheCodec
+     */
+    void setCacheCodec(CacheCodec cacheCodec);
+
+    /**
+     * 获取磁盘缓存的编解码器，设置了COMPRESS_THRESHOLD时为CompressedCacheCodec，可从中获取压缩率及耗时统计
+     *
+     * @return
+     */
+    CacheCodec getCacheCodec();
+
     /**
      * 获取缓存大小
      *
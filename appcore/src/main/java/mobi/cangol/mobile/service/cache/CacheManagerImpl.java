@@ -17,7 +17,11 @@ package mobi.cangol.mobile.service.cache;
 
 import android.annotation.TargetApi;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StatFs;
 import android.text.TextUtils;
 
@@ -29,8 +33,16 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import mobi.cangol.mobile.CoreApplication;
 import mobi.cangol.mobile.Task;
@@ -38,8 +50,9 @@ import mobi.cangol.mobile.logging.Log;
 import mobi.cangol.mobile.service.AppService;
 import mobi.cangol.mobile.service.Service;
 import mobi.cangol.mobile.service.ServiceProperty;
+import mobi.cangol.mobile.service.analytics.IMapBuilder;
+import mobi.cangol.mobile.service.analytics.ITracker;
 import mobi.cangol.mobile.service.conf.ConfigService;
-import mobi.cangol.mobile.utils.Object2FileUtils;
 
 /**
  * @author Cangol
@@ -50,19 +63,97 @@ class CacheManagerImpl implements CacheManager {
     private static final String TAG = "CacheManager";
     private static final int DISK_CACHE_INDEX = 0;
     private static final long DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 20L; // 20MB
+    private static final int DEFAULT_MEMORY_CACHE_DIVIDER = 8;
+    private static final int KEY_LOCK_STRIPES = 16;
+    private static final float DEFAULT_REFRESH_AHEAD = 0.8f;
+    /**
+     * 最多单独统计的context数，超出后新context的统计只计入合计
+     */
+    private static final int MAX_STATS_CONTEXTS = 64;
+    /**
+     * 只保护磁盘缓存的打开、关闭和清除，读写按key分段加锁
+     */
     private final Object mDiskCacheLock = new Object();
+    private final ReadWriteLock[] mKeyLocks = new ReadWriteLock[KEY_LOCK_STRIPES];
     private boolean mDebug;
-    private DiskLruCache mDiskLruCache;
-    private HashMap<String, HashMap<String, CacheObject>> mContextMaps = new HashMap<>();
-    private boolean mDiskCacheStarting = true;
+    private volatile DiskLruCache mDiskLruCache;
+    /**
+     * 构造时按默认大小创建，init时按配置的大小替换
+     */
+    private volatile MemoryCache mMemoryCache;
+    private volatile CacheCodec mCacheCodec = new BinaryCacheCodec();
+    /**
+     * 进行中的异步加载，相同context和id的请求共享一次磁盘读取
+     */
+    private final HashMap<String, PendingLoad> mPendingLoads = new HashMap<>();
+    private final ConcurrentHashMap<String, CacheStats.Counter> mStats = new ConcurrentHashMap<>();
+    /**
+     * 不属于已统计context的数据，包括已移除context的历史统计，只计入合计
+     */
+    private final CacheStats.Counter mUnattributedStats = new CacheStats.Counter();
+    private final ConcurrentHashMap<String, DiskOwner> mDiskOwners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LoaderHolder> mLoaders = new ConcurrentHashMap<>();
+    private final Set<String> mRefreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private float mRefreshAhead = DEFAULT_REFRESH_AHEAD;
+    private final ConcurrentHashMap<String, Set<String>> mContextIds = new ConcurrentHashMap<>();
+    private volatile boolean mDiskCacheStarting = true;
     private File mDiskCacheDir;
     private long mDiskCacheSize;
+    private int mJournalMode = DiskLruCache.JOURNAL_MODE_SYNC;
+    private long mPackThreshold;
     private ServiceProperty mServiceProperty;
     private CoreApplication mApplication;
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (mDebug) Log.d(TAG, "onTrimMemory level=" + level);
+            mMemoryCache.trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            //do nothings
+        }
+
+        @Override
+        public void onLowMemory() {
+            if (mDebug) Log.d(TAG, "onLowMemory");
+            mMemoryCache.evictAll();
+        }
+    };
+
+    private final MemoryCache.OnEvictedListener mMemoryEvictedListener = new MemoryCache.OnEvictedListener() {
+        @Override
+        public void onEvicted(String context) {
+            getStatsCounter(context).memoryEvictionCount.incrementAndGet();
+        }
+    };
+    private final DiskLruCache.EvictionListener mDiskEvictionListener = new DiskLruCache.EvictionListener() {
+        @Override
+        public void onEvicted(String key, long length, boolean expired) {
+            final DiskOwner owner = mDiskOwners.remove(key);
+            if (owner != null) {
+                final CacheStats.Counter counter = getStatsCounter(owner.context);
+                counter.diskEvictionCount.incrementAndGet();
+                counter.diskBytes.addAndGet(-owner.length);
+            } else {
+                mUnattributedStats.diskEvictionCount.incrementAndGet();
+            }
+        }
+    };
+
+    CacheManagerImpl() {
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new ReentrantReadWriteLock();
+        }
+        mMemoryCache = new MemoryCache((int) (Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_CACHE_DIVIDER));
+        mMemoryCache.setOnEvictedListener(mMemoryEvictedListener);
+    }
 
     @Override
     public void onCreate(Application context) {
         this.mApplication = (CoreApplication) context;
+        this.mApplication.registerComponentCallbacks(mComponentCallbacks);
         if (mDebug) Log.d(TAG, "onCreate");
     }
 
@@ -72,6 +163,18 @@ class CacheManagerImpl implements CacheManager {
         this.mServiceProperty = serviceProperty;
         final String dir = mServiceProperty.getString(CacheManager.CACHE_DIR);
         final long size = mServiceProperty.getLong(CacheManager.CACHE_SIZE);
+        final int memorySize = mServiceProperty.getInt(CacheManager.MEMORY_SIZE);
+        mRefreshAhead = mServiceProperty.getFloat(CacheManager.REFRESH_AHEAD, DEFAULT_REFRESH_AHEAD);
+        mJournalMode = mServiceProperty.getInt(CacheManager.JOURNAL_MODE, DiskLruCache.JOURNAL_MODE_SYNC);
+        mPackThreshold = mServiceProperty.getLong(CacheManager.PACK_THRESHOLD);
+        final int compressThreshold = mServiceProperty.getInt(CacheManager.COMPRESS_THRESHOLD);
+        if (compressThreshold > 0) {
+            mCacheCodec = new CompressedCacheCodec(new BinaryCacheCodec(),
+                    mServiceProperty.getInt(CacheManager.COMPRESS_METHOD, CompressedCacheCodec.METHOD_DEFLATE), compressThreshold);
+        }
+        if (memorySize > 0 && memorySize != mMemoryCache.maxSize()) {
+            mMemoryCache = mMemoryCache.copy(memorySize);
+        }
         final ConfigService configService = (ConfigService) mApplication.getAppService(AppService.CONFIG_SERVICE);
         final String cacheDir = configService.getCacheDir().getAbsolutePath() + File.separator + (!TextUtils.isEmpty(dir) ? dir : "contentCache");
         setDiskCache(new File(cacheDir), size > 0 ? size : DEFAULT_DISK_CACHE_SIZE);
@@ -108,7 +211,9 @@ class CacheManagerImpl implements CacheManager {
                     }
                     if (getUsableSpace(diskCacheDir) > diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, diskCacheSize, mJournalMode);
+                            mDiskLruCache.setPackThreshold(mPackThreshold);
+                            mDiskLruCache.setEvictionListener(mDiskEvictionListener);
                             if (mDebug) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -128,29 +233,33 @@ class CacheManagerImpl implements CacheManager {
     @Override
     public Serializable getContent(String context, String id) {
         if (mDebug) Log.d(TAG, "getContent context=" + context + ",id=" + id);
-        HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap) {
-            contextMap = new HashMap<>();
-            mContextMaps.put(context, contextMap);
-        }
-        CacheObject cacheObject = contextMap.get(id);
+        final CacheStats.Counter counter = getStatsCounter(context);
+        CacheObject cacheObject = mMemoryCache.get(context, id);
+        final boolean fromMemory = cacheObject != null;
         if (cacheObject == null) {
-            cacheObject = getContentFromDiskCache(id);
+            cacheObject = getContentFromDiskCache(context, id);
             if (cacheObject != null) {
-                contextMap.put(id, cacheObject);
+                putContentToMem(context, id, cacheObject);
             }
         }
-        if (cacheObject != null) {
-            if (cacheObject.isExpired()) {
-                Log.e(TAG, "is expired & remove ");
-                removeContent(context, id);
-                return null;
+        if (cacheObject != null && cacheObject.isExpired()) {
+            Log.e(TAG, "is expired & remove ");
+            counter.expiredCount.incrementAndGet();
+            removeContent(context, id);
+            cacheObject = null;
+        }
+        if (cacheObject == null) {
+            counter.missCount.incrementAndGet();
+            cacheObject = loadContent(context, id);
+        } else {
+            if (fromMemory) {
+                counter.memoryHitCount.incrementAndGet();
             } else {
-                return cacheObject.getObject();
+                counter.diskHitCount.incrementAndGet();
             }
-        } else {
-            return null;
+            refreshAhead(context, id, cacheObject);
         }
+        return cacheObject != null ? cacheObject.getObject() : null;
     }
 
     @Override
@@ -158,59 +267,212 @@ class CacheManagerImpl implements CacheManager {
         if (mDebug)
             Log.d(TAG, "getContent context=" + context + ",id=" + id + ",cacheLoader=" + cacheLoader);
         if (cacheLoader != null) cacheLoader.loading();
-        HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap) {
-            contextMap = new HashMap<>();
-            mContextMaps.put(context, contextMap);
+        final CacheStats.Counter counter = getStatsCounter(context);
+        CacheObject cacheObject = mMemoryCache.get(context, id);
+        if (cacheObject != null && cacheObject.isExpired() && mLoaders.containsKey(context)) {
+            Log.e(TAG, "is expired & remove ");
+            counter.expiredCount.incrementAndGet();
+            removeContent(context, id);
+            cacheObject = null;
         }
-        final CacheObject cacheObject = contextMap.get(id);
         if (cacheObject == null) {
-            mApplication.post(new Task<CacheObject>() {
-
-                @Override
-                public CacheObject call() {
-                    return getContentFromDiskCache(id);
+            final String loadKey = MemoryCache.toKey(context, id);
+            // 结果回调到调用线程的Looper，在没有Looper的线程登记前就失败，不会留下永远无法完成的加载
+            final Waiter waiter = cacheLoader != null ? new Waiter(cacheLoader, new Handler()) : null;
+            final PendingLoad pendingLoad;
+            synchronized (mPendingLoads) {
+                final PendingLoad inFlight = mPendingLoads.get(loadKey);
+                if (inFlight != null) {
+                    if (waiter != null) inFlight.waiters.add(waiter);
+                    final long coalesced = counter.coalescedLoadCount.incrementAndGet();
+                    if (mDebug) Log.d(TAG, "getContent coalesced id=" + id + ",total=" + coalesced);
+                    return;
                 }
+                pendingLoad = new PendingLoad();
+                if (waiter != null) pendingLoad.waiters.add(waiter);
+                mPendingLoads.put(loadKey, pendingLoad);
+            }
+            try {
+                // 只有发起加载的调用创建Task
+                pendingLoad.task = new Task<CacheObject>() {
 
-                @Override
-                public void result(CacheObject cacheObject) {
-                    if (cacheObject != null) {
-                        if (cacheObject.isExpired()) {
-                            Log.e(TAG, "is expired & remove ");
-                            removeContent(context, id);
-                            if (cacheLoader != null) cacheLoader.returnContent(null);
-                        } else {
-                            addContentToMem(context, id, cacheObject.getObject(), cacheObject.getPeriod());
-                            if (cacheLoader != null)
-                                cacheLoader.returnContent(cacheObject.getObject());
+                    @Override
+                    public CacheObject call() {
+                        try {
+                            final CacheObject cacheObject = getContentFromDiskCache(context, id);
+                            if (cacheObject != null && !cacheObject.isExpired()) {
+                                counter.diskHitCount.incrementAndGet();
+                            } else {
+                                if (cacheObject != null) {
+                                    counter.expiredCount.incrementAndGet();
+                                }
+                                counter.missCount.incrementAndGet();
+                                final CacheObject loaded = loadContent(context, id);
+                                if (loaded != null) {
+                                    return loaded;
+                                }
+                            }
+                            return cacheObject;
+                        } catch (RuntimeException e) {
+                            // 异常会被线程池吞掉，返回null保证result回调，等待的CacheLoader得到结果
+                            Log.e(TAG, "getContent - " + e);
+                            return null;
                         }
-                    } else {
-                        if (cacheLoader != null) cacheLoader.returnContent(null);
                     }
-                }
-            });
+
+                    @Override
+                    public void result(CacheObject cacheObject) {
+                        Serializable content = null;
+                        try {
+                            if (cacheObject != null) {
+                                if (cacheObject.isExpired()) {
+                                    Log.e(TAG, "is expired & remove ");
+                                    removeContent(context, id);
+                                } else {
+                                    putContentToMem(context, id, cacheObject);
+                                    refreshAhead(context, id, cacheObject);
+                                    content = cacheObject.getObject();
+                                }
+                            }
+                        } finally {
+                            completeLoad(loadKey, pendingLoad, content);
+                        }
+                    }
+                };
+                mApplication.post(pendingLoad.task);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "getContent - " + e);
+                completeLoad(loadKey, pendingLoad, null);
+            }
         } else {
             if (cacheObject.isExpired()) {
                 Log.e(TAG, "is expired & remove ");
+                counter.expiredCount.incrementAndGet();
+                counter.missCount.incrementAndGet();
                 removeContent(context, id);
                 if (cacheLoader != null) cacheLoader.returnContent(null);
             } else {
+                counter.memoryHitCount.incrementAndGet();
+                refreshAhead(context, id, cacheObject);
                 if (cacheLoader != null) cacheLoader.returnContent(cacheObject.getObject());
             }
         }
     }
 
+    /**
+     * 结束一次异步加载，移除登记并在各自调用线程上回调所有等待的CacheLoader
+     *
+     * @param loadKey
+     * @param pendingLoad
+     * @param content     加载失败时为null
+     */
+    private void completeLoad(String loadKey, PendingLoad pendingLoad, final Serializable content) {
+        synchronized (mPendingLoads) {
+            mPendingLoads.remove(loadKey);
+        }
+        for (final Waiter waiter : pendingLoad.waiters) {
+            if (waiter.handler.getLooper() == Looper.myLooper()) {
+                waiter.loader.returnContent(content);
+            } else {
+                waiter.handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        waiter.loader.returnContent(content);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void registerLoader(String context, ContentLoader loader, long period) {
+        registerLoader(context, loader, period, mRefreshAhead);
+    }
+
+    @Override
+    public void registerLoader(String context, ContentLoader loader, long period, float refreshAhead) {
+        if (mDebug)
+            Log.d(TAG, "registerLoader context=" + context + ",period=" + period + ",refreshAhead=" + refreshAhead);
+        if (loader == null) {
+            throw new IllegalArgumentException("loader must not be null");
+        }
+        mLoaders.put(context, new LoaderHolder(loader, period, refreshAhead));
+    }
+
+    @Override
+    public void unregisterLoader(String context) {
+        if (mDebug) Log.d(TAG, "unregisterLoader context=" + context);
+        mLoaders.remove(context);
+    }
+
+    /**
+     * 通过context注册的ContentLoader加载并缓存数据
+     *
+     * @param context
+     * @param id
+     * @return 未注册或加载失败返回null
+     */
+    private CacheObject loadContent(String context, String id) {
+        final LoaderHolder holder = mLoaders.get(context);
+        if (holder == null) {
+            return null;
+        }
+        if (mDebug) Log.d(TAG, "loadContent context=" + context + ",id=" + id);
+        Serializable data = null;
+        final long start = System.nanoTime();
+        try {
+            data = holder.loader.load(context, id);
+        } catch (Exception e) {
+            Log.e(TAG, "loadContent - " + e);
+        }
+        getStatsCounter(context).recordLoad(data != null, System.nanoTime() - start);
+        if (data == null) {
+            return null;
+        }
+        final CacheObject cacheObject = new CacheObject(context, id, data, holder.period);
+        storeContent(context, id, cacheObject);
+        return cacheObject;
+    }
+
+    /**
+     * 缓存对象已过有效期的refreshAhead比例时，后台重新加载
+     *
+     * @param context
+     * @param id
+     * @param cacheObject
+     */
+    private void refreshAhead(final String context, final String id, CacheObject cacheObject) {
+        final LoaderHolder holder = mLoaders.get(context);
+        if (holder == null || holder.refreshAhead <= 0 || cacheObject.getPeriod() <= 0) {
+            return;
+        }
+        final long age = System.currentTimeMillis() - cacheObject.getTimestamp();
+        if (age < cacheObject.getPeriod() * holder.refreshAhead) {
+            return;
+        }
+        final String refreshKey = MemoryCache.toKey(context, id);
+        if (!mRefreshing.add(refreshKey)) {
+            return;
+        }
+        if (mDebug) Log.d(TAG, "refreshAhead context=" + context + ",id=" + id + ",age=" + age);
+        mApplication.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadContent(context, id);
+                } finally {
+                    mRefreshing.remove(refreshKey);
+                }
+            }
+        });
+    }
+
     @Override
     public boolean hasContent(String context, String id) {
         if (mDebug) Log.d(TAG, "hasContent context=" + context + ",id=" + id);
-        HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap) {
-            contextMap = new HashMap<>();
-            mContextMaps.put(context, contextMap);
-        }
-        final CacheObject cacheObject = contextMap.get(id);
+        final CacheObject cacheObject = mMemoryCache.get(context, id);
         if (cacheObject == null) {
-            return hasContentFromDiskCache(id);
+            return hasContentFromDiskCache(context, id);
         } else {
             if (cacheObject.isExpired()) {
                 Log.e(TAG, "is expired & remove ");
@@ -223,64 +485,82 @@ class CacheManagerImpl implements CacheManager {
     }
 
     /**
-     * 判断磁盘缓存是否含有
+     * 判断磁盘缓存是否含有，优先使用日志中的有效期，旧数据才需要反序列化
      *
+     * @param context
      * @param id
      * @return
      */
-    private boolean hasContentFromDiskCache(String id) {
+    private boolean hasContentFromDiskCache(String context, String id) {
         if (mDebug) Log.d(TAG, "hasContentFromDiskCache id=" + id);
         final String key = hashKeyForDisk(id);
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                    Log.d(e.getMessage());
-                }
+        final DiskLruCache diskLruCache = awaitDiskCache();
+        if (diskLruCache == null) {
+            return false;
+        }
+        long expiresAt = DiskLruCache.EXPIRES_UNKNOWN;
+        try {
+            if (!diskLruCache.contains(key)) {
+                return false;
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            final CacheObject obj = (CacheObject) Object2FileUtils.readObject(inputStream);
-                            if (obj.isExpired()) {
-                                Log.e(TAG, "is expired & remove ");
-                                mDiskLruCache.remove(hashKeyForDisk(id));
-                                return false;
-                            } else {
-                                return true;
-                            }
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getContentFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
-                        Log.d(e.getMessage());
-                    }
-                }
+            expiresAt = diskLruCache.getExpiresAt(key);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "hasContentFromDiskCache - " + e);
+            return false;
+        }
+        if (expiresAt == DiskLruCache.EXPIRES_NEVER) {
+            return true;
+        } else if (expiresAt != DiskLruCache.EXPIRES_UNKNOWN) {
+            if (expiresAt <= System.currentTimeMillis()) {
+                Log.e(TAG, "is expired & remove ");
+                removeFromDiskCache(key);
+                return false;
             }
+            return true;
+        }
+        final CacheObject obj = readFromDiskCache(context, key);
+        if (obj == null) {
+            return false;
+        } else if (obj.isExpired()) {
+            Log.e(TAG, "is expired & remove ");
+            removeFromDiskCache(key);
             return false;
+        } else {
+            return true;
         }
     }
 
     /**
      * 从磁盘缓存获取
      *
+     * @param context
      * @param id
      * @return
      */
-    private CacheObject getContentFromDiskCache(String id) {
+    private CacheObject getContentFromDiskCache(String context, String id) {
         if (mDebug) Log.d(TAG, "getContentFromDiskCache id=" + id);
-        final String key = hashKeyForDisk(id);
+        return readFromDiskCache(context, hashKeyForDisk(id));
+    }
+
+    /**
+     * 获取key所在分段的读写锁，不同分段的读写互不阻塞
+     *
+     * @param key
+     * @return
+     */
+    private ReadWriteLock getKeyLock(String key) {
+        return mKeyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCK_STRIPES];
+    }
+
+    /**
+     * 等待磁盘缓存初始化完成
+     *
+     * @return
+     */
+    private DiskLruCache awaitDiskCache() {
+        if (!mDiskCacheStarting) {
+            return mDiskLruCache;
+        }
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
@@ -289,64 +569,113 @@ class CacheManagerImpl implements CacheManager {
                     Log.d(e.getMessage());
                 }
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            return (CacheObject) Object2FileUtils.readObject(inputStream);
-                        }
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getContentFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
-                        Log.d(e.getMessage());
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * 读取磁盘缓存，同一分段内的读可以并发
+     *
+     * @param context
+     * @param key
+     * @return
+     */
+    private CacheObject readFromDiskCache(String context, String key) {
+        final DiskLruCache diskLruCache = awaitDiskCache();
+        if (diskLruCache == null) {
+            return null;
+        }
+        final ReadWriteLock lock = getKeyLock(key);
+        lock.readLock().lock();
+        InputStream inputStream = null;
+        boolean corrupt = false;
+        final long start = System.nanoTime();
+        try {
+            final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+            if (snapshot != null) {
+                inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                if (inputStream != null) {
+                    final CacheObject cacheObject = mCacheCodec.decode(inputStream);
+                    getStatsCounter(context).recordDiskRead(System.nanoTime() - start);
+                    if (!mDiskOwners.containsKey(key)) {
+                        attributeDiskEntry(context, key, diskLruCache.getLength(key));
                     }
+                    return cacheObject;
                 }
             }
-            return null;
+            getStatsCounter(context).recordDiskRead(System.nanoTime() - start);
+        } catch (final IOException e) {
+            Log.e(TAG, "readFromDiskCache - " + e);
+            corrupt = true;
+        } catch (final IllegalStateException e) {
+            Log.e(TAG, "readFromDiskCache - " + e);
+        } catch (final RuntimeException e) {
+            // 损坏的数据可能让解码抛出NegativeArraySizeException等运行时异常
+            Log.e(TAG, "readFromDiskCache - " + e);
+            corrupt = true;
+        } finally {
+            lock.readLock().unlock();
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                Log.d(e.getMessage());
+            }
         }
-
+        if (corrupt) {
+            removeFromDiskCache(key);
+        }
+        return null;
     }
 
     /**
-     * 添加到内存缓存
+     * 删除磁盘缓存
      *
-     * @param context
-     * @param id
-     * @param data
+     * @param key
      */
-    private void addContentToMem(String context, String id, Serializable data) {
-        HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap) {
-            contextMap = new HashMap<>();
+    private void removeFromDiskCache(String key) {
+        final DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache == null) {
+            return;
+        }
+        final ReadWriteLock lock = getKeyLock(key);
+        lock.writeLock().lock();
+        try {
+            diskLruCache.remove(key);
+            final DiskOwner owner = mDiskOwners.remove(key);
+            if (owner != null) {
+                getStatsCounter(owner.context).diskBytes.addAndGet(-owner.length);
+            }
+        } catch (IOException e) {
+            if (mDebug) {
+                Log.d(TAG, "cache remove" + key, e);
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "cache remove - " + e);
+        } finally {
+            lock.writeLock().unlock();
         }
-        contextMap.put(id, new CacheObject(context, id, data));
-        mContextMaps.put(context, contextMap);
     }
 
     /**
-     * 添加到内存缓存
+     * 添加到内存缓存，超出内存预算时按LRU淘汰
      *
      * @param context
      * @param id
-     * @param data
-     * @param period
+     * @param cacheObject
      */
-    private void addContentToMem(String context, String id, Serializable data, long period) {
-        HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap) {
-            contextMap = new HashMap<>();
+    private void putContentToMem(String context, String id, CacheObject cacheObject) {
+        mMemoryCache.put(context, id, cacheObject);
+        Set<String> ids = mContextIds.get(context);
+        if (null == ids) {
+            final Set<String> newIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            ids = mContextIds.putIfAbsent(context, newIds);
+            if (null == ids) {
+                ids = newIds;
+            }
         }
-        contextMap.put(id, new CacheObject(context, id, data, period));
-        mContextMaps.put(context, contextMap);
+        ids.add(id);
     }
 
     /**
@@ -355,17 +684,26 @@ class CacheManagerImpl implements CacheManager {
     @Override
     public void addContent(String context, String id, Serializable data) {
         if (mDebug) Log.d(TAG, "addContent:" + id + "," + data);
-        removeContent(context, id);
-        addContentToMem(context, id, data);
-        asyncAddContentToDiskCache(id, new CacheObject(context, id, data));
+        storeContent(context, id, new CacheObject(context, id, data));
     }
 
     @Override
     public void addContent(String context, String id, Serializable data, long period) {
         if (mDebug) Log.d(TAG, "addContent:" + id + "," + data + "," + period);
+        storeContent(context, id, new CacheObject(context, id, data, period));
+    }
+
+    /**
+     * 替换内存缓存并异步写入磁盘缓存
+     *
+     * @param context
+     * @param id
+     * @param cacheObject
+     */
+    private void storeContent(String context, String id, CacheObject cacheObject) {
         removeContent(context, id);
-        addContentToMem(context, id, data, period);
-        asyncAddContentToDiskCache(id, new CacheObject(context, id, data, period));
+        putContentToMem(context, id, cacheObject);
+        asyncAddContentToDiskCache(id, cacheObject);
     }
 
     /**
@@ -390,37 +728,43 @@ class CacheManagerImpl implements CacheManager {
      * @param cacheObject
      */
     private void addContentToDiskCache(String id, CacheObject cacheObject) {
-
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(id);
-                OutputStream out = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            // 写入out流
-                            Object2FileUtils.writeObject(cacheObject, out);
-                            editor.commit();
-                            out.close();
+        final DiskLruCache diskLruCache = awaitDiskCache();
+        // Add to disk cache
+        if (diskLruCache != null) {
+            final String key = hashKeyForDisk(id);
+            final ReadWriteLock lock = getKeyLock(key);
+            lock.writeLock().lock();
+            OutputStream out = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    final DiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        // 写入out流
+                        mCacheCodec.encode(cacheObject, out);
+                        editor.setExpiresAt(cacheObject.getPeriod() == -1 ? DiskLruCache.EXPIRES_NEVER
+                                : cacheObject.getTimestamp() + cacheObject.getPeriod());
+                        editor.commit();
+                        out.close();
+                        attributeDiskEntry(cacheObject.getGroup(), key, diskLruCache.getLength(key));
+                        if (mJournalMode == DiskLruCache.JOURNAL_MODE_SYNC) {
                             flush();
                         }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
                     }
-                } catch (Exception e) {
-                    Log.e(TAG, "addContentToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {
-                        Log.d(e.getMessage());
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "addContentToCache - " + e);
+            } finally {
+                lock.writeLock().unlock();
+                try {
+                    if (out != null) {
+                        out.close();
                     }
+                } catch (IOException e) {
+                    Log.d(e.getMessage());
                 }
             }
         }
@@ -428,46 +772,128 @@ class CacheManagerImpl implements CacheManager {
 
     @Override
     public void removeContext(String context) {
-        final HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap || contextMap.isEmpty()) {
-            return;
+        mMemoryCache.removeContext(context);
+        final Set<String> ids = mContextIds.remove(context);
+        if (null != ids) {
+            final Iterator<String> iterator = ids.iterator();
+            String id = null;
+            while (iterator.hasNext()) {
+                id = iterator.next();
+                removeFromDiskCache(hashKeyForDisk(id));
+            }
         }
-        final Iterator<String> iterator = contextMap.keySet().iterator();
-        String id = null;
-        while (iterator.hasNext()) {
-            id = iterator.next();
-            final String key = hashKeyForDisk(id);
-            try {
-                if (mDiskLruCache != null) {
-                    mDiskLruCache.remove(key);
-                }
-            } catch (IOException e) {
-                if (mDebug) {
-                    Log.d(TAG, "cache remove" + key, e);
-                }
+        // 本次运行前写入、读取时才归属到该context的磁盘缓存
+        for (final Map.Entry<String, DiskOwner> entry : mDiskOwners.entrySet()) {
+            if (entry.getValue().context.equals(context)) {
+                removeFromDiskCache(entry.getKey());
             }
         }
-        contextMap.clear();
-        mContextMaps.remove(context);
+        dropStats(context);
+    }
+
+    /**
+     * 移除context的统计，已有的计数并入合计
+     *
+     * @param context
+     */
+    private void dropStats(String context) {
+        final CacheStats.Counter counter = mStats.remove(context);
+        if (counter != null) {
+            counter.diskBytes.set(0);
+            mUnattributedStats.add(counter);
+        }
     }
 
     @Override
     public void removeContent(String context, String id) {
-        final HashMap<String, CacheObject> contextMap = mContextMaps.get(context);
-        if (null == contextMap || contextMap.isEmpty()) {
+        final Set<String> ids = mContextIds.get(context);
+        if (null != ids) {
+            ids.remove(id);
+        }
+        mMemoryCache.remove(context, id);
+        removeFromDiskCache(hashKeyForDisk(id));
+    }
+
+    /**
+     * 记录磁盘缓存项所属的context及大小，用于按context统计磁盘占用
+     *
+     * @param context
+     * @param key
+     * @param length
+     */
+    private void attributeDiskEntry(String context, String key, long length) {
+        if (context == null || length < 0) {
             return;
         }
-        contextMap.remove(id);
-        final String key = hashKeyForDisk(id);
-        try {
-            if (mDiskLruCache != null) {
-                mDiskLruCache.remove(key);
+        final DiskOwner previous = mDiskOwners.put(key, new DiskOwner(context, length));
+        if (previous != null) {
+            getStatsCounter(previous.context).diskBytes.addAndGet(-previous.length);
+        }
+        getStatsCounter(context).diskBytes.addAndGet(length);
+    }
+
+    private CacheStats.Counter getStatsCounter(String context) {
+        CacheStats.Counter counter = mStats.get(context);
+        if (counter == null) {
+            if (mStats.size() >= MAX_STATS_CONTEXTS) {
+                return mUnattributedStats;
             }
-        } catch (IOException e) {
-            if (mDebug) {
-                Log.d(TAG, "cache remove" + key, e);
+            final CacheStats.Counter newCounter = new CacheStats.Counter();
+            counter = mStats.putIfAbsent(context, newCounter);
+            if (counter == null) {
+                counter = newCounter;
             }
         }
+        return counter;
+    }
+
+    @Override
+    public CacheStats getCacheStats(String context) {
+        final CacheStats.Counter counter = mStats.get(context);
+        return (counter != null ? counter : new CacheStats.Counter()).snapshot(context);
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        final CacheStats.Counter total = new CacheStats.Counter();
+        total.add(mUnattributedStats);
+        for (final CacheStats.Counter counter : mStats.values()) {
+            total.add(counter);
+        }
+        return total.snapshot(null, size());
+    }
+
+    @Override
+    public Map<String, CacheStats> getAllCacheStats() {
+        final Map<String, CacheStats> stats = new HashMap<>();
+        for (final Map.Entry<String, CacheStats.Counter> entry : mStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return stats;
+    }
+
+    @Override
+    public void reportCacheStats(ITracker tracker, String url) {
+        if (tracker == null || url == null) {
+            throw new IllegalArgumentException("tracker and url must not be null");
+        }
+        for (final CacheStats stats : getAllCacheStats().values()) {
+            tracker.send(IMapBuilder.build().setUrl(url).setAll(stats.toMap()));
+        }
+        tracker.send(IMapBuilder.build().setUrl(url).setAll(getCacheStats().toMap()));
+    }
+
+    @Override
+    public void setCacheCodec(CacheCodec cacheCodec) {
+        if (cacheCodec == null) {
+            throw new IllegalArgumentException("cacheCodec must not be null");
+        }
+        this.mCacheCodec = cacheCodec;
+    }
+
+    @Override
+    public CacheCodec getCacheCodec() {
+        return mCacheCodec;
     }
 
     @Override
@@ -483,11 +909,10 @@ class CacheManagerImpl implements CacheManager {
 
     @Override
     public void clearCache() {
-        if (mContextMaps != null) {
-            mContextMaps.clear();
-            if (mDebug) {
-                Log.d(TAG, "Memory cache cleared");
-            }
+        mMemoryCache.clear();
+        mContextIds.clear();
+        if (mDebug) {
+            Log.d(TAG, "Memory cache cleared");
         }
 
         synchronized (mDiskCacheLock) {
@@ -502,6 +927,10 @@ class CacheManagerImpl implements CacheManager {
                     Log.e(TAG, "clearCache - " + e);
                 }
                 mDiskLruCache = null;
+                mDiskOwners.clear();
+                for (final String context : mStats.keySet()) {
+                    dropStats(context);
+                }
                 initDiskCache(mDiskCacheDir, mDiskCacheSize);
             }
         }
@@ -585,6 +1014,7 @@ class CacheManagerImpl implements CacheManager {
 
     @Override
     public void onDestroy() {
+        mApplication.unregisterComponentCallbacks(mComponentCallbacks);
         this.close();
     }
 
@@ -606,4 +1036,53 @@ class CacheManagerImpl implements CacheManager {
         return sp;
     }
 
+    /**
+     * 一次进行中的异步加载及等待其结果的CacheLoader，持有task防止其结果回调前被回收
+     */
+    private static class PendingLoad {
+        private final List<Waiter> waiters = new ArrayList<>();
+        private Task<CacheObject> task;
+    }
+
+    /**
+     * 等待加载结果的CacheLoader及其调用线程的Handler
+     */
+    private static class Waiter {
+        private final CacheLoader loader;
+        private final Handler handler;
+
+        Waiter(CacheLoader loader, Handler handler) {
+            this.loader = loader;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * 磁盘缓存项所属的context及其大小
+     */
+    private static class DiskOwner {
+        private final String context;
+        private final long length;
+
+        DiskOwner(String context, long length) {
+            this.context = context;
+            this.length = length;
+        }
+    }
+
+    /**
+     * context注册的数据源及其缓存有效期
+     */
+    private static class LoaderHolder {
+        private final ContentLoader loader;
+        private final long period;
+        private final float refreshAhead;
+
+        LoaderHolder(ContentLoader loader, long period, float refreshAhead) {
+            this.loader = loader;
+            this.period = period;
+            this.refreshAhead = refreshAhead;
+        }
+    }
+
 }
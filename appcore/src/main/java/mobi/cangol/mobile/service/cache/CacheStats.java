@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.service.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存统计快照(不可变)，按context统计，也可以是所有context的合计
+ *
+ * @author Cangol
+ */
+public final class CacheStats {
+    private final String context;
+    private final long memoryHitCount;
+    private final long diskHitCount;
+    private final long missCount;
+    private final long expiredCount;
+    private final long memoryEvictionCount;
+    private final long diskEvictionCount;
+    private final long diskReadCount;
+    private final long totalDiskReadTime;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long coalescedLoadCount;
+    private final long diskBytes;
+
+    private CacheStats(String context, Counter counter, long diskBytes) {
+        this.context = context;
+        this.memoryHitCount = counter.memoryHitCount.get();
+        this.diskHitCount = counter.diskHitCount.get();
+        this.missCount = counter.missCount.get();
+        this.expiredCount = counter.expiredCount.get();
+        this.memoryEvictionCount = counter.memoryEvictionCount.get();
+        this.diskEvictionCount = counter.diskEvictionCount.get();
+        this.diskReadCount = counter.diskReadCount.get();
+        this.totalDiskReadTime = counter.totalDiskReadTime.get();
+        this.loadSuccessCount = counter.loadSuccessCount.get();
+        this.loadFailureCount = counter.loadFailureCount.get();
+        this.totalLoadTime = counter.totalLoadTime.get();
+        this.coalescedLoadCount = counter.coalescedLoadCount.get();
+        this.diskBytes = diskBytes;
+    }
+
+    /**
+     * 统计的context，合计时为null
+     *
+     * @return
+     */
+    public String getContext() {
+        return context;
+    }
+
+    /**
+     * 内存缓存命中次数
+     *
+     * @return
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    /**
+     * 磁盘缓存命中次数
+     *
+     * @return
+     */
+    public long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * 未命中次数(包括过期)
+     *
+     * @return
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 读取时发现已过期的次数
+     *
+     * @return
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * 内存缓存因超出预算被淘汰的次数
+     *
+     * @return
+     */
+    public long getMemoryEvictionCount() {
+        return memoryEvictionCount;
+    }
+
+    /**
+     * 磁盘缓存因超出CACHE_SIZE或过期被清理的次数
+     *
+     * @return
+     */
+    public long getDiskEvictionCount() {
+        return diskEvictionCount;
+    }
+
+    /**
+     * 淘汰总次数
+     *
+     * @return
+     */
+    public long getEvictionCount() {
+        return memoryEvictionCount + diskEvictionCount;
+    }
+
+    /**
+     * 请求总次数
+     *
+     * @return
+     */
+    public long getRequestCount() {
+        return memoryHitCount + diskHitCount + missCount;
+    }
+
+    /**
+     * 命中率(0-1)，无请求时为1
+     *
+     * @return
+     */
+    public double getHitRate() {
+        final long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) (memoryHitCount + diskHitCount) / requestCount;
+    }
+
+    /**
+     * 磁盘读取次数(包括未命中)
+     *
+     * @return
+     */
+    public long getDiskReadCount() {
+        return diskReadCount;
+    }
+
+    /**
+     * 平均磁盘读取(含解码)耗时(纳秒)
+     *
+     * @return
+     */
+    public long getAverageDiskReadTime() {
+        return diskReadCount == 0 ? 0 : totalDiskReadTime / diskReadCount;
+    }
+
+    /**
+     * 通过ContentLoader加载成功的次数
+     *
+     * @return
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * 通过ContentLoader加载失败的次数
+     *
+     * @return
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * 平均加载耗时(纳秒)
+     *
+     * @return
+     */
+    public long getAverageLoadTime() {
+        final long loadCount = loadSuccessCount + loadFailureCount;
+        return loadCount == 0 ? 0 : totalLoadTime / loadCount;
+    }
+
+    /**
+     * 异步获取时合并到同一加载中的请求次数
+     *
+     * @return
+     */
+    public long getCoalescedLoadCount() {
+        return coalescedLoadCount;
+    }
+
+    /**
+     * 磁盘占用(字节)，按context统计时只包含本进程写入或读取过的缓存
+     *
+     * @return
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * 转换为上报参数
+     *
+     * @return
+     */
+    public Map<String, String> toMap() {
+        final Map<String, String> map = new HashMap<>();
+        if (context != null) {
+            map.put("context", context);
+        }
+        map.put("memoryHit", String.valueOf(memoryHitCount));
+        map.put("diskHit", String.valueOf(diskHitCount));
+        map.put("miss", String.valueOf(missCount));
+        map.put("expired", String.valueOf(expiredCount));
+        map.put("memoryEviction", String.valueOf(memoryEvictionCount));
+        map.put("diskEviction", String.valueOf(diskEvictionCount));
+        map.put("diskReadAvg", String.valueOf(getAverageDiskReadTime()));
+        map.put("loadSuccess", String.valueOf(loadSuccessCount));
+        map.put("loadFailure", String.valueOf(loadFailureCount));
+        map.put("loadAvg", String.valueOf(getAverageLoadTime()));
+        map.put("coalesced", String.valueOf(coalescedLoadCount));
+        map.put("diskBytes", String.valueOf(diskBytes));
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "context=" + context +
+                ", memoryHitCount=" + memoryHitCount +
+                ", diskHitCount=" + diskHitCount +
+                ", missCount=" + missCount +
+                ", expiredCount=" + expiredCount +
+                ", memoryEvictionCount=" + memoryEvictionCount +
+                ", diskEvictionCount=" + diskEvictionCount +
+                ", averageDiskReadTime=" + getAverageDiskReadTime() +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", averageLoadTime=" + getAverageLoadTime() +
+                ", coalescedLoadCount=" + coalescedLoadCount +
+                ", diskBytes=" + diskBytes +
+                '}';
+    }
+
+    /**
+     * 统计计数器，线程安全
+     */
+    static final class Counter {
+        final AtomicLong memoryHitCount = new AtomicLong();
+        final AtomicLong diskHitCount = new AtomicLong();
+        final AtomicLong missCount = new AtomicLong();
+        final AtomicLong expiredCount = new AtomicLong();
+        final AtomicLong memoryEvictionCount = new AtomicLong();
+        final AtomicLong diskEvictionCount = new AtomicLong();
+        final AtomicLong diskReadCount = new AtomicLong();
+        final AtomicLong totalDiskReadTime = new AtomicLong();
+        final AtomicLong loadSuccessCount = new AtomicLong();
+        final AtomicLong loadFailureCount = new AtomicLong();
+        final AtomicLong totalLoadTime = new AtomicLong();
+        final AtomicLong coalescedLoadCount = new AtomicLong();
+        final AtomicLong diskBytes = new AtomicLong();
+
+        void recordDiskRead(long time) {
+            diskReadCount.incrementAndGet();
+            totalDiskReadTime.addAndGet(time);
+        }
+
+        void recordLoad(boolean success, long time) {
+            if (success) {
+                loadSuccessCount.incrementAndGet();
+            } else {
+                loadFailureCount.incrementAndGet();
+            }
+            totalLoadTime.addAndGet(time);
+        }
+
+        void add(Counter other) {
+            memoryHitCount.addAndGet(other.memoryHitCount.get());
+            diskHitCount.addAndGet(other.diskHitCount.get());
+            missCount.addAndGet(other.missCount.get());
+            expiredCount.addAndGet(other.expiredCount.get());
+            memoryEvictionCount.addAndGet(other.memoryEvictionCount.get());
+            diskEvictionCount.addAndGet(other.diskEvictionCount.get());
+            diskReadCount.addAndGet(other.diskReadCount.get());
+            totalDiskReadTime.addAndGet(other.totalDiskReadTime.get());
+            loadSuccessCount.addAndGet(other.loadSuccessCount.get());
+            loadFailureCount.addAndGet(other.loadFailureCount.get());
+            totalLoadTime.addAndGet(other.totalLoadTime.get());
+            coalescedLoadCount.addAndGet(other.coalescedLoadCount.get());
+            diskBytes.addAndGet(other.diskBytes.get());
+        }
+
+        CacheStats snapshot(String context) {
+            return new CacheStats(context, this, diskBytes.get());
+        }
+
+        CacheStats snapshot(String context, long diskBytes) {
+            return new CacheStats(context, this, diskBytes);
+        }
+    }
+}
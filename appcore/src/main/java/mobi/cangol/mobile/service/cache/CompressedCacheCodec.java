@@ -0,0 +1,316 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.service.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 压缩编解码器，包装另一个编解码器
+ * <p>
+ * 编码结果不小于阈值时压缩，格式: magic(2) method(1) 原始长度(4) 压缩数据；
+ * 小于阈值时原样写入。解码时根据magic判断，未压缩及旧数据直接交给被包装的编解码器。
+ * <p>
+ * GZIP的头和尾自行读写，两种方法都使用显式的Deflater/Inflater，用完立即end()释放native内存。
+ *
+ * @author Cangol
+ */
+public class CompressedCacheCodec implements CacheCodec {
+    public static final int METHOD_DEFLATE = 1;
+    public static final int METHOD_GZIP = 2;
+    public static final int DEFAULT_THRESHOLD = 1024;
+    static final int MAGIC = 0xCAC1;
+    /**
+     * 原始长度上限，超过的不压缩，解码时读到更大的长度视为数据损坏
+     */
+    static final int MAX_RAW_LENGTH = 32 * 1024 * 1024;
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private final CacheCodec mDelegate;
+    private final int mMethod;
+    private final int mThreshold;
+    private final int mLevel;
+    private final AtomicLong mRawBytes = new AtomicLong();
+    private final AtomicLong mStoredBytes = new AtomicLong();
+    private final AtomicLong mCompressedCount = new AtomicLong();
+    private final AtomicLong mCompressTime = new AtomicLong();
+    private final AtomicLong mDecompressedCount = new AtomicLong();
+    private final AtomicLong mDecompressTime = new AtomicLong();
+
+    public CompressedCacheCodec() {
+        this(new BinaryCacheCodec(), METHOD_DEFLATE, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param delegate  被包装的编解码器
+     * @param method    METHOD_DEFLATE或METHOD_GZIP
+     * @param threshold 压缩阈值(字节)，编码结果小于此值时不压缩
+     */
+    public CompressedCacheCodec(CacheCodec delegate, int method, int threshold) {
+        this(delegate, method, threshold, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param delegate  被包装的编解码器
+     * @param method    METHOD_DEFLATE或METHOD_GZIP
+     * @param threshold 压缩阈值(字节)，编码结果小于此值时不压缩
+     * @param level     压缩级别(0-9)
+     */
+    public CompressedCacheCodec(CacheCodec delegate, int method, int threshold, int level) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        if (method != METHOD_DEFLATE && method != METHOD_GZIP) {
+            throw new IllegalArgumentException("unexpected method: " + method);
+        }
+        this.mDelegate = delegate;
+        this.mMethod = method;
+        this.mThreshold = threshold;
+        this.mLevel = level;
+    }
+
+    @Override
+    public void encode(CacheObject cacheObject, OutputStream out) throws IOException {
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+        mDelegate.encode(cacheObject, raw);
+        final int rawLength = raw.size();
+        mRawBytes.addAndGet(rawLength);
+        if (rawLength < mThreshold || rawLength > MAX_RAW_LENGTH) {
+            raw.writeTo(out);
+            out.flush();
+            mStoredBytes.addAndGet(rawLength);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(rawLength / 2);
+        final DataOutputStream dos = new DataOutputStream(compressed);
+        dos.writeShort(MAGIC);
+        dos.writeByte(mMethod);
+        dos.writeInt(rawLength);
+        final boolean gzip = mMethod == METHOD_GZIP;
+        if (gzip) {
+            // 头: magic CM(8) FLG(0) MTIME(0) XFL(0) OS(0)
+            dos.writeShort(GZIP_MAGIC);
+            dos.writeByte(Deflater.DEFLATED);
+            dos.write(new byte[7]);
+        }
+        final Deflater deflater = new Deflater(mLevel, gzip);
+        try {
+            final DeflaterOutputStream deflate = new DeflaterOutputStream(dos, deflater, IO_BUFFER_SIZE);
+            raw.writeTo(deflate);
+            deflate.finish();
+        } finally {
+            deflater.end();
+        }
+        if (gzip) {
+            final CRC32 crc = new CRC32();
+            crc.update(raw.toByteArray());
+            writeIntLE(dos, (int) crc.getValue());
+            writeIntLE(dos, rawLength);
+        }
+        mCompressTime.addAndGet(System.nanoTime() - start);
+        mCompressedCount.incrementAndGet();
+        if (compressed.size() >= rawLength) {
+            // 压缩无收益，原样写入
+            raw.writeTo(out);
+            mStoredBytes.addAndGet(rawLength);
+        } else {
+            compressed.writeTo(out);
+            mStoredBytes.addAndGet(compressed.size());
+        }
+        out.flush();
+    }
+
+    @Override
+    public CacheObject decode(InputStream in) throws IOException {
+        final BufferedInputStream bis = new BufferedInputStream(in, IO_BUFFER_SIZE);
+        bis.mark(2);
+        final int magic = (bis.read() << 8) | bis.read();
+        bis.reset();
+        if (magic != MAGIC) {
+            return mDelegate.decode(bis);
+        }
+
+        final long start = System.nanoTime();
+        final DataInputStream dis = new DataInputStream(bis);
+        dis.readShort();
+        final int method = dis.readUnsignedByte();
+        final int rawLength = dis.readInt();
+        if (rawLength < 0 || rawLength > MAX_RAW_LENGTH) {
+            throw new IOException("unexpected raw length: " + rawLength);
+        }
+        final byte[] raw = new byte[rawLength];
+        if (method == METHOD_GZIP) {
+            gunzip(dis, raw);
+        } else if (method == METHOD_DEFLATE) {
+            final Inflater inflater = new Inflater();
+            try {
+                new DataInputStream(new InflaterInputStream(dis, inflater, IO_BUFFER_SIZE)).readFully(raw);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IOException("unexpected compress method: " + method);
+        }
+        mDecompressTime.addAndGet(System.nanoTime() - start);
+        mDecompressedCount.incrementAndGet();
+        return mDelegate.decode(new ByteArrayInputStream(raw));
+    }
+
+    /**
+     * 解压GZIP数据到raw，校验头、CRC32和长度
+     */
+    private static void gunzip(DataInputStream in, byte[] raw) throws IOException {
+        if (in.readUnsignedShort() != GZIP_MAGIC || in.readUnsignedByte() != Deflater.DEFLATED) {
+            throw new IOException("not in gzip format");
+        }
+        final int flags = in.readUnsignedByte();
+        if (flags != 0) {
+            // 只写入过不带可选字段的头
+            throw new IOException("unexpected gzip flags: " + flags);
+        }
+        in.readFully(new byte[6]);
+
+        // 剩余的压缩数据和尾部读入内存，便于定位尾部
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+        final byte[] chunk = new byte[IO_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, count);
+        }
+        final byte[] input = buffer.toByteArray();
+
+        final int trailer;
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int offset = 0;
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(raw, offset, raw.length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || offset == raw.length)) {
+                    throw new EOFException("unexpected end of gzip data");
+                }
+                offset += inflated;
+            }
+            if (offset != raw.length) {
+                throw new EOFException("unexpected end of gzip data");
+            }
+            trailer = input.length - inflater.getRemaining();
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (input.length - trailer < GZIP_TRAILER_SIZE) {
+            throw new EOFException("unexpected end of gzip data");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(raw);
+        if (readIntLE(input, trailer) != (int) crc.getValue() || readIntLE(input, trailer + 4) != raw.length) {
+            throw new IOException("corrupt gzip trailer");
+        }
+    }
+
+    private static void writeIntLE(DataOutputStream out, int value) throws IOException {
+        out.writeByte(value);
+        out.writeByte(value >>> 8);
+        out.writeByte(value >>> 16);
+        out.writeByte(value >>> 24);
+    }
+
+    private static int readIntLE(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff)
+                | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16
+                | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * 编码前的总字节数
+     *
+     * @return
+     */
+    public long getRawBytes() {
+        return mRawBytes.get();
+    }
+
+    /**
+     * 实际写入的总字节数
+     *
+     * @return
+     */
+    public long getStoredBytes() {
+        return mStoredBytes.get();
+    }
+
+    /**
+     * 压缩率(写入字节数/原始字节数)，越小越好，无数据时为1
+     *
+     * @return
+     */
+    public double getCompressionRatio() {
+        final long raw = mRawBytes.get();
+        return raw == 0 ? 1.0 : (double) mStoredBytes.get() / raw;
+    }
+
+    /**
+     * 平均压缩耗时(纳秒)
+     *
+     * @return
+     */
+    public long getAverageCompressTime() {
+        final long count = mCompressedCount.get();
+        return count == 0 ? 0 : mCompressTime.get() / count;
+    }
+
+    /**
+     * 平均解压耗时(纳秒)
+     *
+     * @return
+     */
+    public long getAverageDecompressTime() {
+        final long count = mDecompressedCount.get();
+        return count == 0 ? 0 : mDecompressTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressedCacheCodec{" +
+                "method=" + mMethod +
+                ", threshold=" + mThreshold +
+                ", rawBytes=" + mRawBytes.get() +
+                ", storedBytes=" + mStoredBytes.get() +
+                ", averageCompressTime=" + getAverageCompressTime() +
+                ", averageDecompressTime=" + getAverageDecompressTime() +
+                '}';
+    }
+}
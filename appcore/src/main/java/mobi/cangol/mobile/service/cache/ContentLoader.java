@@ -0,0 +1,19 @@
+package mobi.cangol.mobile.service.cache;
+
+import java.io.Serializable;
+
+/**
+ * 缓存数据源，缓存未命中或即将过期时由CacheManager调用
+ */
+public interface ContentLoader {
+
+    /**
+     * 加载数据(在调用线程或后台线程执行，可进行网络请求)
+     *
+     * @param context 上下文标示，可当做分类
+     * @param id      缓存标示
+     * @return 需要缓存的数据，返回null表示加载失败
+     * @throws Exception
+     */
+    Serializable load(String context, String id) throws Exception;
+}
@@ -24,27 +24,35 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * *****************************************************************************
@@ -90,6 +98,12 @@ import java.util.concurrent.TimeUnit;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  * <p>
+ * <p>Reads don't take the cache's lock. Every commit publishes an immutable
+ * {@link Published} copy of the entry's location into a concurrent index that
+ * {@link #get}, {@link #contains}, {@link #getLength} and {@link #getExpiresAt}
+ * read directly. Accesses are queued and applied to the LRU order and the
+ * journal's READ lines in batches; when the queue is full they are dropped.
+ * <p>
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -102,6 +116,44 @@ public final class DiskLruCache implements Closeable {
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
+    /**
+     * The entry never expires.
+     */
+    public static final long EXPIRES_NEVER = -1;
+    /**
+     * The entry was written without expiry metadata.
+     */
+    public static final long EXPIRES_UNKNOWN = -2;
+    /**
+     * Every DIRTY line is flushed before the value files are created; other
+     * lines are buffered until the buffer fills or {@link #flush} is called.
+     */
+    public static final int JOURNAL_MODE_SYNC = 0;
+    /**
+     * All lines are buffered and flushed together once
+     * {@link #GROUP_COMMIT_MAX_OPS} lines are pending or
+     * {@link #GROUP_COMMIT_DELAY_MILLIS} has passed since the first one.
+     */
+    public static final int JOURNAL_MODE_GROUP_COMMIT = 1;
+    /**
+     * Lines are copied into a memory-mapped region of the journal, so an
+     * append never makes a system call. The OS writes the pages back even if
+     * the process is killed.
+     */
+    public static final int JOURNAL_MODE_MAPPED = 2;
+    static final int GROUP_COMMIT_MAX_OPS = 64;
+    static final long GROUP_COMMIT_DELAY_MILLIS = 1000;
+    static final String SEGMENT_SUFFIX = ".pack";
+    static final long SEGMENT_MAX_SIZE = 4 * 1024 * 1024;
+    static final long COMPACT_MIN_DEAD_BYTES = 256 * 1024;
+    /**
+     * Queued reads are applied once this many are pending.
+     */
+    static final int READ_BUFFER_DRAIN = 64;
+    /**
+     * Reads beyond this many pending ones don't update the LRU order.
+     */
+    static final int READ_BUFFER_MAX = 1024;
     private static final String ACTION_CLEAN = "CLEAN";
     private static final String ACTION_DIRTY = "DIRTY";
     private static final String ACTION_REMOVE = "REMOVE";
@@ -123,7 +175,7 @@ public final class DiskLruCache implements Closeable {
      *     ACTION_CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
      *     ACTION_REMOVE 335c4c6028171cfddfbaae1a9c313c52
      *     ACTION_DIRTY 1ab96a171faeeee38496d8b330771a7a
-     *     ACTION_CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
+     *     ACTION_CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234 1529482512032
      *     ACTION_READ 335c4c6028171cfddfbaae1a9c313c52
      *     ACTION_READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
      *
@@ -140,7 +192,10 @@ public final class DiskLruCache implements Closeable {
      *     temporary files may need to be deleted.
      *   o ACTION_CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
+     *     its values and, optionally, the time in millis at which the entry
+     *     expires (-1 if it never expires). Lines without the expiry are still
+     *     accepted; such entries report EXPIRES_UNKNOWN. A value packed into a
+     *     segment file has its length written as "length@segment:offset".
      *   o ACTION_READ lines track accesses for LRU.
      *   o ACTION_REMOVE lines track entries that have been deleted.
      *
@@ -148,6 +203,17 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Values no larger than the pack threshold (see setPackThreshold) are appended
+     * to shared segment files named "N.pack" instead of getting a "key.N" file
+     * each. Removed or replaced packed values leave dead bytes behind; once they
+     * outweigh the live ones the segments are compacted, together with a journal
+     * rebuild.
+     *
+     * When the cache is opened, an incomplete last line (or the zero padding left
+     * by a mapped journal) is truncated away, and value files that the journal
+     * doesn't know about are deleted. This lets the journal modes other than
+     * JOURNAL_MODE_SYNC defer the DIRTY flush without leaking files.
      */
 
     private final File directory;
@@ -156,16 +222,77 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int journalMode;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * The readable entries as of their last commit, read without the lock.
+     */
+    private final ConcurrentHashMap<String, Published> readableEntries = new ConcurrentHashMap<>();
+    /**
+     * Keys read since the last drain, waiting to be moved up the LRU order.
+     */
+    private final ConcurrentLinkedQueue<String> pendingReads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+    private final AtomicBoolean readDrainScheduled = new AtomicBoolean();
     /**
      * This cache uses a single background thread to evict entries.
      */
-    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1);
     private long curSize = 0;
-    private Writer journalWriter;
+    private volatile Writer journalWriter;
     private int redundantOpCount;
+    /**
+     * Lines appended since the journal was last flushed, in group commit mode.
+     */
+    private int pendingJournalOps;
+    private boolean journalFlushScheduled;
+    /**
+     * The length of the journal up to its last complete line, found while reading it.
+     */
+    private long journalValidLength;
+    /**
+     * Values no larger than this are packed into segments; 0 disables packing.
+     */
+    private long packThreshold;
+    private int currentSegment = -1;
+    private FileOutputStream segmentOut;
+    private long segmentLength;
+    private long livePackedBytes;
+    private long deadPackedBytes;
+    private EvictionListener evictionListener;
+    private final Callable<Void> drainReadsCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                readDrainScheduled.set(false);
+                if (journalWriter == null) {
+                    return null; // closed
+                }
+                drainReads();
+                if (journalRebuildRequired() || sweepRequired()) {
+                    executorService.submit(cleanupCallable);
+                }
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> flushCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            synchronized (DiskLruCache.this) {
+                journalFlushScheduled = false;
+                if (journalWriter != null) {
+                    flushJournal();
+                }
+            }
+            return null;
+        }
+    };
+    /**
+     * The earliest known expiry of all entries, used to schedule the sweep.
+     */
+    private long nextExpiresAt = Long.MAX_VALUE;
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
@@ -173,8 +300,12 @@ public final class DiskLruCache implements Closeable {
                 if (journalWriter == null) {
                     return null; // closed
                 }
+                drainReads();
+                removeExpired();
                 trimToSize();
-                if (journalRebuildRequired()) {
+                if (compactionRequired()) {
+                    compactSegments();
+                } else if (journalRebuildRequired()) {
                     rebuildJournal();
                     redundantOpCount = 0;
                 }
@@ -189,13 +320,16 @@ public final class DiskLruCache implements Closeable {
      */
     private long nextSequenceNumber = 0;
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, int journalMode) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.journalMode = journalMode;
+        this.executorService.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        this.executorService.allowCoreThreadTimeOut(true);
     }
 
     /* From java.util.Arrays */
@@ -304,6 +438,27 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, JOURNAL_MODE_SYNC);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory   a writable directory
+     * @param appVersion
+     * @param valueCount  the number of values per cache entry. Must be positive.
+     * @param maxSize     the maximum number of bytes this cache should use to store
+     * @param journalMode one of JOURNAL_MODE_SYNC, JOURNAL_MODE_GROUP_COMMIT or JOURNAL_MODE_MAPPED
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize, int journalMode)
+            throws IOException {
+        if (journalMode != JOURNAL_MODE_SYNC
+                && journalMode != JOURNAL_MODE_GROUP_COMMIT
+                && journalMode != JOURNAL_MODE_MAPPED) {
+            throw new IllegalArgumentException("unknown journalMode " + journalMode);
+        }
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -312,13 +467,12 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalMode);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), UTF_8),
-                        IO_BUFFER_SIZE);
+                cache.journalWriter = cache.newJournalWriter();
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -329,11 +483,21 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, journalMode);
         cache.rebuildJournal();
         return cache;
     }
 
+    /**
+     * Opens a writer that appends to the journal in this cache's journal mode.
+     */
+    private Writer newJournalWriter() throws IOException {
+        if (journalMode == JOURNAL_MODE_MAPPED) {
+            return new MappedJournalWriter(journalFile);
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8), IO_BUFFER_SIZE);
+    }
+
     private static void deleteIfExists(File file) throws IOException {
 //        try {
 //            Libcore.os.remove(file.getPath());
@@ -352,7 +516,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void readJournal() throws IOException {
-        final InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        final CountingInputStream in = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE));
         try {
             final String magic = readAsciiLine(in);
             final String version = readAsciiLine(in);
@@ -368,9 +532,11 @@ public final class DiskLruCache implements Closeable {
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
+            journalValidLength = in.count;
             while (true) {
                 try {
                     readJournalLine(readAsciiLine(in));
+                    journalValidLength = in.count;
                 } catch (EOFException endOfJournal) {
                     break;
                 }
@@ -398,10 +564,12 @@ public final class DiskLruCache implements Closeable {
             lruEntries.put(key, entry);
         }
 
-        if (parts[0].equals(ACTION_CLEAN) && parts.length == 2 + valueCount) {
+        if (parts[0].equals(ACTION_CLEAN)
+                && (parts.length == 2 + valueCount || parts.length == 3 + valueCount)) {
             entry.readable = true;
             entry.currentEditor = null;
-            entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.setLengths(copyOfRange(parts, 2, 2 + valueCount));
+            entry.setExpiresAt(parts.length == 3 + valueCount ? parts[2 + valueCount] : null);
         } else if (parts[0].equals(ACTION_DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(ACTION_READ) && parts.length == 2) {
@@ -417,21 +585,255 @@ public final class DiskLruCache implements Closeable {
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        truncateJournal();
         for (final Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             final Entry entry = i.next();
-            if (entry.currentEditor == null) {
+            if (entry.currentEditor == null && entry.isPackedIntact()) {
                 for (int t = 0; t < valueCount; t++) {
                     curSize += entry.lengths[t];
+                    if (entry.segments[t] >= 0) {
+                        livePackedBytes += entry.lengths[t];
+                    }
+                }
+                updateNextExpiresAt(entry.expiresAt);
+                if (entry.readable) {
+                    readableEntries.put(entry.key, new Published(entry));
                 }
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
+                    if (entry.segments[t] < 0) {
+                        deleteIfExists(entry.getCleanFile(t));
+                    }
                     deleteIfExists(entry.getDirtyFile(t));
                 }
                 i.remove();
             }
         }
+        deleteOrphanFiles();
+        long segmentBytes = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    segmentBytes += file.length();
+                    currentSegment = Math.max(currentSegment, parseSegment(file.getName()));
+                }
+            }
+        }
+        deadPackedBytes = Math.max(0, segmentBytes - livePackedBytes);
+    }
+
+    /**
+     * Returns the segments that still hold at least one value of an entry.
+     */
+    private HashSet<Integer> referencedSegments() {
+        final HashSet<Integer> segments = new HashSet<>();
+        for (final Entry entry : lruEntries.values()) {
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.segments[t] >= 0) {
+                    segments.add(entry.segments[t]);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static int parseSegment(String name) {
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(directory, segment + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Sets a listener told about every entry the cache drops on its own, that
+     * is for exceeding maxSize or for having expired. It is called on the
+     * cleanup thread with the cache locked, so it must not block.
+     */
+    public synchronized void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Sets the size in bytes up to which committed values are packed into
+     * shared segment files. 0, the default, stores every value in its own file.
+     * Values already stored keep their layout until they are rewritten.
+     */
+    public synchronized void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Appends {@code length} bytes from {@code in} to the current segment,
+     * starting a new one when it is full, and returns the offset written at.
+     */
+    private long appendToSegment(InputStream in, long length) throws IOException {
+        if (segmentOut == null || (segmentLength > 0 && segmentLength + length > SEGMENT_MAX_SIZE)) {
+            closeSegment();
+            currentSegment++;
+            final File file = getSegmentFile(currentSegment);
+            segmentLength = file.length();
+            segmentOut = new FileOutputStream(file, true);
+        }
+        final long offset = segmentLength;
+        final byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE, Math.max(length, 1))];
+        long remaining = length;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException();
+            }
+            segmentOut.write(buffer, 0, read);
+            remaining -= read;
+        }
+        segmentLength += length;
+        return offset;
+    }
+
+    private void closeSegment() {
+        closeQuietly(segmentOut);
+        segmentOut = null;
+    }
+
+    /**
+     * Opens a stream over the committed value at {@code index} of {@code entry}.
+     */
+    private InputStream openValue(Entry entry, int index) throws IOException {
+        return openValue(entry.key, index, entry.segments[index], entry.offsets[index], entry.lengths[index]);
+    }
+
+    /**
+     * Opens a stream over a value stored in its own file, or packed at
+     * {@code offset} of {@code segment}. Called without the lock by {@link #get}.
+     */
+    private InputStream openValue(String key, int index, int segment, long offset, long length) throws IOException {
+        if (segment < 0) {
+            return new FileInputStream(new File(directory, key + "." + index));
+        }
+        final FileInputStream in = new FileInputStream(getSegmentFile(segment));
+        long skip = offset;
+        while (skip > 0) {
+            final long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                closeQuietly(in);
+                throw new EOFException();
+            }
+            skip -= skipped;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Releases the storage of the committed value at {@code index}.
+     */
+    private void releaseValue(Entry entry, int index) throws IOException {
+        if (entry.segments[index] < 0) {
+            final File file = entry.getCleanFile(index);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        } else {
+            livePackedBytes -= entry.lengths[index];
+            deadPackedBytes += entry.lengths[index];
+            entry.segments[index] = -1;
+            entry.offsets[index] = 0;
+        }
+    }
+
+    /**
+     * We compact once dead segment bytes outweigh the live ones.
+     */
+    private boolean compactionRequired() {
+        return deadPackedBytes >= COMPACT_MIN_DEAD_BYTES && deadPackedBytes >= livePackedBytes;
+    }
+
+    /**
+     * Copies all live packed values into fresh segments, rebuilds the journal
+     * to point at them and deletes the old segments. Open snapshots keep
+     * reading the old files through their descriptors.
+     */
+    private void compactSegments() throws IOException {
+        closeSegment();
+        for (final Entry entry : lruEntries.values()) {
+            for (int t = 0; t < valueCount; t++) {
+                if (entry.segments[t] < 0) {
+                    continue;
+                }
+                final InputStream in = openValue(entry, t);
+                try {
+                    final long offset = appendToSegment(in, entry.lengths[t]);
+                    entry.segments[t] = currentSegment;
+                    entry.offsets[t] = offset;
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+            if (entry.readable) {
+                readableEntries.put(entry.key, new Published(entry));
+            }
+        }
+        rebuildJournal();
+        redundantOpCount = 0;
+        final HashSet<Integer> segments = referencedSegments();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX) && !segments.contains(parseSegment(file.getName()))) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+        deadPackedBytes = 0;
+    }
+
+    /**
+     * Drops a partially written last line, or the zero padding of a mapped
+     * journal, so that new lines are appended right after the last complete one.
+     */
+    private void truncateJournal() throws IOException {
+        if (journalFile.length() <= journalValidLength) {
+            return;
+        }
+        final RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(journalValidLength);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Deletes value files whose DIRTY or CLEAN line never reached the journal.
+     */
+    private void deleteOrphanFiles() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final HashSet<Integer> segments = referencedSegments();
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP) || file.isDirectory()) {
+                continue;
+            }
+            if (name.endsWith(SEGMENT_SUFFIX)) {
+                if (!segments.contains(parseSegment(name))) {
+                    deleteIfExists(file);
+                }
+                continue;
+            }
+            final int dot = name.indexOf('.');
+            final Entry entry = dot > 0 ? lruEntries.get(name.substring(0, dot)) : null;
+            if (entry == null || name.endsWith(".tmp")) {
+                deleteIfExists(file);
+            }
+        }
     }
 
     /**
@@ -458,54 +860,140 @@ public final class DiskLruCache implements Closeable {
             if (entry.currentEditor != null) {
                 writer.write(ACTION_DIRTY + ' ' + entry.key + '\n');
             } else {
-                writer.write(ACTION_CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.write(ACTION_CLEAN + ' ' + entry.key + entry.getMetadata() + '\n');
             }
         }
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8), IO_BUFFER_SIZE);
+        journalWriter = newJournalWriter();
+        pendingJournalOps = 0;
+    }
+
+    /**
+     * Called after every journal line. In group commit mode the journal is
+     * flushed once enough lines are pending, or shortly after the first one.
+     */
+    private void journalAppended() throws IOException {
+        if (journalMode != JOURNAL_MODE_GROUP_COMMIT) {
+            return;
+        }
+        pendingJournalOps++;
+        if (pendingJournalOps >= GROUP_COMMIT_MAX_OPS) {
+            flushJournal();
+        } else if (!journalFlushScheduled) {
+            journalFlushScheduled = true;
+            executorService.schedule(flushCallable, GROUP_COMMIT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        journalWriter.flush();
+        pendingJournalOps = 0;
+    }
+
+    /**
+     * Applies the queued reads to the LRU order and appends their READ lines.
+     */
+    private void drainReads() throws IOException {
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            final Entry entry = lruEntries.get(key);
+            if (entry != null && entry.readable) {
+                redundantOpCount++;
+                journalWriter.append(ACTION_READ + ' ' + key + '\n');
+                journalAppended();
+            }
+        }
+    }
+
+    /**
+     * Queues a read of {@code key}, draining the queue on the cleanup thread
+     * once enough reads are pending.
+     */
+    private void recordRead(String key) {
+        if (pendingReadCount.incrementAndGet() > READ_BUFFER_MAX) {
+            pendingReadCount.decrementAndGet();
+            return; // dropped, the LRU order is approximate anyway
+        }
+        pendingReads.offer(key);
+        if (pendingReadCount.get() >= READ_BUFFER_DRAIN && readDrainScheduled.compareAndSet(false, true)) {
+            executorService.submit(drainReadsCallable);
+        }
     }
 
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * the head of the LRU queue once the queued reads are drained.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        final Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
-            return null;
-        }
+        while (true) {
+            final Published published = readableEntries.get(key);
+            if (published == null) {
+                return null;
+            }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            final InputStream[] ins = new InputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = openValue(key, i, published.segments[i], published.offsets[i], published.lengths[i]);
+                }
+            } catch (FileNotFoundException e) {
+                for (final InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                if (readableEntries.get(key) != published) {
+                    continue; // rewritten or compacted meanwhile, read the new location
+                }
+                // a file must have been deleted manually!
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(ACTION_READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            recordRead(key);
+            return new Snapshot(key, published.sequenceNumber, ins);
         }
+    }
+
+    /**
+     * Returns true if a readable entry named {@code key} exists. Unlike
+     * {@link #get} this opens no files and writes nothing to the journal.
+     */
+    public boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        return readableEntries.containsKey(key);
+    }
+
+    /**
+     * Returns the total length of the values of the entry named {@code key},
+     * or -1 if it doesn't exist.
+     */
+    public long getLength(String key) {
+        checkNotClosed();
+        validateKey(key);
+        final Published published = readableEntries.get(key);
+        return published == null ? -1 : published.length;
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Returns the expiry time in millis of the entry named {@code key},
+     * {@link #EXPIRES_NEVER} if it never expires, or {@link #EXPIRES_UNKNOWN}
+     * if it doesn't exist or was written without expiry metadata.
+     */
+    public long getExpiresAt(String key) {
+        checkNotClosed();
+        validateKey(key);
+        final Published published = readableEntries.get(key);
+        return published == null ? EXPIRES_UNKNOWN : published.expiresAt;
     }
 
     /**
@@ -534,9 +1022,14 @@ public final class DiskLruCache implements Closeable {
         final Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
+        // flush the journal before creating files to prevent file leaks; the
+        // other modes rely on deleteOrphanFiles() instead
         journalWriter.write(ACTION_DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        if (journalMode == JOURNAL_MODE_SYNC) {
+            journalWriter.flush();
+        } else {
+            journalAppended();
+        }
         return editor;
     }
 
@@ -580,14 +1073,38 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        // old value files are deleted only after the new location is published
+        List<File> replaced = null;
         for (int i = 0; i < valueCount; i++) {
             final File dirty = entry.getDirtyFile(i);
             if (success) {
                 if (dirty.exists()) {
-                    final File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
                     final long oldLength = entry.lengths[i];
-                    final long newLength = clean.length();
+                    final long newLength = dirty.length();
+                    final boolean hadFile = entry.readable && entry.segments[i] < 0;
+                    if (entry.readable && !hadFile) {
+                        releaseValue(entry, i);
+                    }
+                    if (packThreshold > 0 && newLength <= packThreshold) {
+                        final InputStream in = new FileInputStream(dirty);
+                        try {
+                            entry.offsets[i] = appendToSegment(in, newLength);
+                            entry.segments[i] = currentSegment;
+                        } finally {
+                            closeQuietly(in);
+                        }
+                        deleteIfExists(dirty);
+                        livePackedBytes += newLength;
+                        if (hadFile) {
+                            if (replaced == null) {
+                                replaced = new ArrayList<>();
+                            }
+                            replaced.add(entry.getCleanFile(i));
+                        }
+                    } else {
+                        // replaces the old file atomically, readers never see it missing
+                        dirty.renameTo(entry.getCleanFile(i));
+                    }
                     entry.lengths[i] = newLength;
                     curSize = curSize - oldLength + newLength;
                 }
@@ -600,20 +1117,63 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(ACTION_CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            if (success) {
+                entry.expiresAt = editor.expiresAt;
+                updateNextExpiresAt(entry.expiresAt);
+            }
+            journalWriter.write(ACTION_CLEAN + ' ' + entry.key + entry.getMetadata() + '\n');
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
             }
+            readableEntries.put(entry.key, new Published(entry));
+            if (replaced != null) {
+                for (final File file : replaced) {
+                    deleteIfExists(file);
+                }
+            }
         } else {
             lruEntries.remove(entry.key);
             journalWriter.write(ACTION_REMOVE + ' ' + entry.key + '\n');
         }
+        journalAppended();
 
-        if (curSize > maxSize || journalRebuildRequired()) {
+        if (curSize > maxSize || journalRebuildRequired() || sweepRequired() || compactionRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    private void updateNextExpiresAt(long expiresAt) {
+        if (expiresAt >= 0 && expiresAt < nextExpiresAt) {
+            nextExpiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * We sweep once the earliest known expiry has passed.
+     */
+    private boolean sweepRequired() {
+        return nextExpiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * Drops every entry whose expiry has passed and recomputes the next expiry.
+     */
+    private void removeExpired() throws IOException {
+        final long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (final Entry entry : new ArrayList<>(lruEntries.values())) {
+            if (entry.expiresAt < 0 || !entry.readable) {
+                continue;
+            }
+            if (entry.expiresAt <= now && entry.currentEditor == null) {
+                evict(entry.key, true);
+            } else if (entry.expiresAt < next) {
+                next = entry.expiresAt;
+            }
+        }
+        nextExpiresAt = next;
+    }
+
     /**
      * We only rebuild the journal when it will halve the curSize of the journal
      * and eliminate at least 2000 ops.
@@ -639,19 +1199,18 @@ public final class DiskLruCache implements Closeable {
         }
 
         for (int i = 0; i < valueCount; i++) {
-            final File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
-            }
+            releaseValue(entry, i);
             curSize -= entry.lengths[i];
             entry.lengths[i] = 0;
         }
 
         redundantOpCount++;
         journalWriter.append(ACTION_REMOVE + ' ' + key + '\n');
+        journalAppended();
         lruEntries.remove(key);
+        readableEntries.remove(key);
 
-        if (journalRebuildRequired()) {
+        if (journalRebuildRequired() || sweepRequired() || compactionRequired()) {
             executorService.submit(cleanupCallable);
         }
 
@@ -676,8 +1235,9 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
+        drainReads();
         trimToSize();
-        journalWriter.flush();
+        flushJournal();
     }
 
     /**
@@ -692,16 +1252,26 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
+        drainReads();
         trimToSize();
+        closeSegment();
         journalWriter.close();
         journalWriter = null;
+        readableEntries.clear();
     }
 
     private void trimToSize() throws IOException {
         while (curSize > maxSize) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            evict(toEvict.getKey(), false);
+        }
+    }
+
+    private void evict(String key, boolean expired) throws IOException {
+        final long length = evictionListener != null ? getLength(key) : -1;
+        if (remove(key) && evictionListener != null) {
+            evictionListener.onEvicted(key, length, expired);
         }
     }
 
@@ -722,6 +1292,155 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Receives the entries dropped by the cache itself.
+     */
+    public interface EvictionListener {
+        /**
+         * @param key     the key of the dropped entry
+         * @param length  the total length of its values
+         * @param expired true if it expired, false if it was evicted for space
+         */
+        void onEvicted(String key, long length, boolean expired);
+    }
+
+    /**
+     * Reads at most {@code limit} bytes of a packed value from its segment.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the bytes read, to find where the last complete journal line ends.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = in.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Appends journal lines into a memory-mapped region that grows in
+     * {@link #MAP_CHUNK} steps. Closing it truncates the zero padding after the
+     * last line; after a crash the padding is dropped by truncateJournal().
+     */
+    private static final class MappedJournalWriter extends Writer {
+        private static final int MAP_CHUNK = 64 * 1024;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private long position;
+
+        private MappedJournalWriter(File journalFile) throws IOException {
+            this.file = new RandomAccessFile(journalFile, "rw");
+            this.channel = file.getChannel();
+            this.position = file.length();
+            map(MAP_CHUNK);
+        }
+
+        private void map(int size) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            if (buffer == null) {
+                throw new IOException("journal writer is closed");
+            }
+            final byte[] bytes = new String(chars, offset, length).getBytes(UTF_8);
+            if (buffer.remaining() < bytes.length) {
+                map(Math.max(MAP_CHUNK, bytes.length));
+            }
+            buffer.put(bytes);
+            position += bytes.length;
+        }
+
+        @Override
+        public void flush() {
+            // the mapped pages are written back by the OS
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            buffer = null;
+            try {
+                channel.truncate(position);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -773,9 +1492,19 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        private long expiresAt;
 
         private Editor(Entry entry) {
             this.entry = entry;
+            this.expiresAt = entry.expiresAt;
+        }
+
+        /**
+         * Sets the time in millis at which this entry expires, or
+         * {@link #EXPIRES_NEVER}. It is published when the edit is committed.
+         */
+        public void setExpiresAt(long expiresAt) {
+            this.expiresAt = expiresAt;
         }
 
         /**
@@ -790,7 +1519,7 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                return openValue(entry, index);
             }
         }
 
@@ -896,6 +1625,32 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * An immutable copy of where a readable entry's values are stored, as of
+     * its last commit or compaction.
+     */
+    private static final class Published {
+        private final long sequenceNumber;
+        private final long expiresAt;
+        private final long length;
+        private final long[] lengths;
+        private final int[] segments;
+        private final long[] offsets;
+
+        private Published(Entry entry) {
+            this.sequenceNumber = entry.sequenceNumber;
+            this.expiresAt = entry.expiresAt;
+            this.lengths = entry.lengths.clone();
+            this.segments = entry.segments.clone();
+            this.offsets = entry.offsets.clone();
+            long total = 0;
+            for (final long size : lengths) {
+                total += size;
+            }
+            this.length = total;
+        }
+    }
+
     private final class Entry {
         private final String key;
 
@@ -904,6 +1659,16 @@ public final class DiskLruCache implements Closeable {
          */
         private final long[] lengths;
 
+        /**
+         * The segment each value is packed into, or -1 if it has its own file.
+         */
+        private final int[] segments;
+
+        /**
+         * The offset of each packed value in its segment.
+         */
+        private final long[] offsets;
+
         /**
          * True if this entry has ever been published
          */
@@ -919,19 +1684,66 @@ public final class DiskLruCache implements Closeable {
          */
         private long sequenceNumber;
 
+        /**
+         * The expiry time in millis, EXPIRES_NEVER or EXPIRES_UNKNOWN.
+         */
+        private long expiresAt = EXPIRES_UNKNOWN;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
+            this.segments = new int[valueCount];
+            this.offsets = new long[valueCount];
+            Arrays.fill(segments, -1);
         }
 
         public String getLengths() {
             final StringBuilder result = new StringBuilder();
-            for (final long size : lengths) {
-                result.append(' ').append(size);
+            for (int i = 0; i < valueCount; i++) {
+                result.append(' ').append(lengths[i]);
+                if (segments[i] >= 0) {
+                    result.append('@').append(segments[i]).append(':').append(offsets[i]);
+                }
             }
             return result.toString();
         }
 
+        /**
+         * Returns false if a packed value lies beyond the end of its segment,
+         * i.e. its bytes never reached the disk.
+         */
+        private boolean isPackedIntact() {
+            for (int i = 0; i < valueCount; i++) {
+                if (segments[i] >= 0
+                        && getSegmentFile(segments[i]).length() < offsets[i] + lengths[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getMetadata() {
+            if (expiresAt == EXPIRES_UNKNOWN) {
+                return getLengths();
+            }
+            return getLengths() + ' ' + expiresAt;
+        }
+
+        /**
+         * Set expiry using a decimal number like "1529482512032", or null if absent.
+         */
+        private void setExpiresAt(String string) throws IOException {
+            if (string == null) {
+                expiresAt = EXPIRES_UNKNOWN;
+                return;
+            }
+            try {
+                expiresAt = Long.parseLong(string);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal expiry: " + string);
+            }
+        }
+
         /**
          * Set lengths using decimal numbers like "10123".
          */
@@ -942,7 +1754,20 @@ public final class DiskLruCache implements Closeable {
 
             try {
                 for (int i = 0; i < strings.length; i++) {
-                    lengths[i] = Long.parseLong(strings[i]);
+                    final int at = strings[i].indexOf('@');
+                    if (at == -1) {
+                        lengths[i] = Long.parseLong(strings[i]);
+                        segments[i] = -1;
+                        offsets[i] = 0;
+                    } else {
+                        final int colon = strings[i].indexOf(':', at);
+                        if (colon == -1) {
+                            throw invalidLengths(strings);
+                        }
+                        lengths[i] = Long.parseLong(strings[i].substring(0, at));
+                        segments[i] = Integer.parseInt(strings[i].substring(at + 1, colon));
+                        offsets[i] = Long.parseLong(strings[i].substring(colon + 1));
+                    }
                 }
             } catch (NumberFormatException e) {
                 throw invalidLengths(strings);
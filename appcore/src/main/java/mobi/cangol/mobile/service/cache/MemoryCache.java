@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2013 Cangol
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mobi.cangol.mobile.service.cache;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 内存缓存，所有context共享一个字节预算，按LRU淘汰
+ * <p>
+ * 缓存对象以引用返回给调用方，可能在放入后被修改，因此大小只在put时估算一次并随条目保存，
+ * 保证LruCache统计的总大小在移除、淘汰时保持一致
+ *
+ * @author Cangol
+ */
+class MemoryCache extends LruCache<String, MemoryCache.Entry> {
+    private static final char KEY_SEPARATOR = '\u0001';
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int CACHE_OBJECT_OVERHEAD = 64;
+    private static final int MAX_ESTIMATE_DEPTH = 4;
+    private OnEvictedListener mOnEvictedListener;
+
+    MemoryCache(int maxSize) {
+        super(maxSize);
+    }
+
+    void setOnEvictedListener(OnEvictedListener onEvictedListener) {
+        this.mOnEvictedListener = onEvictedListener;
+    }
+
+    /**
+     * 创建指定大小的缓存并按访问顺序复制当前的内容，超出大小的部分计为淘汰
+     *
+     * @param maxSize
+     * @return
+     */
+    MemoryCache copy(int maxSize) {
+        final MemoryCache cache = new MemoryCache(maxSize);
+        cache.mOnEvictedListener = mOnEvictedListener;
+        for (final Map.Entry<String, Entry> entry : snapshot().entrySet()) {
+            cache.put(entry.getKey(), entry.getValue());
+        }
+        return cache;
+    }
+
+    static String toKey(String context, String id) {
+        return context + KEY_SEPARATOR + id;
+    }
+
+    public CacheObject get(String context, String id) {
+        return valueOf(get(toKey(context, id)));
+    }
+
+    public CacheObject put(String context, String id, CacheObject cacheObject) {
+        final String key = toKey(context, id);
+        final long size = CACHE_OBJECT_OVERHEAD + 2L * key.length()
+                + estimateSize(cacheObject.getObject(), new IdentityHashMap<Object, Boolean>(), 0);
+        return valueOf(put(key, new Entry(cacheObject, (int) Math.min(size, Integer.MAX_VALUE))));
+    }
+
+    public CacheObject remove(String context, String id) {
+        return valueOf(remove(toKey(context, id)));
+    }
+
+    private static CacheObject valueOf(Entry entry) {
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * 移除context下的所有内存缓存
+     *
+     * @param context
+     */
+    public void removeContext(String context) {
+        final String prefix = context + KEY_SEPARATOR;
+        for (final String key : snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                remove(key);
+            }
+        }
+    }
+
+    /**
+     * 清空内存缓存，不计为淘汰
+     */
+    public void clear() {
+        for (final String key : snapshot().keySet()) {
+            remove(key);
+        }
+    }
+
+    /**
+     * 根据系统内存回收等级淘汰内存缓存
+     *
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+        final OnEvictedListener listener = mOnEvictedListener;
+        if (evicted && listener != null) {
+            listener.onEvicted(key.substring(0, key.indexOf(KEY_SEPARATOR)));
+        }
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry value) {
+        return value.size;
+    }
+
+    /**
+     * 估算对象占用的堆内存大小(字节)，只用于容量控制，不追求精确
+     *
+     * @param object
+     * @param visited
+     * @param depth
+     * @return
+     */
+    static long estimateSize(Object object, IdentityHashMap<Object, Boolean> visited, int depth) {
+        if (object == null || visited.put(object, Boolean.TRUE) != null) {
+            return 0;
+        }
+        if (object instanceof String) {
+            return OBJECT_HEADER * 2 + 2L * ((String) object).length();
+        } else if (object instanceof byte[]) {
+            return OBJECT_HEADER + ((byte[]) object).length;
+        } else if (object instanceof char[]) {
+            return OBJECT_HEADER + 2L * ((char[]) object).length;
+        } else if (object instanceof Number || object instanceof Boolean || object instanceof Character) {
+            return OBJECT_HEADER + 8;
+        } else if (object instanceof JSONObject || object instanceof JSONArray) {
+            return OBJECT_HEADER * 2 + 2L * object.toString().length();
+        } else if (depth >= MAX_ESTIMATE_DEPTH) {
+            return OBJECT_HEADER;
+        }
+
+        long size = OBJECT_HEADER;
+        if (object instanceof Collection) {
+            for (final Object item : (Collection<?>) object) {
+                size += REFERENCE_SIZE + estimateSize(item, visited, depth + 1);
+            }
+        } else if (object instanceof Map) {
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                size += OBJECT_HEADER + estimateSize(entry.getKey(), visited, depth + 1)
+                        + estimateSize(entry.getValue(), visited, depth + 1);
+            }
+        } else if (object.getClass().isArray()) {
+            final int length = Array.getLength(object);
+            if (object.getClass().getComponentType().isPrimitive()) {
+                size += 8L * length;
+            } else {
+                for (int i = 0; i < length; i++) {
+                    size += REFERENCE_SIZE + estimateSize(Array.get(object, i), visited, depth + 1);
+                }
+            }
+        } else {
+            Class<?> clazz = object.getClass();
+            while (clazz != null && clazz != Object.class) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    if (field.getType().isPrimitive()) {
+                        size += 8;
+                    } else {
+                        size += REFERENCE_SIZE;
+                        try {
+                            field.setAccessible(true);
+                            size += estimateSize(field.get(object), visited, depth + 1);
+                        } catch (Exception e) {
+                            //ignore
+                        }
+                    }
+                }
+                clazz = clazz.getSuperclass();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 缓存条目，保存放入时估算的大小
+     */
+    static final class Entry {
+        private final CacheObject value;
+        private final int size;
+
+        Entry(CacheObject value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * 内存缓存淘汰监听
+     */
+    interface OnEvictedListener {
+        /**
+         * 缓存对象因超出内存预算被淘汰
+         *
+         * @param context
+         */
+        void onEvicted(String context);
+    }
+}
@@ -26,6 +26,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
 import mobi.cangol.mobile.logging.Log;
+import mobi.cangol.mobile.http.download.BandwidthScheduler;
 import mobi.cangol.mobile.parser.JSONParserException;
 import mobi.cangol.mobile.parser.JsonUtils;
 import mobi.cangol.mobile.service.PoolManager.Pool;
@@ -43,9 +44,12 @@ public abstract class DownloadExecutor<T> {
     private DownloadEvent mDownloadEvent;
     private ExecutorHandler mHandler;
     private boolean mHttpSafe = true;
+    private int mMaxSegments = 1;
+    private BandwidthScheduler.Group mBandwidthGroup;
 
     public DownloadExecutor(String name) {
         this.mName = name;
+        this.mBandwidthGroup = BandwidthScheduler.getDefault().getGroup(name);
         this.mHandler = new ExecutorHandler(this);
         this.mTag = "DownloadExecutor_" + name;
     }
@@ -54,6 +58,34 @@ public abstract class DownloadExecutor<T> {
         this.mHttpSafe = safe;
     }
 
+    /**
+     * 设置分段下载的最大连接数，对之后创建的下载任务生效
+     *
+     * @param maxSegments 小于等于1时为单连接下载
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.mMaxSegments = maxSegments;
+    }
+
+    /**
+     * 获取带宽调度分组，默认是全局调度器中与执行器同名的分组，
+     * 可设置执行器的限速、权重和单个任务(以DownloadResource.getKey()为标识)的限速、权重，运行中的下载立即生效
+     *
+     * @return
+     */
+    public BandwidthScheduler.Group getBandwidthGroup() {
+        return mBandwidthGroup;
+    }
+
+    /**
+     * 设置带宽调度分组，对之后创建的下载任务生效
+     *
+     * @param group 为null时不限速
+     */
+    public void setBandwidthGroup(BandwidthScheduler.Group group) {
+        this.mBandwidthGroup = group;
+    }
+
     protected void setContext(Context context) {
         this.mContext = context;
     }
@@ -184,6 +216,8 @@ public abstract class DownloadExecutor<T> {
                 downloadTask = new DownloadTask(resource, mPool, mHandler, true);
                 resource.setDownloadTask(downloadTask);
                 downloadTask.setDownloadNotification(notification(mContext, resource));
+                downloadTask.setMaxSegments(mMaxSegments);
+                downloadTask.setBandwidthGroup(mBandwidthGroup);
             }
             if (!downloadTask.isRunning()) {
                 downloadTask.start();
@@ -192,6 +226,8 @@ public abstract class DownloadExecutor<T> {
             final DownloadTask downloadTask = new DownloadTask(resource, mPool, mHandler, true);
             resource.setDownloadTask(downloadTask);
             downloadTask.setDownloadNotification(notification(mContext, resource));
+            downloadTask.setMaxSegments(mMaxSegments);
+            downloadTask.setBandwidthGroup(mBandwidthGroup);
             downloadTask.start();
             synchronized (mDownloadRes) {
                 mDownloadRes.add(resource);
@@ -265,6 +301,8 @@ public abstract class DownloadExecutor<T> {
             final  DownloadTask downloadTask = new DownloadTask(resource, mPool, mHandler, mHttpSafe);
             resource.setDownloadTask(downloadTask);
             downloadTask.setDownloadNotification(notification(mContext, resource));
+            downloadTask.setMaxSegments(mMaxSegments);
+            downloadTask.setBandwidthGroup(mBandwidthGroup);
             downloadTask.start();
             synchronized (mDownloadRes) {
                 mDownloadRes.add(resource);
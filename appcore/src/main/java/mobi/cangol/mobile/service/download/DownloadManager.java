@@ -53,4 +53,11 @@ public interface DownloadManager extends AppService {
      * 中断所有下载执行器
      */
     void interruptAllDownloadExecutor();
+
+    /**
+     * 设置所有下载执行器的总带宽，按各执行器的权重分配，运行中的下载立即生效
+     *
+     * @param bytesPerSecond 小于等于0时不限速
+     */
+    void setBandwidth(long bytesPerSecond);
 }
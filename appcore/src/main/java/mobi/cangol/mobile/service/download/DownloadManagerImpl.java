@@ -23,6 +23,7 @@ import java.util.Enumeration;
 import java.util.concurrent.ConcurrentHashMap;
 
 import mobi.cangol.mobile.CoreApplication;
+import mobi.cangol.mobile.http.download.BandwidthScheduler;
 import mobi.cangol.mobile.logging.Log;
 import mobi.cangol.mobile.service.AppService;
 import mobi.cangol.mobile.service.PoolManager;
@@ -122,6 +123,11 @@ class DownloadManagerImpl implements DownloadManager {
         }
     }
 
+    @Override
+    public void setBandwidth(long bytesPerSecond) {
+        BandwidthScheduler.getDefault().setRate(bytesPerSecond);
+    }
+
     @Override
     public void onDestroy() {
         if (null == executorMap) {
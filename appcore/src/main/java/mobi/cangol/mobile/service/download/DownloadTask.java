@@ -20,6 +20,7 @@ import android.os.Message;
 
 import java.util.concurrent.Future;
 
+import mobi.cangol.mobile.http.download.BandwidthScheduler;
 import mobi.cangol.mobile.http.download.DownloadHttpClient;
 import mobi.cangol.mobile.http.download.DownloadResponseHandler;
 import mobi.cangol.mobile.service.PoolManager.Pool;
@@ -114,6 +115,24 @@ public class DownloadTask {
         this.downloadNotification = downloadNotification;
     }
 
+    /**
+     * 设置分段下载的最大连接数
+     *
+     * @param maxSegments 小于等于1时为单连接下载
+     */
+    public void setMaxSegments(int maxSegments) {
+        downloadHttpClient.setMaxSegments(maxSegments);
+    }
+
+    /**
+     * 设置带宽调度分组
+     *
+     * @param group 为null时不限速
+     */
+    public void setBandwidthGroup(BandwidthScheduler.Group group) {
+        downloadHttpClient.setBandwidthGroup(group);
+    }
+
     protected Future<?> exec(DownloadResource downloadResource, DownloadResponseHandler responseHandler) {
         return downloadHttpClient.send(downloadResource.getKey(), downloadResource.getUrl(), responseHandler, downloadResource.getCompleteSize(), downloadResource.getSourceFile());
     }
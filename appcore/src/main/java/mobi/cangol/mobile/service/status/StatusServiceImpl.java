@@ -29,6 +29,7 @@ import android.telephony.TelephonyManager;
 
 import java.util.ArrayList;
 
+import mobi.cangol.mobile.http.HttpClientFactory;
 import mobi.cangol.mobile.logging.Log;
 import mobi.cangol.mobile.service.Service;
 import mobi.cangol.mobile.service.ServiceProperty;
@@ -51,6 +52,8 @@ class StatusServiceImpl implements StatusService {
 
         @Override
         public void onReceive(Context context, Intent intent) {
+            // 网络切换后缓存的DNS解析结果可能已不可达
+            HttpClientFactory.clearDnsCache();
             State wifiState = null;
             State mobileState = null;
             final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
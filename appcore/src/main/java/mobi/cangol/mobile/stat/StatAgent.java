@@ -24,9 +24,12 @@ import android.text.TextUtils;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import mobi.cangol.mobile.CoreApplication;
 import mobi.cangol.mobile.core.BuildConfig;
+import mobi.cangol.mobile.http.HttpMetrics;
 import mobi.cangol.mobile.logging.Log;
 import mobi.cangol.mobile.service.AppService;
 import mobi.cangol.mobile.service.analytics.AnalyticsService;
@@ -61,6 +64,7 @@ public class StatAgent {
     private SessionService sessionService;
     private CrashService crashService;
     private String statServerURL = null;
+    private Timer httpMetricsTimer;
 
     @TargetApi(Build.VERSION_CODES.GINGERBREAD)
     protected StatAgent(CoreApplication coreApplication) {
@@ -116,6 +120,7 @@ public class StatAgent {
         analyticsService.closeTracker(STAT_TRACKING_ID);
         StatsSession.getInstance().onDestroy();
         StatsTraffic.getInstance(context).onDestroy();
+        stopHttpMetricsReport();
     }
 
     /**
@@ -292,6 +297,44 @@ public class StatAgent {
         statsTraffic.saveUnPostDateTraffic(context.getApplicationInfo().uid, TimeUtils.getCurrentDate());
     }
 
+    /**
+     * 上报HTTP请求性能统计并清空，每个host一条timing
+     *
+     * @param metrics
+     */
+    public void sendHttpMetrics(HttpMetrics metrics) {
+        for (final HttpMetrics.HostMetrics hostMetrics : metrics.getSnapshot(true).values()) {
+            send(Builder.createHttpTiming(metrics.getName(), hostMetrics));
+        }
+    }
+
+    /**
+     * 定时上报HTTP请求性能统计，重复调用会替换之前的定时上报
+     *
+     * @param metrics
+     * @param period  上报周期(毫秒)
+     */
+    public synchronized void startHttpMetricsReport(final HttpMetrics metrics, long period) {
+        stopHttpMetricsReport();
+        httpMetricsTimer = new Timer("HttpMetricsReport", true);
+        httpMetricsTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sendHttpMetrics(metrics);
+            }
+        }, period, period);
+    }
+
+    /**
+     * 停止定时上报HTTP请求性能统计
+     */
+    public synchronized void stopHttpMetricsReport() {
+        if (httpMetricsTimer != null) {
+            httpMetricsTimer.cancel();
+            httpMetricsTimer = null;
+        }
+    }
+
     public void onActivityResume(String pageName) {
         StatsSession.getInstance().onStart(pageName);
     }
@@ -365,6 +408,33 @@ public class StatAgent {
             return builder;
         }
 
+        /**
+         * HTTP请求性能统计，view为http/统计名/host，idleTime为平均总耗时，
+         * 其他阶段耗时以p50、p90附加
+         *
+         * @param name        HttpMetrics的名称
+         * @param hostMetrics 单个host的统计
+         * @return
+         */
+        protected static Builder createHttpTiming(String name, HttpMetrics.HostMetrics hostMetrics) {
+            final HttpMetrics.Histogram total = hostMetrics.getHistogram(HttpMetrics.PHASE_TOTAL);
+            final Builder builder = createTiming("http/" + name + "/" + hostMetrics.getHost(), total.getMean());
+            builder.set("callCount", Long.toString(hostMetrics.getCallCount()));
+            builder.set("failureCount", Long.toString(hostMetrics.getFailureCount()));
+            builder.set("retryCount", Long.toString(hostMetrics.getRetryCount()));
+            builder.set("reusedCount", Long.toString(hostMetrics.getReusedCount()));
+            builder.set("bytesOut", Long.toString(hostMetrics.getBytesOut()));
+            builder.set("bytesIn", Long.toString(hostMetrics.getBytesIn()));
+            for (int i = HttpMetrics.PHASE_DNS; i <= HttpMetrics.PHASE_TOTAL; i++) {
+                final HttpMetrics.Histogram histogram = hostMetrics.getHistogram(i);
+                final String phase = HttpMetrics.getPhaseName(i);
+                builder.set(phase + "P50", Long.toString(histogram.getPercentile(0.5)));
+                builder.set(phase + "P90", Long.toString(histogram.getPercentile(0.9)));
+            }
+            builder.set(TIMESTAMP, TimeUtils.getCurrentTime());
+            return builder;
+        }
+
         /**
          * 异常统计
          *